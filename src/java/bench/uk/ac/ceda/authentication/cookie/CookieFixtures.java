@@ -0,0 +1,126 @@
+package uk.ac.ceda.authentication.cookie;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.util.HashMap;
+import java.util.Map;
+
+import org.apache.commons.codec.DecoderException;
+
+/**
+ * Cookie values for the benchmarks: the sample cookies used by the tests,
+ * and generated cookies with user data of any size
+ * 
+ * @author William Tucker
+ */
+public final class CookieFixtures
+{
+    public static final String SAMPLE = "sample";
+    
+    private static final String SAMPLE_COOKIES = "/uk/ac/ceda/authentication/cookie/sample_cookies/";
+    
+    private CookieFixtures()
+    {
+    }
+    
+    /**
+     * Read the values describing a sample cookie
+     * 
+     * @param name  sample file name
+     * @return  values by name
+     * @throws IOException
+     */
+    public static Map<String, String> readSample(String name) throws IOException
+    {
+        InputStream stream = CookieFixtures.class.getResourceAsStream(SAMPLE_COOKIES + name);
+        if (stream == null)
+        {
+            throw new IOException(String.format("Sample cookie %s not found on the classpath", name));
+        }
+        
+        Map<String, String> values = new HashMap<String, String>();
+        try (BufferedReader reader = new BufferedReader(new InputStreamReader(stream, StandardCharsets.UTF_8)))
+        {
+            String line;
+            while ((line = reader.readLine()) != null)
+            {
+                String[] parts = line.split(" ", 2);
+                if (parts.length > 1)
+                {
+                    values.put(parts[0].replaceAll(":", ""), parts[1]);
+                }
+            }
+        }
+        
+        return values;
+    }
+    
+    /**
+     * @return  secret key of the sample user details cookie
+     * @throws IOException
+     */
+    public static String userDetailsKey() throws IOException
+    {
+        return readSample("user-details-cookie-info").get("encoded_secret_key");
+    }
+    
+    /**
+     * Get a user details cookie, either the sample or a generated one
+     * 
+     * @param size  {@link #SAMPLE}, or the number of bytes of user data to generate
+     * @return  encoded cookie value, using the sample's secret key
+     * @throws IOException
+     * @throws GeneralSecurityException
+     */
+    public static String userDetailsCookie(String size) throws IOException, GeneralSecurityException
+    {
+        return userDetailsCookie(size, EncodingHandler.Format.CBC_HMAC);
+    }
+    
+    /**
+     * Get a user details cookie in a given format, either the sample or a
+     * generated one
+     * 
+     * @param size      {@link #SAMPLE}, or the number of bytes of user data to generate
+     * @param format    the scheme to encode with; the sample is re-encoded
+     *                  if it is not in the original format
+     * @return  encoded cookie value, using the sample's secret key
+     * @throws IOException
+     * @throws GeneralSecurityException
+     */
+    public static String userDetailsCookie(String size, EncodingHandler.Format format)
+            throws IOException, GeneralSecurityException
+    {
+        EncodingHandler encodingHandler = new EncodingHandler(userDetailsKey());
+        if (SAMPLE.equals(size))
+        {
+            String cookieValue = readSample("user-details-cookie-info").get("cookie_value");
+            if (format == EncodingHandler.Format.CBC_HMAC)
+            {
+                return cookieValue;
+            }
+            
+            try
+            {
+                return encodingHandler.encode(encodingHandler.decode(cookieValue), format);
+            }
+            catch (DecoderException | DecryptionException e)
+            {
+                throw new IOException("Sample cookie could not be decoded", e);
+            }
+        }
+        
+        StringBuilder userData = new StringBuilder();
+        for (int i = 0; i < Integer.parseInt(size); i++)
+        {
+            userData.append((char) ('a' + i % 26));
+        }
+        
+        return UserDetailsCookie.encode(encodingHandler, format, System.currentTimeMillis() / 1000,
+                "userid", new String[] { "token1", "token2" }, userData.toString());
+    }
+}
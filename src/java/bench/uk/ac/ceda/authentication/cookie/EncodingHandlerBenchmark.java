@@ -0,0 +1,95 @@
+package uk.ac.ceda.authentication.cookie;
+
+import java.util.concurrent.TimeUnit;
+
+import org.apache.commons.codec.DecoderException;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+/**
+ * Decoding a cookie value: structure checks, hex decoding, signature check
+ * and decryption, with the original AES-CBC and HMAC scheme and with AES-GCM,
+ * each with hex and base64url segments
+ * 
+ * @author William Tucker
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+public class EncodingHandlerBenchmark
+{
+    /**
+     * The sample cookie, or bytes of generated user data
+     */
+    @Param({CookieFixtures.SAMPLE, "64", "512", "1500"})
+    public String size;
+    
+    /**
+     * Scheme the cookie is encoded with
+     */
+    @Param({"CBC_HMAC", "GCM", "CBC_HMAC_BASE64", "GCM_BASE64"})
+    public EncodingHandler.Format format;
+    
+    private EncodingHandler encodingHandler;
+    private String cookieValue;
+    private String tampered;
+    
+    @Setup
+    public void setUp() throws Exception
+    {
+        encodingHandler = new EncodingHandler(CookieFixtures.userDetailsKey());
+        cookieValue = CookieFixtures.userDetailsCookie(size, format);
+        
+        // part of the digest or authentication tag in every format, and not
+        // the last character, whose unused base64url bits must stay zero
+        int index = cookieValue.length() - 3;
+        tampered = cookieValue.substring(0, index) + (cookieValue.charAt(index) == '0' ? '1' : '0') +
+                cookieValue.substring(index + 1);
+    }
+    
+    @Benchmark
+    public String decode() throws DecoderException, DecryptionException
+    {
+        return encodingHandler.decode(cookieValue);
+    }
+    
+    @Benchmark
+    public int decodeIntoContext() throws DecoderException, DecryptionException
+    {
+        EncodingHandler.DecodeContext context = encodingHandler.acquireContext();
+        try
+        {
+            return encodingHandler.decode(cookieValue, context);
+        }
+        finally
+        {
+            encodingHandler.releaseContext(context);
+        }
+    }
+    
+    @Benchmark
+    public int decodeBadSignature() throws DecoderException, DecryptionException
+    {
+        EncodingHandler.DecodeContext context = encodingHandler.acquireContext();
+        try
+        {
+            return encodingHandler.decode(tampered, context);
+        }
+        finally
+        {
+            encodingHandler.releaseContext(context);
+        }
+    }
+    
+    @Benchmark
+    public boolean isWellFormed()
+    {
+        return encodingHandler.isWellFormed(cookieValue);
+    }
+}
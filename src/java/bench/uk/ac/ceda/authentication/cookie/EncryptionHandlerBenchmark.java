@@ -0,0 +1,63 @@
+package uk.ac.ceda.authentication.cookie;
+
+import java.util.concurrent.TimeUnit;
+
+import org.apache.commons.codec.binary.Base64;
+import org.apache.commons.codec.binary.Hex;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+/**
+ * Decrypting cookie cipher text
+ * 
+ * @author William Tucker
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+public class EncryptionHandlerBenchmark
+{
+    /**
+     * The sample cookie, or bytes of generated user data
+     */
+    @Param({CookieFixtures.SAMPLE, "64", "512", "1500"})
+    public String size;
+    
+    private EncryptionHandler encryptionHandler;
+    private byte[] cipherText;
+    private byte[] iv;
+    
+    @State(Scope.Thread)
+    public static class Buffers
+    {
+        byte[] plainText = new byte[EncodingHandler.MAX_ENCODED_LENGTH / 2];
+    }
+    
+    @Setup
+    public void setUp() throws Exception
+    {
+        encryptionHandler = new EncryptionHandler(Base64.decodeBase64(CookieFixtures.userDetailsKey()));
+        
+        String[] parts = CookieFixtures.userDetailsCookie(size).split(EncodingHandler.DEFAULT_DELIMITER);
+        cipherText = Hex.decodeHex(parts[0].toCharArray());
+        iv = Hex.decodeHex(parts[1].toCharArray());
+    }
+    
+    @Benchmark
+    public int decrypt(Buffers buffers) throws DecryptionException
+    {
+        return encryptionHandler.decrypt(cipherText, 0, cipherText.length, iv, 0, buffers.plainText);
+    }
+    
+    @Benchmark
+    public String decryptToString() throws DecryptionException
+    {
+        return encryptionHandler.decrypt(cipherText, iv);
+    }
+}
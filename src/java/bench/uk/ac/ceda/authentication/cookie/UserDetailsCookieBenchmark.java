@@ -0,0 +1,64 @@
+package uk.ac.ceda.authentication.cookie;
+
+import java.util.concurrent.TimeUnit;
+
+import org.apache.commons.codec.DecoderException;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.infra.Blackhole;
+
+/**
+ * Parsing a user details cookie from its encoded value
+ * 
+ * @author William Tucker
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+public class UserDetailsCookieBenchmark
+{
+    /**
+     * The sample cookie, or bytes of generated user data
+     */
+    @Param({CookieFixtures.SAMPLE, "64", "512", "1500"})
+    public String size;
+    
+    /**
+     * Scheme the cookie is encoded with
+     */
+    @Param({"CBC_HMAC", "GCM", "CBC_HMAC_BASE64", "GCM_BASE64"})
+    public EncodingHandler.Format format;
+    
+    private EncodingHandler encodingHandler;
+    private String cookieValue;
+    
+    @Setup
+    public void setUp() throws Exception
+    {
+        encodingHandler = new EncodingHandler(CookieFixtures.userDetailsKey());
+        cookieValue = CookieFixtures.userDetailsCookie(size, format);
+    }
+    
+    @Benchmark
+    public String parseUserID() throws DecoderException, DecryptionException
+    {
+        return UserDetailsCookie.parseCookie(cookieValue, encodingHandler).getUserID();
+    }
+    
+    @Benchmark
+    public void parseAllFields(Blackhole blackhole) throws DecoderException, DecryptionException
+    {
+        UserDetailsCookie cookie = UserDetailsCookie.parseCookie(cookieValue, encodingHandler);
+        
+        blackhole.consume(cookie.getUserID());
+        blackhole.consume(cookie.getTimestamp());
+        blackhole.consume(cookie.getTokens());
+        blackhole.consume(cookie.getUserData());
+    }
+}
@@ -0,0 +1,124 @@
+package uk.ac.ceda.authentication.filter;
+
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import javax.servlet.ServletException;
+import javax.servlet.http.Cookie;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+import uk.ac.ceda.authentication.cookie.CookieFixtures;
+
+/**
+ * Requests passing through the filter, over stub requests and responses
+ * 
+ * @author William Tucker
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+public class AuthenticateRedirectFilterBenchmark
+{
+    private static final String COOKIE_NAME = "session";
+    private static final String REQUEST_URL = "http://localhost:8080/thredds/fileServer/dataset/file.nc";
+    
+    /**
+     * The sample cookie, or bytes of generated user data
+     */
+    @Param({CookieFixtures.SAMPLE, "512"})
+    public String size;
+    
+    /**
+     * Whether parsed cookies are cached
+     */
+    @Param({"true", "false"})
+    public boolean cache;
+    
+    /**
+     * Whether the session cookie is found by scanning the Cookie header
+     */
+    @Param({"false", "true"})
+    public boolean cookieHeaderScan;
+    
+    private AuthenticateRedirectFilter filter;
+    
+    private HttpServletRequest authenticatedRequest;
+    private HttpServletRequest anonymousRequest;
+    private HttpServletRequest badCookieRequest;
+    private HttpServletResponse response;
+    
+    @Setup(Level.Trial)
+    public void setUp() throws Exception
+    {
+        Map<String, String> parameters = new HashMap<String, String>();
+        parameters.put("authenticateUrl", "https://auth.ceda.ac.uk/account/signin/");
+        parameters.put("sessionCookieName", COOKIE_NAME);
+        parameters.put("secretKey", CookieFixtures.userDetailsKey());
+        parameters.put("requestAttribute", "id");
+        parameters.put("cacheSize", cache ? "10000" : "0");
+        parameters.put("cookieHeaderScan", Boolean.toString(cookieHeaderScan));
+        parameters.put("jmxMetrics", "false");
+        
+        filter = new AuthenticateRedirectFilter();
+        filter.init(ServletStubs.config(parameters));
+        
+        String cookieValue = CookieFixtures.userDetailsCookie(size);
+        authenticatedRequest = requestWithCookie(cookieValue);
+        
+        char first = cookieValue.charAt(0);
+        badCookieRequest = requestWithCookie((first == '0' ? '1' : '0') + cookieValue.substring(1));
+        
+        anonymousRequest = ServletStubs.request(REQUEST_URL, "a=1&b=2", "_ga=GA1.2.3", new Cookie[0]);
+        response = ServletStubs.response();
+    }
+    
+    @TearDown(Level.Trial)
+    public void tearDown()
+    {
+        filter.destroy();
+    }
+    
+    private static HttpServletRequest requestWithCookie(String cookieValue)
+    {
+        String header = String.format("_ga=GA1.2.3; %s=%s; theme=dark", COOKIE_NAME, cookieValue);
+        Cookie[] cookies = new Cookie[] {
+                new Cookie("_ga", "GA1.2.3"),
+                new Cookie(COOKIE_NAME, cookieValue),
+                new Cookie("theme", "dark"),
+        };
+        
+        return ServletStubs.request(REQUEST_URL, null, header, cookies);
+    }
+    
+    @Benchmark
+    public void authenticated() throws IOException, ServletException
+    {
+        filter.doFilter(authenticatedRequest, response, ServletStubs.NO_OP_CHAIN);
+    }
+    
+    @Benchmark
+    public void redirected() throws IOException, ServletException
+    {
+        filter.doFilter(anonymousRequest, response, ServletStubs.NO_OP_CHAIN);
+    }
+    
+    @Benchmark
+    public void rejected() throws IOException, ServletException
+    {
+        filter.doFilter(badCookieRequest, response, ServletStubs.NO_OP_CHAIN);
+    }
+}
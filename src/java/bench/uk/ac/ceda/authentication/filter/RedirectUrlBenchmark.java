@@ -0,0 +1,62 @@
+package uk.ac.ceda.authentication.filter;
+
+import java.util.concurrent.TimeUnit;
+
+import javax.servlet.ServletException;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+/**
+ * Building the URL that unauthenticated requests are redirected to
+ * 
+ * @author William Tucker
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+public class RedirectUrlBenchmark
+{
+    /**
+     * Kind of return URL
+     */
+    @Param({"short", "query", "unicode"})
+    public String url;
+    
+    private AuthenticateRedirectFilter filter;
+    private String returnUrl;
+    
+    @Setup
+    public void setUp() throws ServletException
+    {
+        filter = new AuthenticateRedirectFilter();
+        filter.setAuthenticateUrl("https://auth.ceda.ac.uk/account/signin/?next=1");
+        filter.setReturnQueryName("r");
+        
+        switch (url)
+        {
+        case "short":
+            returnUrl = "http://localhost:8080/";
+            break;
+        case "query":
+            returnUrl = "http://localhost:8080/thredds/dodsC/dataset/file.nc.ascii?time[0:1:100],lat[0:1:10]&x=a b";
+            break;
+        default:
+            returnUrl = "http://localhost:8080/data/caf\u00e9/\u20ac/\ud83d\ude00/file name.txt";
+            break;
+        }
+    }
+    
+    @Benchmark
+    public String getRedirectUrl()
+    {
+        // the CharSequence overload, as used by the filter
+        return filter.getRedirectUrl((CharSequence) returnUrl);
+    }
+}
@@ -0,0 +1,111 @@
+package uk.ac.ceda.authentication.filter;
+
+import java.lang.reflect.Proxy;
+import java.util.Collections;
+import java.util.Map;
+
+import javax.servlet.FilterChain;
+import javax.servlet.FilterConfig;
+import javax.servlet.http.Cookie;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+/**
+ * Minimal request, response and config objects for driving the filter
+ * outside a container. Only the methods the filter calls do anything; the
+ * rest return null or zero.
+ * 
+ * @author William Tucker
+ */
+final class ServletStubs
+{
+    static final FilterChain NO_OP_CHAIN = (request, response) -> {};
+    
+    private ServletStubs()
+    {
+    }
+    
+    /**
+     * Create a request
+     * 
+     * @param url           request URL
+     * @param query         query string, may be null
+     * @param cookieHeader  raw Cookie header, may be null
+     * @param cookies       parsed cookies, may be null
+     * @return  the request
+     */
+    static HttpServletRequest request(String url, String query, String cookieHeader, Cookie[] cookies)
+    {
+        return (HttpServletRequest) Proxy.newProxyInstance(ServletStubs.class.getClassLoader(),
+                new Class<?>[] { HttpServletRequest.class }, (proxy, method, args) -> {
+                    switch (method.getName())
+                    {
+                    case "getRequestURL":
+                        return new StringBuffer(url);
+                    case "getQueryString":
+                        return query;
+                    case "getCookies":
+                        return cookies;
+                    case "getHeaders":
+                        return cookieHeader == null ? Collections.emptyEnumeration() :
+                                Collections.enumeration(Collections.singletonList(cookieHeader));
+                    default:
+                        return defaultValue(method.getReturnType());
+                    }
+                });
+    }
+    
+    /**
+     * Create a response that discards everything sent to it
+     * 
+     * @return  the response
+     */
+    static HttpServletResponse response()
+    {
+        return (HttpServletResponse) Proxy.newProxyInstance(ServletStubs.class.getClassLoader(),
+                new Class<?>[] { HttpServletResponse.class },
+                (proxy, method, args) -> defaultValue(method.getReturnType()));
+    }
+    
+    /**
+     * Create a filter config
+     * 
+     * @param parameters    init parameters
+     * @return  the config
+     */
+    static FilterConfig config(Map<String, String> parameters)
+    {
+        return (FilterConfig) Proxy.newProxyInstance(ServletStubs.class.getClassLoader(),
+                new Class<?>[] { FilterConfig.class }, (proxy, method, args) -> {
+                    switch (method.getName())
+                    {
+                    case "getInitParameter":
+                        return parameters.get(args[0]);
+                    case "getInitParameterNames":
+                        return Collections.enumeration(parameters.keySet());
+                    case "getFilterName":
+                        return "benchmark";
+                    default:
+                        return defaultValue(method.getReturnType());
+                    }
+                });
+    }
+    
+    private static Object defaultValue(Class<?> type)
+    {
+        if (type == boolean.class)
+        {
+            return false;
+        }
+        else if (type == int.class)
+        {
+            return 0;
+        }
+        else if (type == long.class)
+        {
+            return 0L;
+        }
+        
+        return null;
+    }
+}
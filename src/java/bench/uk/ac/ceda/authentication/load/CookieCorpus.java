@@ -0,0 +1,175 @@
+package uk.ac.ceda.authentication.load;
+
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.PrintStream;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.security.GeneralSecurityException;
+import java.security.SecureRandom;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.SplittableRandom;
+
+import org.apache.commons.codec.binary.Base64;
+
+import uk.ac.ceda.authentication.cookie.EncodingHandler;
+import uk.ac.ceda.authentication.cookie.UserDetailsCookie;
+
+/**
+ * Writes a corpus of user details cookies, one encoded value per line, for
+ * load tests.
+ * 
+ * Cookies are encoded as the authentication service encodes them and are
+ * streamed to the output as they are generated, so corpora of millions of
+ * cookies need no more memory than one. Lengths and counts are given either
+ * as a single number or as an inclusive range such as 4-16, in which case
+ * each cookie gets a random value from the range. Options are given as
+ * name=value arguments:
+ * 
+ * <pre>
+ *   count=100000       number of cookies
+ *   output=cookies.txt file to write, or - for standard output
+ *   key=               base64 encoded secret key; a new key is generated if not given
+ *   userIdLength=8     characters in each user ID
+ *   tokens=2           tokens in each cookie
+ *   userDataSize=16    characters of user data in each cookie
+ *   age=0              seconds before now that the cookies were created
+ *   seed=              seed for the cookie content; the iv is always random
+ *   format=CBC_HMAC    encoding scheme: CBC_HMAC, GCM, CBC_HMAC_BASE64 or GCM_BASE64
+ * </pre>
+ * 
+ * The secret key is printed in the same form as the Python generator's
+ * cookie info files. Cookies with tokens but no user data are read back by
+ * the filter as having user data only, as they are from the service.
+ * 
+ * @author William Tucker
+ */
+public class CookieCorpus
+{
+    private static final int KEY_LENGTH = 32;
+    private static final char[] ID_CHARACTERS = "abcdefghijklmnopqrstuvwxyz0123456789".toCharArray();
+    
+    private final Map<String, String> options;
+    
+    public CookieCorpus(Map<String, String> options)
+    {
+        this.options = options;
+    }
+    
+    public static void main(String[] args) throws Exception
+    {
+        Map<String, String> options = new HashMap<String, String>();
+        for (String arg: args)
+        {
+            String[] parts = arg.split("=", 2);
+            if (parts.length != 2)
+            {
+                throw new IllegalArgumentException(String.format("Expected name=value but got %s", arg));
+            }
+            options.put(parts[0], parts[1]);
+        }
+        
+        new CookieCorpus(options).run(System.err);
+    }
+    
+    private String option(String name, String defaultValue)
+    {
+        String value = this.options.get(name);
+        
+        return value == null || value.isEmpty() ? defaultValue : value;
+    }
+    
+    /**
+     * Generate the corpus
+     * 
+     * @param log   stream the key and progress are printed to
+     * @throws IOException
+     * @throws GeneralSecurityException
+     */
+    public void run(PrintStream log) throws IOException, GeneralSecurityException
+    {
+        long count = Long.parseLong(option("count", "100000"));
+        String output = option("output", "cookies.txt");
+        int[] userIdLength = parseRange(option("userIdLength", "8"));
+        int[] tokens = parseRange(option("tokens", "2"));
+        int[] userDataSize = parseRange(option("userDataSize", "16"));
+        long time = System.currentTimeMillis() / 1000 - Long.parseLong(option("age", "0"));
+        EncodingHandler.Format format = EncodingHandler.Format.valueOf(option("format", "CBC_HMAC"));
+        
+        String key = option("key", null);
+        if (key == null)
+        {
+            byte[] keyBytes = new byte[KEY_LENGTH];
+            new SecureRandom().nextBytes(keyBytes);
+            key = Base64.encodeBase64String(keyBytes);
+        }
+        log.printf("encoded_secret_key: %s%n", key);
+        
+        String seed = option("seed", null);
+        SplittableRandom random = seed == null ? new SplittableRandom() : new SplittableRandom(Long.parseLong(seed));
+        
+        EncodingHandler encodingHandler = new EncodingHandler(key);
+        
+        long start = System.nanoTime();
+        try (Writer writer = "-".equals(output) ?
+                new BufferedWriter(new OutputStreamWriter(System.out, StandardCharsets.US_ASCII), 1 << 16) :
+                Files.newBufferedWriter(Paths.get(output), StandardCharsets.US_ASCII))
+        {
+            for (long i = 0; i < count; i++)
+            {
+                String userID = randomString(random, pick(random, userIdLength), ID_CHARACTERS);
+                
+                String[] cookieTokens = new String[pick(random, tokens)];
+                for (int j = 0; j < cookieTokens.length; j++)
+                {
+                    cookieTokens[j] = "token" + (j + 1);
+                }
+                
+                String userData = randomString(random, pick(random, userDataSize), ID_CHARACTERS);
+                
+                writer.write(UserDetailsCookie.encode(encodingHandler, format, time, userID, cookieTokens,
+                        userData));
+                writer.write('\n');
+            }
+        }
+        
+        double elapsed = (System.nanoTime() - start) / 1e9;
+        log.printf("Wrote %d cookies to %s in %.1f s (%.0f/s)%n", count, output, elapsed, count / elapsed);
+    }
+    
+    /**
+     * Parse a number or an inclusive range of numbers such as 4-16
+     */
+    private static int[] parseRange(String value)
+    {
+        String[] parts = value.split("-", 2);
+        int min = Integer.parseInt(parts[0].trim());
+        int max = parts.length > 1 ? Integer.parseInt(parts[1].trim()) : min;
+        if (min < 0 || max < min)
+        {
+            throw new IllegalArgumentException(String.format("Invalid range %s", value));
+        }
+        
+        return new int[] { min, max };
+    }
+    
+    private static int pick(SplittableRandom random, int[] range)
+    {
+        return range[0] == range[1] ? range[0] : random.nextInt(range[0], range[1] + 1);
+    }
+    
+    private static String randomString(SplittableRandom random, int length, char[] characters)
+    {
+        char[] chars = new char[length];
+        for (int i = 0; i < length; i++)
+        {
+            chars[i] = characters[random.nextInt(characters.length)];
+        }
+        
+        return new String(chars);
+    }
+}
@@ -0,0 +1,155 @@
+package uk.ac.ceda.authentication.load;
+
+import java.io.File;
+import java.nio.file.Files;
+import java.util.Map;
+
+import javax.xml.parsers.DocumentBuilderFactory;
+
+import org.apache.catalina.Context;
+import org.apache.catalina.LifecycleException;
+import org.apache.catalina.connector.Connector;
+import org.apache.catalina.core.StandardContext;
+import org.apache.catalina.startup.Tomcat;
+import org.apache.tomcat.util.descriptor.web.FilterDef;
+import org.apache.tomcat.util.descriptor.web.FilterMap;
+import org.w3c.dom.Document;
+import org.w3c.dom.Element;
+import org.w3c.dom.NodeList;
+
+import uk.ac.ceda.authentication.servlet.FilterCheck;
+
+/**
+ * Embedded Tomcat serving {@link FilterCheck} behind the filters declared in
+ * a web.xml, listening on a free local port
+ * 
+ * @author William Tucker
+ */
+public class EmbeddedServer
+{
+    private final Tomcat tomcat;
+    private final Connector connector;
+    
+    /**
+     * Constructor reading filters from a deployment descriptor
+     * 
+     * @param webXml            deployment descriptor declaring the filters
+     * @param paramOverrides    filter init parameters replacing those in the descriptor
+     * @param maxThreads        maximum number of request processing threads
+     * @throws Exception if the descriptor can't be read
+     */
+    public EmbeddedServer(File webXml, Map<String, String> paramOverrides, int maxThreads) throws Exception
+    {
+        File baseDir = Files.createTempDirectory("ceda-auth-filter-load").toFile();
+        baseDir.deleteOnExit();
+        
+        this.tomcat = new Tomcat();
+        this.tomcat.setBaseDir(baseDir.getAbsolutePath());
+        
+        this.connector = new Connector("HTTP/1.1");
+        this.connector.setPort(0);
+        this.connector.setProperty("address", "127.0.0.1");
+        this.connector.setProperty("maxThreads", Integer.toString(maxThreads));
+        this.connector.setProperty("maxKeepAliveRequests", "-1");
+        this.tomcat.setConnector(this.connector);
+        
+        StandardContext context = (StandardContext) this.tomcat.addContext("", baseDir.getAbsolutePath());
+        
+        // the context is only stopped at exit, so skip the leak clean up that
+        // newer JVMs don't allow
+        context.setClearReferencesObjectStreamClassCaches(false);
+        context.setClearReferencesRmiTargets(false);
+        context.setClearReferencesThreadLocals(false);
+        
+        addFilters(context, webXml, paramOverrides);
+        
+        // mapped as by the servlet's own annotation
+        Tomcat.addServlet(context, "FilterCheck", new FilterCheck());
+        context.addServletMappingDecoded("/", "FilterCheck");
+    }
+    
+    /**
+     * Declare the filters and filter mappings from a deployment descriptor
+     */
+    private static void addFilters(Context context, File webXml, Map<String, String> paramOverrides)
+            throws Exception
+    {
+        Document document = DocumentBuilderFactory.newInstance().newDocumentBuilder().parse(webXml);
+        
+        NodeList filters = document.getElementsByTagName("filter");
+        for (int i = 0; i < filters.getLength(); i++)
+        {
+            Element filter = (Element) filters.item(i);
+            
+            FilterDef filterDef = new FilterDef();
+            filterDef.setFilterName(text(filter, "filter-name"));
+            filterDef.setFilterClass(text(filter, "filter-class"));
+            
+            // the first value given for a parameter is the one used
+            for (Map.Entry<String, String> override: paramOverrides.entrySet())
+            {
+                filterDef.addInitParameter(override.getKey(), override.getValue());
+            }
+            NodeList params = filter.getElementsByTagName("init-param");
+            for (int j = 0; j < params.getLength(); j++)
+            {
+                Element param = (Element) params.item(j);
+                filterDef.addInitParameter(text(param, "param-name"), text(param, "param-value"));
+            }
+            
+            context.addFilterDef(filterDef);
+        }
+        
+        NodeList mappings = document.getElementsByTagName("filter-mapping");
+        for (int i = 0; i < mappings.getLength(); i++)
+        {
+            Element mapping = (Element) mappings.item(i);
+            
+            FilterMap filterMap = new FilterMap();
+            filterMap.setFilterName(text(mapping, "filter-name"));
+            
+            NodeList patterns = mapping.getElementsByTagName("url-pattern");
+            for (int j = 0; j < patterns.getLength(); j++)
+            {
+                filterMap.addURLPatternDecoded(patterns.item(j).getTextContent().trim());
+            }
+            
+            context.addFilterMap(filterMap);
+        }
+    }
+    
+    private static String text(Element parent, String name)
+    {
+        return parent.getElementsByTagName(name).item(0).getTextContent().trim();
+    }
+    
+    /**
+     * Start the server
+     * 
+     * @return  the port the server is listening on
+     * @throws LifecycleException
+     */
+    public int start() throws LifecycleException
+    {
+        this.tomcat.start();
+        
+        return this.connector.getLocalPort();
+    }
+    
+    /**
+     * Stop the server
+     * 
+     * @throws LifecycleException
+     */
+    public void stop() throws LifecycleException
+    {
+        try
+        {
+            this.tomcat.stop();
+        }
+        finally
+        {
+            this.tomcat.destroy();
+        }
+    }
+}
@@ -0,0 +1,468 @@
+package uk.ac.ceda.authentication.load;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.PrintStream;
+import java.io.Writer;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.security.GeneralSecurityException;
+import java.security.SecureRandom;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.commons.codec.binary.Base64;
+
+import uk.ac.ceda.authentication.cookie.EncodingHandler;
+import uk.ac.ceda.authentication.cookie.UserDetailsCookie;
+
+/**
+ * End to end load test of the filter running in an embedded Tomcat.
+ * 
+ * Worker threads send requests over keep-alive connections as fast as the
+ * server answers them, with a configurable mix of valid, expired, tampered
+ * and missing session cookies, and the throughput and latency percentiles
+ * are reported for each kind of request, along with the status codes
+ * returned. Expired cookies carry a timestamp two days old; the filter does
+ * not check cookie age, so they are expected to be accepted. Options are
+ * given as name=value arguments:
+ * 
+ * <pre>
+ *   threads=16         number of client threads
+ *   serverThreads=200  maximum number of server request threads
+ *   warmup=10          seconds of traffic before measuring starts
+ *   duration=30        seconds of measured traffic
+ *   users=1000         number of distinct valid session cookies
+ *   mix=valid:70,expired:10,tampered:10,missing:10
+ *   webXml=WebContent/WEB-INF/web.xml
+ *   output=load-result.json
+ * </pre>
+ * 
+ * @author William Tucker
+ */
+public class LoadHarness
+{
+    private static final String[] KINDS = { "valid", "expired", "tampered", "missing" };
+    private static final String PATH = "/data/dataset/file.nc";
+    private static final long EXPIRED_AGE = TimeUnit.DAYS.toSeconds(2);
+    
+    private final Map<String, String> options;
+    
+    private String cookieName;
+    private String[][] cookies;
+    private int[] mix;
+    
+    public LoadHarness(Map<String, String> options)
+    {
+        this.options = options;
+    }
+    
+    public static void main(String[] args) throws Exception
+    {
+        Map<String, String> options = new HashMap<String, String>();
+        for (String arg: args)
+        {
+            String[] parts = arg.split("=", 2);
+            if (parts.length != 2)
+            {
+                throw new IllegalArgumentException(String.format("Expected name=value but got %s", arg));
+            }
+            options.put(parts[0], parts[1]);
+        }
+        
+        new LoadHarness(options).run(System.out);
+    }
+    
+    private String option(String name, String defaultValue)
+    {
+        String value = this.options.get(name);
+        
+        return value == null ? defaultValue : value;
+    }
+    
+    private int intOption(String name, int defaultValue)
+    {
+        return Integer.parseInt(option(name, Integer.toString(defaultValue)));
+    }
+    
+    /**
+     * Start the server, run the load and report the results
+     * 
+     * @param out   stream the report is printed to
+     * @throws Exception
+     */
+    public void run(PrintStream out) throws Exception
+    {
+        int threads = intOption("threads", 16);
+        int warmup = intOption("warmup", 10);
+        int duration = intOption("duration", 30);
+        
+        // keep a connection per client thread alive between requests
+        System.setProperty("http.maxConnections", Integer.toString(threads));
+        
+        this.mix = parseMix(option("mix", "valid:70,expired:10,tampered:10,missing:10"));
+        
+        // the server gets a fresh key that the generated cookies are encoded with
+        byte[] keyBytes = new byte[32];
+        new SecureRandom().nextBytes(keyBytes);
+        String key = Base64.encodeBase64String(keyBytes);
+        
+        Map<String, String> overrides = new HashMap<String, String>();
+        overrides.put("secretKey", key);
+        overrides.put("jmxMetrics", "false");
+        this.cookieName = "ceda.session.load";
+        overrides.put("sessionCookieName", this.cookieName);
+        
+        this.cookies = createCookies(key, intOption("users", 1000));
+        
+        File webXml = new File(option("webXml", "WebContent/WEB-INF/web.xml"));
+        EmbeddedServer server = new EmbeddedServer(webXml, overrides, intOption("serverThreads", 200));
+        int port = server.start();
+        URL url = new URL("http", "127.0.0.1", port, PATH);
+        
+        try
+        {
+            out.printf("Running %d client threads against %s%n", threads, url);
+            out.printf("Warming up for %d s%n", warmup);
+            runLoad(url, threads, TimeUnit.SECONDS.toNanos(warmup));
+            
+            out.printf("Measuring for %d s%n", duration);
+            long start = System.nanoTime();
+            Worker[] workers = runLoad(url, threads, TimeUnit.SECONDS.toNanos(duration));
+            double elapsed = (System.nanoTime() - start) / 1e9;
+            
+            report(workers, elapsed, out);
+        }
+        finally
+        {
+            server.stop();
+        }
+    }
+    
+    private int[] parseMix(String mix)
+    {
+        int[] weights = new int[KINDS.length];
+        for (String entry: mix.split(","))
+        {
+            String[] parts = entry.split(":");
+            int kind = Arrays.asList(KINDS).indexOf(parts[0].trim());
+            if (kind < 0 || parts.length != 2)
+            {
+                throw new IllegalArgumentException(String.format("Invalid mix entry %s", entry));
+            }
+            weights[kind] = Integer.parseInt(parts[1].trim());
+        }
+        
+        // cumulative weights for picking a kind
+        for (int i = 1; i < weights.length; i++)
+        {
+            weights[i] += weights[i - 1];
+        }
+        if (weights[weights.length - 1] <= 0)
+        {
+            throw new IllegalArgumentException("Mix weights must add up to more than zero");
+        }
+        
+        return weights;
+    }
+    
+    private static String[][] createCookies(String key, int users) throws GeneralSecurityException
+    {
+        EncodingHandler encodingHandler = new EncodingHandler(key);
+        String[] tokens = { "token1", "token2" };
+        long now = System.currentTimeMillis() / 1000;
+        
+        String[][] cookies = new String[KINDS.length][];
+        cookies[0] = new String[users];
+        cookies[1] = new String[users];
+        cookies[2] = new String[users];
+        cookies[3] = new String[] { null };
+        
+        for (int i = 0; i < users; i++)
+        {
+            String userID = "user" + i;
+            cookies[0][i] = UserDetailsCookie.encode(encodingHandler, now, userID, tokens, "");
+            cookies[1][i] = UserDetailsCookie.encode(encodingHandler, now - EXPIRED_AGE, userID, tokens, "");
+            
+            // change one character of the cipher text, so only the signature check fails
+            String valid = cookies[0][i];
+            int position = i % valid.indexOf('-');
+            char c = valid.charAt(position);
+            cookies[2][i] = valid.substring(0, position) + (c == '0' ? '1' : '0') + valid.substring(position + 1);
+        }
+        
+        return cookies;
+    }
+    
+    private Worker[] runLoad(URL url, int threads, long durationNanos) throws InterruptedException
+    {
+        long deadline = System.nanoTime() + durationNanos;
+        CountDownLatch done = new CountDownLatch(threads);
+        
+        Worker[] workers = new Worker[threads];
+        for (int i = 0; i < threads; i++)
+        {
+            workers[i] = new Worker(url, deadline, done);
+            Thread thread = new Thread(workers[i], "load-" + i);
+            thread.setDaemon(true);
+            thread.start();
+        }
+        done.await();
+        
+        return workers;
+    }
+    
+    private void report(Worker[] workers, double elapsed, PrintStream out) throws IOException
+    {
+        Map<String, Object> result = new LinkedHashMap<String, Object>();
+        result.put("seconds", elapsed);
+        
+        long errors = 0;
+        for (Worker worker: workers)
+        {
+            errors += worker.errors;
+        }
+        result.put("errors", errors);
+        
+        out.printf(Locale.ROOT, "%-10s %10s %10s %10s %10s %10s  %s%n",
+                "kind", "requests", "req/s", "p50 ms", "p99 ms", "p999 ms", "status codes");
+        
+        List<Map<String, Object>> kinds = new ArrayList<Map<String, Object>>();
+        for (int kind = 0; kind <= KINDS.length; kind++)
+        {
+            Samples samples = new Samples();
+            Map<Integer, Long> statuses = new TreeMap<Integer, Long>();
+            for (Worker worker: workers)
+            {
+                for (int k = 0; k < KINDS.length; k++)
+                {
+                    if (k == kind || kind == KINDS.length)
+                    {
+                        samples.addAll(worker.samples[k]);
+                        worker.statuses.get(k).forEach((status, count) -> statuses.merge(status, count, Long::sum));
+                    }
+                }
+            }
+            samples.sort();
+            
+            String name = kind < KINDS.length ? KINDS[kind] : "total";
+            out.printf(Locale.ROOT, "%-10s %10d %10.0f %10.3f %10.3f %10.3f  %s%n",
+                    name, samples.size, samples.size / elapsed, samples.percentile(50) / 1e6,
+                    samples.percentile(99) / 1e6, samples.percentile(99.9) / 1e6, statuses);
+            
+            Map<String, Object> summary = new LinkedHashMap<String, Object>();
+            summary.put("kind", name);
+            summary.put("requests", samples.size);
+            summary.put("requestsPerSecond", samples.size / elapsed);
+            summary.put("p50Millis", samples.percentile(50) / 1e6);
+            summary.put("p99Millis", samples.percentile(99) / 1e6);
+            summary.put("p999Millis", samples.percentile(99.9) / 1e6);
+            Map<String, Object> statusCounts = new LinkedHashMap<String, Object>();
+            statuses.forEach((status, count) -> statusCounts.put(status.toString(), count));
+            summary.put("statusCodes", statusCounts);
+            kinds.add(summary);
+        }
+        result.put("kinds", kinds);
+        
+        if (errors > 0)
+        {
+            out.printf("%d requests failed with an I/O error%n", errors);
+        }
+        
+        String output = option("output", null);
+        if (output != null)
+        {
+            try (Writer writer = Files.newBufferedWriter(Paths.get(output), StandardCharsets.UTF_8))
+            {
+                writeJson(result, writer);
+            }
+            out.printf("Results written to %s%n", output);
+        }
+    }
+    
+    private static void writeJson(Object value, Writer writer) throws IOException
+    {
+        if (value instanceof Map)
+        {
+            writer.write('{');
+            String separator = "";
+            for (Map.Entry<?, ?> entry: ((Map<?, ?>) value).entrySet())
+            {
+                writer.write(separator);
+                writer.write('"' + entry.getKey().toString() + "\":");
+                writeJson(entry.getValue(), writer);
+                separator = ",";
+            }
+            writer.write('}');
+        }
+        else if (value instanceof List)
+        {
+            writer.write('[');
+            String separator = "";
+            for (Object item: (List<?>) value)
+            {
+                writer.write(separator);
+                writeJson(item, writer);
+                separator = ",";
+            }
+            writer.write(']');
+        }
+        else if (value instanceof Number)
+        {
+            writer.write(value.toString());
+        }
+        else
+        {
+            writer.write('"' + value.toString() + '"');
+        }
+    }
+    
+    /**
+     * Growable array of latencies in nanoseconds
+     */
+    private static class Samples
+    {
+        long[] values = new long[1024];
+        int size;
+        
+        void add(long value)
+        {
+            if (this.size == this.values.length)
+            {
+                this.values = Arrays.copyOf(this.values, this.size * 2);
+            }
+            this.values[this.size++] = value;
+        }
+        
+        void addAll(Samples samples)
+        {
+            for (int i = 0; i < samples.size; i++)
+            {
+                add(samples.values[i]);
+            }
+        }
+        
+        void sort()
+        {
+            Arrays.sort(this.values, 0, this.size);
+        }
+        
+        long percentile(double percentile)
+        {
+            if (this.size == 0)
+            {
+                return 0;
+            }
+            int index = (int) Math.ceil(this.size * percentile / 100) - 1;
+            
+            return this.values[Math.max(0, Math.min(index, this.size - 1))];
+        }
+    }
+    
+    /**
+     * Client thread sending requests until the deadline
+     */
+    private class Worker implements Runnable
+    {
+        final URL url;
+        final long deadline;
+        final CountDownLatch done;
+        
+        final Samples[] samples = new Samples[KINDS.length];
+        final List<Map<Integer, Long>> statuses = new ArrayList<Map<Integer, Long>>(KINDS.length);
+        long errors;
+        
+        final byte[] buffer = new byte[8192];
+        
+        Worker(URL url, long deadline, CountDownLatch done)
+        {
+            this.url = url;
+            this.deadline = deadline;
+            this.done = done;
+            
+            for (int i = 0; i < KINDS.length; i++)
+            {
+                this.samples[i] = new Samples();
+                this.statuses.add(new HashMap<Integer, Long>());
+            }
+        }
+        
+        @Override
+        public void run()
+        {
+            try
+            {
+                ThreadLocalRandom random = ThreadLocalRandom.current();
+                int total = mix[mix.length - 1];
+                while (System.nanoTime() < this.deadline)
+                {
+                    int pick = random.nextInt(total);
+                    int kind = 0;
+                    while (pick >= mix[kind])
+                    {
+                        kind++;
+                    }
+                    
+                    String[] choices = cookies[kind];
+                    String cookie = choices[random.nextInt(choices.length)];
+                    
+                    long start = System.nanoTime();
+                    try
+                    {
+                        int status = send(cookie);
+                        this.samples[kind].add(System.nanoTime() - start);
+                        this.statuses.get(kind).merge(status, 1L, Long::sum);
+                    }
+                    catch (IOException e)
+                    {
+                        this.errors++;
+                    }
+                }
+            }
+            finally
+            {
+                this.done.countDown();
+            }
+        }
+        
+        private int send(String cookie) throws IOException
+        {
+            HttpURLConnection connection = (HttpURLConnection) this.url.openConnection();
+            connection.setInstanceFollowRedirects(false);
+            if (cookie != null)
+            {
+                connection.setRequestProperty("Cookie", cookieName + "=" + cookie);
+            }
+            
+            int status = connection.getResponseCode();
+            
+            // read the whole body so the connection can be reused
+            InputStream body = status < 400 ? connection.getInputStream() : connection.getErrorStream();
+            if (body != null)
+            {
+                try (InputStream stream = body)
+                {
+                    while (stream.read(this.buffer) >= 0)
+                    {
+                        ;
+                    }
+                }
+            }
+            
+            return status;
+        }
+    }
+}
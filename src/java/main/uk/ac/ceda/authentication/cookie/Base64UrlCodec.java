@@ -0,0 +1,182 @@
+package uk.ac.ceda.authentication.cookie;
+
+/**
+ * Table driven decoding of unpadded base64url text straight into caller
+ * supplied buffers, and the matching encoding.
+ * 
+ * Only the canonical encoding of each byte sequence is accepted: unused
+ * bits in the last character must be zero, so no two values decode to the
+ * same bytes.
+ * 
+ * @author William Tucker
+ */
+final class Base64UrlCodec
+{
+    private static final byte[] VALUES = new byte[128];
+    private static final char[] DIGITS =
+            "ABCDEFGHIJKLMNOPQRSTUVWXYZabcdefghijklmnopqrstuvwxyz0123456789-_".toCharArray();
+    
+    static
+    {
+        for (int i = 0; i < VALUES.length; i++)
+        {
+            VALUES[i] = -1;
+        }
+        for (int i = 0; i < DIGITS.length; i++)
+        {
+            VALUES[DIGITS[i]] = (byte) i;
+        }
+    }
+    
+    private Base64UrlCodec()
+    {
+    }
+    
+    /**
+     * @param   byteCount   number of bytes
+     * @return  number of characters encoding them
+     */
+    static int encodedLength(int byteCount)
+    {
+        return (4 * byteCount + 2) / 3;
+    }
+    
+    /**
+     * @param   length  number of characters
+     * @return  number of bytes they encode, or -1 if no byte sequence is
+     *          encoded with that many characters
+     */
+    static int decodedLength(int length)
+    {
+        return length % 4 == 1 ? -1 : 3 * length / 4;
+    }
+    
+    /**
+     * Decode a region of base64url text
+     * 
+     * @param   text    text containing the characters
+     * @param   start   index of the first character
+     * @param   end     index after the last character
+     * @param   out     buffer receiving the decoded bytes
+     * @param   offset  position in the buffer of the first decoded byte
+     * @return  number of bytes decoded, or -1 if the text is not a
+     *          canonical encoding
+     */
+    static int decode(CharSequence text, int start, int end, byte[] out, int offset)
+    {
+        if (decodedLength(end - start) < 0)
+        {
+            return -1;
+        }
+        
+        // accumulate invalid characters rather than branching on every one
+        int invalid = 0;
+        int position = offset;
+        int i = start;
+        for (; i + 4 <= end; i += 4)
+        {
+            int a = value(text.charAt(i));
+            int b = value(text.charAt(i + 1));
+            int c = value(text.charAt(i + 2));
+            int d = value(text.charAt(i + 3));
+            
+            invalid |= a | b | c | d;
+            int bits = a << 18 | b << 12 | c << 6 | d;
+            out[position++] = (byte) (bits >> 16);
+            out[position++] = (byte) (bits >> 8);
+            out[position++] = (byte) bits;
+        }
+        
+        int remaining = end - i;
+        if (remaining == 2)
+        {
+            int a = value(text.charAt(i));
+            int b = value(text.charAt(i + 1));
+            
+            invalid |= a | b | ((b & 0xf) == 0 ? 0 : -1);
+            out[position++] = (byte) (a << 2 | b >> 4);
+        }
+        else if (remaining == 3)
+        {
+            int a = value(text.charAt(i));
+            int b = value(text.charAt(i + 1));
+            int c = value(text.charAt(i + 2));
+            
+            invalid |= a | b | c | ((c & 0x3) == 0 ? 0 : -1);
+            int bits = a << 12 | b << 6 | c;
+            out[position++] = (byte) (bits >> 10);
+            out[position++] = (byte) (bits >> 2);
+        }
+        
+        return invalid < 0 ? -1 : position - offset;
+    }
+    
+    /**
+     * Encode bytes as unpadded base64url, appending to a builder
+     * 
+     * @param   bytes   bytes to encode
+     * @param   out     builder receiving the characters
+     * @return  the builder
+     */
+    static StringBuilder encode(byte[] bytes, StringBuilder out)
+    {
+        int i = 0;
+        for (; i + 3 <= bytes.length; i += 3)
+        {
+            int bits = (bytes[i] & 0xff) << 16 | (bytes[i + 1] & 0xff) << 8 | bytes[i + 2] & 0xff;
+            out.append(DIGITS[bits >> 18]).append(DIGITS[bits >> 12 & 0x3f])
+                    .append(DIGITS[bits >> 6 & 0x3f]).append(DIGITS[bits & 0x3f]);
+        }
+        
+        int remaining = bytes.length - i;
+        if (remaining == 1)
+        {
+            int bits = (bytes[i] & 0xff) << 4;
+            out.append(DIGITS[bits >> 6]).append(DIGITS[bits & 0x3f]);
+        }
+        else if (remaining == 2)
+        {
+            int bits = ((bytes[i] & 0xff) << 8 | bytes[i + 1] & 0xff) << 2;
+            out.append(DIGITS[bits >> 12]).append(DIGITS[bits >> 6 & 0x3f]).append(DIGITS[bits & 0x3f]);
+        }
+        
+        return out;
+    }
+    
+    /**
+     * Check that a region of text is a canonical base64url encoding
+     * 
+     * @param   text    text to check
+     * @param   start   index of the first character
+     * @param   end     index after the last character
+     * @return  whether the text could be decoded
+     */
+    static boolean isBase64Url(CharSequence text, int start, int end)
+    {
+        int length = end - start;
+        if (decodedLength(length) < 0)
+        {
+            return false;
+        }
+        
+        int invalid = 0;
+        for (int i = start; i < end; i++)
+        {
+            invalid |= value(text.charAt(i));
+        }
+        if (invalid < 0)
+        {
+            return false;
+        }
+        
+        // unused bits of the last character
+        int unused = length % 4 == 2 ? 0xf : length % 4 == 3 ? 0x3 : 0;
+        
+        return length == 0 || (value(text.charAt(end - 1)) & unused) == 0;
+    }
+    
+    private static int value(char c)
+    {
+        return c < 128 ? VALUES[c] : -1;
+    }
+}
@@ -0,0 +1,302 @@
+package uk.ac.ceda.authentication.cookie;
+
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+
+import javax.crypto.Mac;
+import javax.crypto.ShortBufferException;
+
+import org.apache.commons.codec.DecoderException;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+/**
+ * The authentication service's original scheme: AES-CBC encryption of text
+ * padded with spaces and an HMAC-SHA256 signature, laid out as
+ * {@code cipherText-iv-digest} in hex or as {@code cipherText.iv.digest} in
+ * base64url.
+ * 
+ * The original hex format signs only the encoded cipher text, so the iv
+ * can be altered without detection. New formats sign everything before the
+ * cipher text (the key identifier and version prefix), then the iv and
+ * then the cipher text bytes.
+ * 
+ * @author William Tucker
+ */
+class CbcHmacCodec implements CookieCodec
+{
+    private final SegmentEncoding encoding;
+    private final char delimiter;
+    private final EncryptionHandler encryptionHandler;
+    private final boolean signsPrefixAndIv;
+    
+    private volatile LatencyHistogram signatureLatency;
+    private volatile LatencyHistogram decryptLatency;
+    
+    private static final Log LOG = LogFactory.getLog(CbcHmacCodec.class);
+    
+    /**
+     * Constructor taking the cipher for the secret key
+     * 
+     * @param   encryptionHandler   cipher for the secret key
+     * @param   encoding            text encoding of the segments
+     * @param   signsPrefixAndIv    whether the signature covers the prefix
+     *                              and iv as well as the cipher text
+     */
+    CbcHmacCodec(EncryptionHandler encryptionHandler, SegmentEncoding encoding, boolean signsPrefixAndIv)
+    {
+        this.encoding = encoding;
+        this.delimiter = encoding.getDelimiter();
+        this.encryptionHandler = encryptionHandler;
+        this.signsPrefixAndIv = signsPrefixAndIv;
+    }
+    
+    @Override
+    public int getIvLength()
+    {
+        return EncryptionHandler.BLOCK_SIZE;
+    }
+    
+    @Override
+    public boolean isWellFormed(String message, int start)
+    {
+        long delimiters = findDelimiters(message, start);
+        if (delimiters < 0)
+        {
+            return false;
+        }
+        
+        int length = message.length();
+        int ivStart = (int) (delimiters >>> 32);
+        int digestStart = (int) delimiters;
+        
+        return hasValidSegmentLengths(length, start, ivStart, digestStart) &&
+                this.encoding.isValid(message, start, ivStart - 1) &&
+                this.encoding.isValid(message, ivStart, digestStart - 1) &&
+                this.encoding.isValid(message, digestStart, length);
+    }
+    
+    @Override
+    public int decode(String message, int start, EncodingHandler.DecodeContext context)
+            throws DecoderException, DecryptionException
+    {
+        long delimiters = findDelimiters(message, start);
+        if (delimiters < 0)
+        {
+            throw new DecoderException("Invalid cookie format");
+        }
+        
+        int length = message.length();
+        int ivStart = (int) (delimiters >>> 32);
+        int digestStart = (int) delimiters;
+        if (!hasValidSegmentLengths(length, start, ivStart, digestStart))
+        {
+            throw new DecoderException("Invalid cookie segment length");
+        }
+        
+        int cipherTextLength = ivStart - 1 - start;
+        int cipherTextBytes = this.encoding.decode(message, start, ivStart - 1, context.cipherText, 0);
+        if (cipherTextBytes < 0 ||
+                this.encoding.decode(message, ivStart, digestStart - 1, context.iv, 0) < 0 ||
+                this.encoding.decode(message, digestStart, length, context.digest, 0) < 0)
+        {
+            throw new DecoderException("Invalid character in cookie");
+        }
+        
+        LatencyHistogram signatureLatency = this.signatureLatency;
+        long timer = signatureLatency == null ? 0 : System.nanoTime();
+        
+        if (LOG.isDebugEnabled())
+            LOG.debug("Verifying signature");
+        
+        int signedLength = 0;
+        if (this.signsPrefixAndIv)
+        {
+            updateMac(context.mac, message, start, context.iv, context.cipherText, cipherTextBytes);
+        }
+        else
+        {
+            // the signature covers the encoded cipher text
+            signedLength = cipherTextLength;
+            for (int i = 0; i < cipherTextLength; i++)
+            {
+                context.signedText[i] = (byte) message.charAt(start + i);
+            }
+        }
+        boolean verified = verifySignature(context, signedLength);
+        
+        if (signatureLatency != null)
+        {
+            signatureLatency.record(System.nanoTime() - timer);
+        }
+        
+        if (!verified)
+        {
+            if (LOG.isDebugEnabled())
+                LOG.debug("Digests do not match");
+            
+            return -1;
+        }
+        
+        if (LOG.isDebugEnabled())
+            LOG.debug("Decrypting bytes");
+        
+        LatencyHistogram decryptLatency = this.decryptLatency;
+        timer = decryptLatency == null ? 0 : System.nanoTime();
+        
+        int plainTextLength = this.encryptionHandler.decrypt(context.cipherText, 0, cipherTextBytes,
+                context.iv, 0, context.plainText);
+        
+        if (decryptLatency != null)
+        {
+            decryptLatency.record(System.nanoTime() - timer);
+        }
+        
+        return this.encryptionHandler.trimPadding(context.plainText, plainTextLength);
+    }
+    
+    @Override
+    public void encode(byte[] plainText, int length, byte[] iv, EncodingHandler.DecodeContext context,
+            StringBuilder encoded) throws GeneralSecurityException
+    {
+        byte[] cipherText = this.encryptionHandler.encrypt(plainText, length, iv);
+        
+        int start = encoded.length();
+        this.encoding.encode(cipherText, encoded);
+        
+        byte[] digest;
+        if (this.signsPrefixAndIv)
+        {
+            updateMac(context.mac, encoded, start, iv, cipherText, cipherText.length);
+            digest = context.mac.doFinal();
+        }
+        else
+        {
+            // the signature covers the encoded cipher text
+            digest = context.mac.doFinal(encoded.substring(start).getBytes(StandardCharsets.US_ASCII));
+        }
+        
+        this.encoding.encode(iv, encoded.append(this.delimiter));
+        this.encoding.encode(digest, encoded.append(this.delimiter));
+    }
+    
+    @Override
+    public void close()
+    {
+        this.encryptionHandler.close();
+    }
+    
+    @Override
+    public void setLatencyHistograms(LatencyHistogram signatureLatency, LatencyHistogram decryptLatency)
+    {
+        this.signatureLatency = signatureLatency;
+        this.decryptLatency = decryptLatency;
+    }
+    
+    /**
+     * Feed a MAC the text signed by the newer formats: the prefix, one byte
+     * per character as it is ASCII in any valid value, then the iv and the
+     * cipher text bytes
+     * 
+     * @param   mac             the MAC to update
+     * @param   message         the encoded text
+     * @param   prefixEnd       index of the cipher text segment
+     * @param   iv              encryption iv
+     * @param   cipherText      cipher text bytes
+     * @param   cipherTextBytes number of cipher text bytes
+     */
+    private static void updateMac(Mac mac, CharSequence message, int prefixEnd, byte[] iv,
+            byte[] cipherText, int cipherTextBytes)
+    {
+        for (int i = 0; i < prefixEnd; i++)
+        {
+            mac.update((byte) message.charAt(i));
+        }
+        mac.update(iv, 0, EncryptionHandler.BLOCK_SIZE);
+        mac.update(cipherText, 0, cipherTextBytes);
+    }
+    
+    /**
+     * Locate the two delimiters in a single scan
+     * 
+     * @param   message   the encoded text
+     * @param   start     index of the cipher text segment
+     * @return  start of the iv segment in the high 32 bits and start of the
+     *          digest segment in the low 32 bits, or -1 if there are not
+     *          exactly two delimiters
+     */
+    private long findDelimiters(String message, int start)
+    {
+        int ivStart = -1;
+        int digestStart = -1;
+        for (int i = start; i < message.length(); i++)
+        {
+            if (message.charAt(i) == this.delimiter)
+            {
+                if (ivStart < 0)
+                {
+                    ivStart = i + 1;
+                }
+                else if (digestStart < 0)
+                {
+                    digestStart = i + 1;
+                }
+                else
+                {
+                    return -1;
+                }
+            }
+        }
+        
+        if (digestStart < 0)
+        {
+            return -1;
+        }
+        
+        return (long) ivStart << 32 | digestStart;
+    }
+    
+    /**
+     * Check the encoded segments have the lengths of whole cipher blocks,
+     * one iv and one digest
+     */
+    private boolean hasValidSegmentLengths(int length, int start, int ivStart, int digestStart)
+    {
+        int cipherTextBytes = this.encoding.decodedLength(ivStart - 1 - start);
+        
+        return cipherTextBytes > 0 && cipherTextBytes % EncryptionHandler.BLOCK_SIZE == 0 &&
+                ivStart - 1 - start == this.encoding.encodedLength(cipherTextBytes) &&
+                digestStart - 1 - ivStart == this.encoding.encodedLength(EncryptionHandler.BLOCK_SIZE) &&
+                length - digestStart == this.encoding.encodedLength(EncodingHandler.MAC_LENGTH);
+    }
+    
+    /**
+     * Verifies the signature of encrypted text with a digest using the
+     * current thread's MAC.
+     * 
+     * The digests are compared in constant time so that the comparison does
+     * not reveal how much of a forged digest is correct.
+     * 
+     * @param   context         buffers holding the signed text and digest
+     * @param   signedLength    length of the signed text left in the
+     *                          buffer, after any already fed to the MAC
+     * @return  whether the signature matched or not
+     */
+    private static boolean verifySignature(EncodingHandler.DecodeContext context, int signedLength)
+    {
+        Mac mac = context.mac;
+        mac.update(context.signedText, 0, signedLength);
+        try
+        {
+            mac.doFinal(context.calculatedDigest, 0);
+        }
+        catch (ShortBufferException e)
+        {
+            // the buffer is sized for the algorithm
+            throw new IllegalStateException(e);
+        }
+        
+        return MessageDigest.isEqual(context.calculatedDigest, context.digest);
+    }
+}
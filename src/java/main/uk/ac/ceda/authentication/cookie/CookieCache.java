@@ -0,0 +1,269 @@
+package uk.ac.ceda.authentication.cookie;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Bounded, expiring cache of values parsed from raw cookie values.
+ * 
+ * Entries are spread over independently locked segments so that concurrent
+ * requests rarely contend. Each segment uses a segmented LRU policy: new
+ * entries go into a probationary area and are only promoted to the protected
+ * area when they are hit again, so a burst of one-off cookies cannot flush out
+ * the sessions that are actually in use.
+ * 
+ * @author William Tucker
+ */
+public class CookieCache<V>
+{
+    public static int MAX_SEGMENTS = 16;
+    public static int PROTECTED_PERCENT = 80;
+    
+    private final Segment<V>[] segments;
+    private final int segmentMask;
+    private final long ttlNanos;
+    
+    private final LongAdder hitCount = new LongAdder();
+    private final LongAdder missCount = new LongAdder();
+    private final LongAdder evictionCount = new LongAdder();
+    
+    /**
+     * Constructor specifying the cache bounds
+     * 
+     * @param maxSize   maximum number of entries held
+     * @param ttl       time an entry stays valid after it is added
+     * @param unit      unit of the ttl argument
+     */
+    public CookieCache(int maxSize, long ttl, TimeUnit unit)
+    {
+        if (maxSize <= 0)
+        {
+            throw new IllegalArgumentException("Cache size must be positive");
+        }
+        
+        int segmentCount = 1;
+        while (segmentCount < MAX_SEGMENTS && segmentCount * 2 <= maxSize)
+        {
+            segmentCount *= 2;
+        }
+        
+        @SuppressWarnings("unchecked")
+        Segment<V>[] segments = (Segment<V>[]) new Segment<?>[segmentCount];
+        this.segments = segments;
+        for (int i = 0; i < segmentCount; i++)
+        {
+            // share the remainder out so the total matches maxSize
+            int capacity = maxSize / segmentCount + (i < maxSize % segmentCount ? 1 : 0);
+            this.segments[i] = new Segment<V>(capacity);
+        }
+        
+        this.segmentMask = segmentCount - 1;
+        this.ttlNanos = unit.toNanos(ttl);
+    }
+    
+    /**
+     * Look up the value cached for a cookie
+     * 
+     * @param cookieValue   raw cookie value
+     * @return  the cached value, or null if absent or expired
+     */
+    public V get(String cookieValue)
+    {
+        V value = segmentFor(cookieValue).get(cookieValue, System.nanoTime());
+        if (value == null)
+        {
+            this.missCount.increment();
+        }
+        else
+        {
+            this.hitCount.increment();
+        }
+        
+        return value;
+    }
+    
+    /**
+     * Add the value parsed from a cookie to the cache
+     * 
+     * @param cookieValue   raw cookie value
+     * @param value         parsed value
+     */
+    public void put(String cookieValue, V value)
+    {
+        long expiry = System.nanoTime() + this.ttlNanos;
+        if (segmentFor(cookieValue).put(cookieValue, value, expiry))
+        {
+            this.evictionCount.increment();
+        }
+    }
+    
+    /**
+     * Remove every entry from the cache
+     */
+    public void clear()
+    {
+        for (Segment<V> segment: this.segments)
+        {
+            segment.clear();
+        }
+    }
+    
+    /**
+     * Get the number of entries currently cached, including any that have
+     * expired but not yet been removed
+     * 
+     * @return  number of entries
+     */
+    public int size()
+    {
+        int size = 0;
+        for (Segment<V> segment: this.segments)
+        {
+            size += segment.size();
+        }
+        
+        return size;
+    }
+    
+    /**
+     * @return  number of lookups that found a value
+     */
+    public long getHitCount()
+    {
+        return this.hitCount.sum();
+    }
+    
+    /**
+     * @return  number of lookups that found no value
+     */
+    public long getMissCount()
+    {
+        return this.missCount.sum();
+    }
+    
+    /**
+     * @return  number of entries dropped to make room for new ones
+     */
+    public long getEvictionCount()
+    {
+        return this.evictionCount.sum();
+    }
+    
+    private Segment<V> segmentFor(String cookieValue)
+    {
+        int hash = cookieValue.hashCode();
+        hash ^= hash >>> 16;
+        
+        return this.segments[hash & this.segmentMask];
+    }
+    
+    /**
+     * Cached value and its expiry time
+     */
+    private static class Entry<V>
+    {
+        final V value;
+        final long expiry;
+        
+        Entry(V value, long expiry)
+        {
+            this.value = value;
+            this.expiry = expiry;
+        }
+    }
+    
+    /**
+     * Independently locked part of the cache
+     */
+    private static class Segment<V>
+    {
+        private final int capacity;
+        private final int protectedCapacity;
+        
+        // both maps are kept in least to most recently used order
+        private final LinkedHashMap<String, Entry<V>> probation;
+        private final LinkedHashMap<String, Entry<V>> protect;
+        
+        Segment(int capacity)
+        {
+            this.capacity = capacity;
+            this.protectedCapacity = Math.max(1, capacity * PROTECTED_PERCENT / 100);
+            
+            this.probation = new LinkedHashMap<String, Entry<V>>(16, 0.75f, true);
+            this.protect = new LinkedHashMap<String, Entry<V>>(16, 0.75f, true);
+        }
+        
+        synchronized V get(String key, long now)
+        {
+            Entry<V> entry = this.protect.get(key);
+            if (entry != null)
+            {
+                if (entry.expiry - now <= 0)
+                {
+                    this.protect.remove(key);
+                    return null;
+                }
+                
+                return entry.value;
+            }
+            
+            entry = this.probation.remove(key);
+            if (entry == null || entry.expiry - now <= 0)
+            {
+                return null;
+            }
+            
+            // second hit; promote the entry
+            this.protect.put(key, entry);
+            if (this.protect.size() > this.protectedCapacity)
+            {
+                Iterator<Map.Entry<String, Entry<V>>> eldest = this.protect.entrySet().iterator();
+                Map.Entry<String, Entry<V>> demoted = eldest.next();
+                eldest.remove();
+                
+                this.probation.put(demoted.getKey(), demoted.getValue());
+            }
+            
+            return entry.value;
+        }
+        
+        synchronized boolean put(String key, V value, long expiry)
+        {
+            Entry<V> entry = new Entry<V>(value, expiry);
+            if (this.protect.containsKey(key))
+            {
+                this.protect.put(key, entry);
+                return false;
+            }
+            
+            this.probation.put(key, entry);
+            if (this.probation.size() + this.protect.size() <= this.capacity)
+            {
+                return false;
+            }
+            
+            // never evict the entry that has just been added
+            Map<String, Entry<V>> victims = this.probation.size() > 1 || this.protect.isEmpty() ?
+                    this.probation : this.protect;
+            Iterator<Entry<V>> eldest = victims.values().iterator();
+            eldest.next();
+            eldest.remove();
+            
+            return true;
+        }
+        
+        synchronized void clear()
+        {
+            this.probation.clear();
+            this.protect.clear();
+        }
+        
+        synchronized int size()
+        {
+            return this.probation.size() + this.protect.size();
+        }
+    }
+}
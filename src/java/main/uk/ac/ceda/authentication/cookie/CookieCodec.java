@@ -0,0 +1,73 @@
+package uk.ac.ceda.authentication.cookie;
+
+import java.security.GeneralSecurityException;
+
+import org.apache.commons.codec.DecoderException;
+
+/**
+ * Scheme for protecting cookie content: how it is encrypted and
+ * authenticated, and how the result is laid out as text.
+ * 
+ * Implementations are thread safe and handle only the part of a value after
+ * any key identifier and version prefix, which {@link EncodingHandler}
+ * deals with.
+ * 
+ * @author William Tucker
+ */
+interface CookieCodec
+{
+    /**
+     * @return  length of the iv passed to
+     *          {@link #encode(byte[], int, byte[], EncodingHandler.DecodeContext, StringBuilder)}
+     */
+    int getIvLength();
+    
+    /**
+     * Cheaply check whether a value has the structure this scheme produces.
+     * No cryptographic work is done.
+     * 
+     * @param   message   the encoded text
+     * @param   start     index of the first segment
+     * @return  whether the value could be decoded
+     */
+    boolean isWellFormed(String message, int start);
+    
+    /**
+     * Authenticate and decrypt a value into the context's plain text buffer
+     * 
+     * @param   message   the encoded text
+     * @param   start     index of the first segment
+     * @param   context   decoding buffers held by the caller
+     * @return  length of the decoded text, or -1 if the value is not authentic
+     * @throws DecoderException if the value is malformed
+     * @throws DecryptionException 
+     */
+    int decode(String message, int start, EncodingHandler.DecodeContext context)
+            throws DecoderException, DecryptionException;
+    
+    /**
+     * Encrypt and authenticate some text, appending the encoded value
+     * 
+     * @param   plainText   buffer holding the text from position 0
+     * @param   length      length of the text
+     * @param   iv          encryption iv, of {@link #getIvLength()} bytes
+     * @param   context     decoding buffers held by the caller
+     * @param   encoded     receives the encoded value
+     * @throws GeneralSecurityException 
+     */
+    void encode(byte[] plainText, int length, byte[] iv, EncodingHandler.DecodeContext context,
+            StringBuilder encoded) throws GeneralSecurityException;
+    
+    /**
+     * Set histograms recording how long authentication and decryption take
+     * 
+     * @param   signatureLatency    histogram for signature checks, may be null
+     * @param   decryptLatency      histogram for decryption, may be null
+     */
+    void setLatencyHistograms(LatencyHistogram signatureLatency, LatencyHistogram decryptLatency);
+    
+    /**
+     * Drop any pooled cryptographic objects once the key is no longer used
+     */
+    void close();
+}
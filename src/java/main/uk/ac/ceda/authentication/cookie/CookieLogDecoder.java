@@ -0,0 +1,614 @@
+package uk.ac.ceda.authentication.cookie;
+
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+import org.apache.commons.codec.DecoderException;
+import org.apache.commons.codec.digest.DigestUtils;
+
+/**
+ * Maps the session cookies recorded in a log file back to the users they
+ * belong to, for investigating incidents.
+ * 
+ * The log is memory mapped and scanned for {@code cookieName=value} in
+ * parallel on a fork/join pool, then each distinct cookie value is decoded
+ * once, also in parallel, however many times it appears. One line is
+ * written per distinct value, in order of first appearance, with tab
+ * separated columns:
+ * 
+ * <pre>
+ *   status      ok, invalid (failed its signature check), malformed,
+ *               too-long (longer than any valid value) or unknown-key
+ *   userID      user ID, or - if the cookie was not decoded
+ *   timestamp   cookie creation time, ISO 8601
+ *   tokens      comma separated tokens
+ *   count       number of times the value appears in the log
+ *   fingerprint first 16 hex digits of the SHA-256 of the cookie value
+ * </pre>
+ * 
+ * The cookie value itself is a credential, so it is not written; the
+ * fingerprint of a value found elsewhere can be matched against the output.
+ * Tabs, line breaks and backslashes in user IDs and tokens are escaped as
+ * {@code \t}, {@code \n}, {@code \r} and {@code \\}.
+ * 
+ * Options are given as name=value arguments:
+ * 
+ * <pre>
+ *   input=             log file to read
+ *   output=-           file to write, or - for standard output
+ *   key=               base64 encoded secret key
+ *   keyFile=           key ring properties file, as read by the filter, instead of key
+ *   cookieName=ceda.session.1  name the session cookie is logged under
+ *   threads=           number of threads; every hardware thread by default
+ * </pre>
+ * 
+ * @author William Tucker
+ */
+public class CookieLogDecoder
+{
+    public static String DEFAULT_COOKIE_NAME = "ceda.session.1";
+    
+    /**
+     * Size of log chunk scanned by a single task
+     */
+    public static int DEFAULT_SPLIT_SIZE = 4 << 20;
+    
+    /**
+     * Largest part of the log mapped at once; a mapping can't exceed 2GB
+     */
+    private static final long REGION_SIZE = 1L << 30;
+    
+    private final KeyRing keyRing;
+    private final byte[] pattern;
+    private final int splitSize;
+    
+    private final ConcurrentHashMap<String, Entry> entries = new ConcurrentHashMap<String, Entry>();
+    private final LongAdder occurrences = new LongAdder();
+    private final LongAdder decodes = new LongAdder();
+    
+    /**
+     * Constructor specifying the keys and the cookie to look for
+     * 
+     * @param keyRing       keys the cookies were encoded with
+     * @param cookieName    name the session cookie is logged under
+     * @param splitSize     size of log chunk scanned by a single task
+     */
+    public CookieLogDecoder(KeyRing keyRing, String cookieName, int splitSize)
+    {
+        this.keyRing = keyRing;
+        this.pattern = (cookieName + "=").getBytes(StandardCharsets.US_ASCII);
+        this.splitSize = splitSize;
+    }
+    
+    public static void main(String[] args) throws Exception
+    {
+        Map<String, String> options = new HashMap<String, String>();
+        for (String arg: args)
+        {
+            String[] parts = arg.split("=", 2);
+            if (parts.length != 2)
+            {
+                throw new IllegalArgumentException(String.format("Expected name=value but got %s", arg));
+            }
+            options.put(parts[0], parts[1]);
+        }
+        
+        String input = options.get("input");
+        if (input == null)
+        {
+            throw new IllegalArgumentException("No input log given");
+        }
+        
+        KeyRing keyRing;
+        if (options.containsKey("keyFile"))
+        {
+            keyRing = KeyRing.load(Paths.get(options.get("keyFile")));
+        }
+        else if (options.containsKey("key"))
+        {
+            keyRing = new KeyRing(new EncodingHandler(options.get("key")));
+        }
+        else
+        {
+            throw new IllegalArgumentException("No key or keyFile given");
+        }
+        
+        String cookieName = options.getOrDefault("cookieName", DEFAULT_COOKIE_NAME);
+        int threads = options.containsKey("threads") ?
+                Integer.parseInt(options.get("threads")) : Runtime.getRuntime().availableProcessors();
+        
+        CookieLogDecoder decoder = new CookieLogDecoder(keyRing, cookieName, DEFAULT_SPLIT_SIZE);
+        
+        long start = System.nanoTime();
+        ForkJoinPool pool = new ForkJoinPool(threads);
+        List<Entry> entries;
+        try
+        {
+            entries = decoder.decode(Paths.get(input), pool);
+        }
+        finally
+        {
+            pool.shutdown();
+        }
+        
+        String output = options.getOrDefault("output", "-");
+        try (Writer writer = "-".equals(output) ?
+                new BufferedWriter(new OutputStreamWriter(System.out, StandardCharsets.UTF_8), 1 << 16) :
+                Files.newBufferedWriter(Paths.get(output), StandardCharsets.UTF_8))
+        {
+            write(entries, writer);
+        }
+        
+        double elapsed = (System.nanoTime() - start) / 1e9;
+        System.err.printf("Found %d cookies, %d distinct, in %.1f s with %d threads%n",
+                decoder.getOccurrenceCount(), decoder.getDecodeCount(), elapsed, threads);
+    }
+    
+    /**
+     * Find and decode the cookies in a log file
+     * 
+     * @param log   the log file
+     * @param pool  pool to scan and decode on
+     * @return  an entry for each distinct cookie value, in order of first appearance
+     * @throws IOException
+     */
+    public List<Entry> decode(Path log, ForkJoinPool pool) throws IOException
+    {
+        try (FileChannel channel = FileChannel.open(log, StandardOpenOption.READ))
+        {
+            long size = channel.size();
+            List<ScanTask> tasks = new ArrayList<ScanTask>();
+            for (long start = 0; start < size; )
+            {
+                MappedByteBuffer region = channel.map(FileChannel.MapMode.READ_ONLY, start,
+                        Math.min(REGION_SIZE, size - start));
+                
+                // end the region after its last complete line
+                int end = region.limit();
+                if (start + end < size)
+                {
+                    int lastLine = lastIndexOf(region, (byte) '\n');
+                    if (lastLine >= 0)
+                    {
+                        end = lastLine + 1;
+                    }
+                }
+                
+                tasks.add(new ScanTask(region, start, 0, end));
+                start += end;
+            }
+            
+            for (ScanTask task: tasks)
+            {
+                pool.invoke(task);
+            }
+        }
+        
+        // decode each distinct value once
+        Entry[] distinct = this.entries.values().toArray(new Entry[0]);
+        pool.invoke(new DecodeTask(distinct, 0, distinct.length));
+        
+        Arrays.sort(distinct, Comparator.comparingLong(Entry::getFirstOffset));
+        
+        return Arrays.asList(distinct);
+    }
+    
+    /**
+     * Write entries as tab separated lines
+     * 
+     * @param entries   entries to write
+     * @param writer    writer receiving the lines
+     * @throws IOException
+     */
+    public static void write(List<Entry> entries, Writer writer) throws IOException
+    {
+        for (Entry entry: entries)
+        {
+            UserDetailsCookie cookie = entry.getCookie();
+            writer.write(entry.getStatus().getLabel());
+            writer.write('\t');
+            if (cookie == null)
+            {
+                writer.write('-');
+            }
+            else
+            {
+                writeEscaped(cookie.getUserID(), writer);
+            }
+            writer.write('\t');
+            
+            // the cookie's time holds the seconds from the cookie, not
+            // milliseconds, so ofEpochSecond is deliberate; a timestamp that
+            // could not be parsed is -1
+            long time = cookie == null ? -1 : cookie.getTime();
+            writer.write(time < 0 ? "-" : Instant.ofEpochSecond(time).toString());
+            writer.write('\t');
+            
+            String[] tokens = cookie == null ? null : cookie.getTokens();
+            if (tokens == null)
+            {
+                writer.write('-');
+            }
+            else
+            {
+                for (int i = 0; i < tokens.length; i++)
+                {
+                    if (i > 0)
+                    {
+                        writer.write(',');
+                    }
+                    writeEscaped(tokens[i], writer);
+                }
+            }
+            writer.write('\t');
+            writer.write(Long.toString(entry.getCount()));
+            writer.write('\t');
+            writer.write(entry.getFingerprint());
+            writer.write('\n');
+        }
+    }
+    
+    /**
+     * Write a field with the characters that would break a tab separated
+     * line escaped
+     */
+    private static void writeEscaped(String field, Writer writer) throws IOException
+    {
+        for (int i = 0; i < field.length(); i++)
+        {
+            char c = field.charAt(i);
+            switch (c)
+            {
+                case '\t':
+                    writer.write("\\t");
+                    break;
+                case '\n':
+                    writer.write("\\n");
+                    break;
+                case '\r':
+                    writer.write("\\r");
+                    break;
+                case '\\':
+                    writer.write("\\\\");
+                    break;
+                default:
+                    writer.write(c);
+            }
+        }
+    }
+    
+    /**
+     * @return  number of cookie values found in the log
+     */
+    public long getOccurrenceCount()
+    {
+        return this.occurrences.sum();
+    }
+    
+    /**
+     * @return  number of cookie values decoded
+     */
+    public long getDecodeCount()
+    {
+        return this.decodes.sum();
+    }
+    
+    /**
+     * Record a cookie value found in the log
+     */
+    private void record(String cookieValue, long offset)
+    {
+        this.occurrences.increment();
+        
+        Entry entry = this.entries.computeIfAbsent(cookieValue, Entry::new);
+        entry.count.increment();
+        entry.firstOffset.accumulateAndGet(offset, Math::min);
+    }
+    
+    /**
+     * Decode a cookie value with the key it names
+     */
+    private void decode(Entry entry)
+    {
+        this.decodes.increment();
+        
+        if (entry.cookieValue.length() > EncodingHandler.MAX_ENCODED_LENGTH)
+        {
+            entry.status = Status.TOO_LONG;
+            return;
+        }
+        
+        EncodingHandler encodingHandler = this.keyRing.getHandler(entry.cookieValue);
+        if (encodingHandler == null)
+        {
+            entry.status = Status.UNKNOWN_KEY;
+            return;
+        }
+        
+        try
+        {
+            UserDetailsCookie cookie = UserDetailsCookie.parseCookie(entry.cookieValue, encodingHandler);
+            if (cookie.getUserID() == null)
+            {
+                entry.status = Status.INVALID;
+            }
+            else
+            {
+                entry.cookie = cookie;
+                entry.status = Status.OK;
+            }
+        }
+        catch (DecoderException | DecryptionException | RuntimeException e)
+        {
+            entry.status = Status.MALFORMED;
+        }
+    }
+    
+    private static int lastIndexOf(MappedByteBuffer buffer, byte b)
+    {
+        for (int i = buffer.limit() - 1; i >= 0; i--)
+        {
+            if (buffer.get(i) == b)
+            {
+                return i;
+            }
+        }
+        
+        return -1;
+    }
+    
+    /**
+     * Characters that can appear in an encoded cookie value, including a
+     * key identifier and version prefix
+     */
+    private static boolean isValueByte(byte b)
+    {
+        return (b >= 'a' && b <= 'z') || (b >= 'A' && b <= 'Z') || (b >= '0' && b <= '9') ||
+                b == '-' || b == '_' || b == '.' || b == ':';
+    }
+    
+    /**
+     * Scans part of a mapped region of the log, splitting it at line ends
+     * until the parts are small enough
+     */
+    private class ScanTask extends RecursiveAction
+    {
+        private static final long serialVersionUID = 1L;
+        
+        private final MappedByteBuffer buffer;
+        private final long regionOffset;
+        private final int start;
+        private final int end;
+        
+        ScanTask(MappedByteBuffer buffer, long regionOffset, int start, int end)
+        {
+            this.buffer = buffer;
+            this.regionOffset = regionOffset;
+            this.start = start;
+            this.end = end;
+        }
+        
+        @Override
+        protected void compute()
+        {
+            if (this.end - this.start > splitSize)
+            {
+                int middle = this.start + (this.end - this.start) / 2;
+                while (middle < this.end && this.buffer.get(middle - 1) != '\n')
+                {
+                    middle++;
+                }
+                
+                if (middle < this.end)
+                {
+                    invokeAll(new ScanTask(this.buffer, this.regionOffset, this.start, middle),
+                            new ScanTask(this.buffer, this.regionOffset, middle, this.end));
+                    return;
+                }
+            }
+            
+            scan();
+        }
+        
+        private void scan()
+        {
+            byte[] pattern = CookieLogDecoder.this.pattern;
+            byte[] value = new byte[EncodingHandler.MAX_ENCODED_LENGTH];
+            
+            int last = this.end - pattern.length;
+            for (int i = this.start; i <= last; i++)
+            {
+                if (this.buffer.get(i) != pattern[0] || !matches(i, pattern) ||
+                        (i > 0 && isValueByte(this.buffer.get(i - 1))))
+                {
+                    continue;
+                }
+                
+                int valueStart = i + pattern.length;
+                if (valueStart < this.end && this.buffer.get(valueStart) == '"')
+                {
+                    valueStart++;
+                }
+                
+                int j = valueStart;
+                while (j < this.end && isValueByte(this.buffer.get(j)))
+                {
+                    j++;
+                }
+                
+                // values too long to be valid are kept whole, to be reported
+                // rather than cut short
+                int length = j - valueStart;
+                if (length > 0)
+                {
+                    byte[] bytes = length <= value.length ? value : new byte[length];
+                    for (int k = 0; k < length; k++)
+                    {
+                        bytes[k] = this.buffer.get(valueStart + k);
+                    }
+                    record(new String(bytes, 0, length, StandardCharsets.US_ASCII), this.regionOffset + i);
+                }
+                i = j - 1;
+            }
+        }
+        
+        private boolean matches(int index, byte[] pattern)
+        {
+            for (int k = 1; k < pattern.length; k++)
+            {
+                if (this.buffer.get(index + k) != pattern[k])
+                {
+                    return false;
+                }
+            }
+            
+            return true;
+        }
+    }
+    
+    /**
+     * Decodes a range of distinct entries
+     */
+    private class DecodeTask extends RecursiveAction
+    {
+        private static final long serialVersionUID = 1L;
+        
+        private static final int THRESHOLD = 256;
+        
+        private final Entry[] entries;
+        private final int start;
+        private final int end;
+        
+        DecodeTask(Entry[] entries, int start, int end)
+        {
+            this.entries = entries;
+            this.start = start;
+            this.end = end;
+        }
+        
+        @Override
+        protected void compute()
+        {
+            if (this.end - this.start > THRESHOLD)
+            {
+                int middle = (this.start + this.end) >>> 1;
+                invokeAll(new DecodeTask(this.entries, this.start, middle),
+                        new DecodeTask(this.entries, middle, this.end));
+                return;
+            }
+            
+            for (int i = this.start; i < this.end; i++)
+            {
+                decode(this.entries[i]);
+            }
+        }
+    }
+    
+    /**
+     * Outcome of decoding a cookie value
+     */
+    public enum Status
+    {
+        OK("ok"),
+        INVALID("invalid"),
+        MALFORMED("malformed"),
+        TOO_LONG("too-long"),
+        UNKNOWN_KEY("unknown-key");
+        
+        private final String label;
+        
+        private Status(String label)
+        {
+            this.label = label;
+        }
+        
+        public String getLabel()
+        {
+            return this.label;
+        }
+    }
+    
+    /**
+     * A distinct cookie value found in the log
+     */
+    public static class Entry
+    {
+        private static final int FINGERPRINT_LENGTH = 16;
+        
+        private final String cookieValue;
+        private final LongAdder count = new LongAdder();
+        private final AtomicLong firstOffset = new AtomicLong(Long.MAX_VALUE);
+        
+        private volatile Status status;
+        private volatile UserDetailsCookie cookie;
+        
+        Entry(String cookieValue)
+        {
+            this.cookieValue = cookieValue;
+        }
+        
+        public String getCookieValue()
+        {
+            return this.cookieValue;
+        }
+        
+        /**
+         * @return  first 16 hex digits of the SHA-256 of the cookie value,
+         *          which identifies it without revealing it
+         */
+        public String getFingerprint()
+        {
+            return DigestUtils.sha256Hex(this.cookieValue).substring(0, FINGERPRINT_LENGTH);
+        }
+        
+        /**
+         * @return  number of times the value appears in the log
+         */
+        public long getCount()
+        {
+            return this.count.sum();
+        }
+        
+        /**
+         * @return  position in the log of the value's first appearance
+         */
+        public long getFirstOffset()
+        {
+            return this.firstOffset.get();
+        }
+        
+        public Status getStatus()
+        {
+            return this.status;
+        }
+        
+        /**
+         * @return  the decoded cookie, or null if it could not be decoded
+         */
+        public UserDetailsCookie getCookie()
+        {
+            return this.cookie;
+        }
+    }
+}
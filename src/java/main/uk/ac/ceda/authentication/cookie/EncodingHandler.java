@@ -2,31 +2,105 @@ package uk.ac.ceda.authentication.cookie;
 
 import org.apache.commons.codec.binary.Base64;
 
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.security.InvalidKeyException;
+import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
+import java.security.SecureRandom;
 
+import javax.crypto.Mac;
 import javax.crypto.NoSuchPaddingException;
+import javax.crypto.spec.SecretKeySpec;
 
 import org.apache.commons.codec.DecoderException;
-import org.apache.commons.codec.binary.Hex;
 import org.apache.commons.codec.digest.HmacUtils;
-import org.apache.commons.logging.Log;
-import org.apache.commons.logging.LogFactory;
 
 /**
  * Class for parsing encoded cookie values.
  * 
+ * A handler is expensive to build but thread safe, so a single instance
+ * should be created per secret key and shared between requests. Once the
+ * key is retired, {@link #close()} drops the pooled MACs, ciphers and
+ * buffers.
+ * 
  * @author William Tucker
  */
 public class EncodingHandler
 {
     public static String DEFAULT_DELIMITER = "-";
+    public static String DEFAULT_MAC_ALGORITHM = "HmacSHA256";
+    public static int MAC_LENGTH = 32;
+    
+    /**
+     * Longest cookie value accepted; browsers do not store longer cookies
+     */
+    public static int MAX_ENCODED_LENGTH = 4096;
     
-    private String delimiter;
+    /**
+     * Separates an optional key identifier from the encoded value, as in
+     * {@code keyId:cipherText-iv-digest}
+     */
+    public static char KEY_ID_SEPARATOR = ':';
+    
+    /**
+     * Longest key identifier accepted
+     */
+    public static int MAX_KEY_ID_LENGTH = 32;
     
     private byte[] keyBytes;
-    private EncryptionHandler encryptionHandler;
+    private CookieCodec[] codecs;
+    private ObjectPool<DecodeContext> contexts;
     
-    private static final Log LOG = LogFactory.getLog(EncodingHandler.class);
+    private static final Format[] FORMATS = Format.values();
+    private static final SecureRandom RANDOM = new SecureRandom();
+    
+    /**
+     * Schemes a cookie value may be encoded with, each marked by a version
+     * prefix following any key identifier. Values without a prefix use the
+     * authentication service's original scheme, so all can be accepted
+     * while cookies are migrated from one to another. The base64url formats
+     * are a third shorter than their hex counterparts.
+     */
+    public enum Format
+    {
+        /**
+         * AES-CBC with an HMAC-SHA256 signature, as {@code cipherText-iv-digest}
+         */
+        CBC_HMAC(""),
+        
+        /**
+         * AES-GCM, as {@code v2.iv-cipherText}
+         */
+        GCM("v2."),
+        
+        /**
+         * AES-CBC with an HMAC-SHA256 signature, as
+         * {@code v3.cipherText.iv.digest} in base64url. Unlike the original
+         * format the signature also covers the prefix and the iv.
+         */
+        CBC_HMAC_BASE64("v3."),
+        
+        /**
+         * AES-GCM, as {@code v4.iv.cipherText} in base64url
+         */
+        GCM_BASE64("v4.");
+        
+        private final String prefix;
+        
+        private Format(String prefix)
+        {
+            this.prefix = prefix;
+        }
+        
+        /**
+         * @return  version prefix marking values in this format
+         */
+        public String getPrefix()
+        {
+            return this.prefix;
+        }
+    }
     
     /**
      * Constructor specifying the secret key used for encryption
@@ -37,62 +111,328 @@ public class EncodingHandler
      */
     public EncodingHandler(String key) throws NoSuchAlgorithmException, NoSuchPaddingException
     {
-        this.delimiter = DEFAULT_DELIMITER;
-        
         this.keyBytes = Base64.decodeBase64(key);
-        this.encryptionHandler = new EncryptionHandler(keyBytes);
+        
+        EncryptionHandler encryptionHandler = new EncryptionHandler(this.keyBytes);
+        this.codecs = new CookieCodec[FORMATS.length];
+        this.codecs[Format.CBC_HMAC.ordinal()] = new CbcHmacCodec(encryptionHandler, SegmentEncoding.HEX, false);
+        this.codecs[Format.GCM.ordinal()] = new GcmCodec(this.keyBytes, SegmentEncoding.HEX);
+        this.codecs[Format.CBC_HMAC_BASE64.ordinal()] =
+                new CbcHmacCodec(encryptionHandler, SegmentEncoding.BASE64URL, true);
+        this.codecs[Format.GCM_BASE64.ordinal()] = new GcmCodec(this.keyBytes, SegmentEncoding.BASE64URL);
+        
+        SecretKeySpec macKey = new SecretKeySpec(this.keyBytes, DEFAULT_MAC_ALGORITHM);
+        newMac(macKey);
+        
+        this.contexts = new ObjectPool<DecodeContext>(() -> new DecodeContext(newMac(macKey)));
+    }
+    
+    /**
+     * Create a MAC initialised with the secret key
+     * 
+     * @param   macKey  the secret key
+     * @return  the MAC
+     * @throws NoSuchAlgorithmException 
+     */
+    private static Mac newMac(SecretKeySpec macKey) throws NoSuchAlgorithmException
+    {
+        Mac mac = Mac.getInstance(DEFAULT_MAC_ALGORITHM);
+        try
+        {
+            mac.init(macKey);
+        }
+        catch (InvalidKeyException e)
+        {
+            throw new IllegalArgumentException("Invalid secret key", e);
+        }
+        
+        return mac;
     }
     
     /**
      * Decodes an encoded cookie value
      * 
      * @param   message   the text to decode
-     * @return  the decoded message
+     * @return  the decoded message, or null if the signature does not match
      * @throws DecoderException 
      * @throws DecryptionException 
      */
     public String decode(String message) throws DecoderException, DecryptionException
     {
-        String encodedCipherText;
-        String encodedIV;
-        String encodedDigest;
+        DecodeContext context = acquireContext();
         try
         {
-            String[] content = message.split(this.delimiter);
+            int length = decode(message, context);
+            if (length < 0)
+            {
+                return null;
+            }
             
-            encodedCipherText = content[0];
-            encodedIV = content[1];
-            encodedDigest = content[2];
+            return new String(context.plainText, 0, length, StandardCharsets.UTF_8);
+        }
+        finally
+        {
+            releaseContext(context);
         }
-        catch (ArrayIndexOutOfBoundsException e)
+    }
+    
+    /**
+     * Take a set of decoding buffers for the caller's exclusive use
+     * 
+     * @return  decoding buffers, to be given back with
+     *          {@link #releaseContext(DecodeContext)}
+     */
+    DecodeContext acquireContext()
+    {
+        return this.contexts.acquire();
+    }
+    
+    /**
+     * Give back decoding buffers once nothing refers to their content
+     * 
+     * @param   context   buffers taken with {@link #acquireContext()}
+     */
+    void releaseContext(DecodeContext context)
+    {
+        this.contexts.release(context);
+    }
+    
+    /**
+     * Decodes an encoded cookie value into a context's plain text buffer.
+     * 
+     * The value is checked for the expected structure before any
+     * cryptographic work is done. A key identifier prefix is skipped; it is
+     * up to the caller to pick the handler with the right key. The scheme is
+     * picked from the version prefix.
+     * 
+     * @param   message   the text to decode
+     * @param   context   decoding buffers held by the caller
+     * @return  length of the decoded text without padding, or -1 if the
+     *          signature does not match
+     * @throws DecoderException 
+     * @throws DecryptionException 
+     */
+    int decode(String message, DecodeContext context) throws DecoderException, DecryptionException
+    {
+        if (message.length() > MAX_ENCODED_LENGTH)
         {
-            throw new DecoderException("Invalid cookie format", e);
+            throw new DecoderException("Cookie value too long");
         }
         
-        byte[] cipherTextBytes = Hex.decodeHex(encodedCipherText.toCharArray());
-        byte[] ivBytes = Hex.decodeHex(encodedIV.toCharArray());
-        byte[] digestBytes = Hex.decodeHex(encodedDigest.toCharArray());
+        int start = getKeyIdLength(message) + 1;
+        Format format = getFormat(message, start);
         
-        String cookieContent = null;
-        if (this.keyBytes != null && cipherTextBytes != null && ivBytes != null && digestBytes != null)
+        return this.codecs[format.ordinal()].decode(message, start + format.prefix.length(), context);
+    }
+    
+    /**
+     * Encodes a value as the authentication service does: the text is padded
+     * with spaces to a whole number of blocks and encrypted with a random iv,
+     * and the hex encoded cipher text is signed. The inverse of
+     * {@link #decode(String)}.
+     * 
+     * @param   plainText   the text to encode
+     * @return  the encoded value, as {@code cipherText-iv-digest} in hex
+     * @throws GeneralSecurityException 
+     */
+    public String encode(String plainText) throws GeneralSecurityException
+    {
+        return encode(plainText, Format.CBC_HMAC);
+    }
+    
+    /**
+     * Encodes a value in a given format with a random iv
+     * 
+     * @param   plainText   the text to encode
+     * @param   format      the scheme to encode with
+     * @return  the encoded value, with the format's version prefix
+     * @throws GeneralSecurityException 
+     */
+    public String encode(String plainText, Format format) throws GeneralSecurityException
+    {
+        byte[] iv = new byte[this.codecs[format.ordinal()].getIvLength()];
+        RANDOM.nextBytes(iv);
+        
+        return encode(plainText, format, null, iv);
+    }
+    
+    /**
+     * Encodes a value in a given format with a random iv, prefixed with the
+     * identifier of the key. The base64url formats sign the identifier, so
+     * it must be added here rather than to the encoded value.
+     * 
+     * @param   plainText   the text to encode
+     * @param   format      the scheme to encode with
+     * @param   keyId       identifier of this handler's key in a {@link KeyRing}
+     * @return  the encoded value, as {@code keyId:} followed by the format's
+     *          version prefix
+     * @throws GeneralSecurityException 
+     */
+    public String encode(String plainText, Format format, String keyId) throws GeneralSecurityException
+    {
+        if (keyId.isEmpty() || keyId.length() > MAX_KEY_ID_LENGTH || keyId.indexOf(KEY_ID_SEPARATOR) >= 0)
+        {
+            throw new IllegalArgumentException(String.format("Invalid key identifier: %s", keyId));
+        }
+        
+        byte[] iv = new byte[this.codecs[format.ordinal()].getIvLength()];
+        RANDOM.nextBytes(iv);
+        
+        return encode(plainText, format, keyId, iv);
+    }
+    
+    /**
+     * Encodes a value in the original format with a given iv
+     * 
+     * @param   plainText   the text to encode
+     * @param   iv          encryption iv
+     * @return  the encoded value
+     * @throws GeneralSecurityException 
+     */
+    String encode(String plainText, byte[] iv) throws GeneralSecurityException
+    {
+        return encode(plainText, Format.CBC_HMAC, iv);
+    }
+    
+    /**
+     * Encodes a value in a given format with a given iv
+     * 
+     * @param   plainText   the text to encode
+     * @param   format      the scheme to encode with
+     * @param   iv          encryption iv
+     * @return  the encoded value
+     * @throws GeneralSecurityException 
+     */
+    String encode(String plainText, Format format, byte[] iv) throws GeneralSecurityException
+    {
+        return encode(plainText, format, null, iv);
+    }
+    
+    /**
+     * Encodes a value in a given format with a given iv and optional key
+     * identifier
+     * 
+     * @param   plainText   the text to encode
+     * @param   format      the scheme to encode with
+     * @param   keyId       key identifier to prefix, may be null
+     * @param   iv          encryption iv
+     * @return  the encoded value
+     * @throws GeneralSecurityException 
+     */
+    String encode(String plainText, Format format, String keyId, byte[] iv) throws GeneralSecurityException
+    {
+        byte[] plainTextBytes = plainText.getBytes(StandardCharsets.UTF_8);
+        
+        StringBuilder encoded = new StringBuilder((keyId == null ? 0 : keyId.length() + 1) +
+                format.prefix.length() +
+                2 * (plainTextBytes.length + 2 * EncryptionHandler.BLOCK_SIZE + MAC_LENGTH) + 2);
+        if (keyId != null)
         {
-            if (LOG.isDebugEnabled())
-                LOG.debug("Verifying signature");
-            if (VerifySignature(encodedCipherText.getBytes(), digestBytes, this.keyBytes))
+            encoded.append(keyId).append(KEY_ID_SEPARATOR);
+        }
+        encoded.append(format.prefix);
+        
+        DecodeContext context = acquireContext();
+        try
+        {
+            this.codecs[format.ordinal()].encode(plainTextBytes, plainTextBytes.length, iv, context, encoded);
+        }
+        finally
+        {
+            releaseContext(context);
+        }
+        
+        return encoded.toString();
+    }
+    
+    /**
+     * Drop the pooled MACs, ciphers and buffers once the key is no longer
+     * used. The handler still works afterwards, but allocates on every call.
+     */
+    public void close()
+    {
+        this.contexts.close();
+        for (CookieCodec codec: this.codecs)
+        {
+            codec.close();
+        }
+    }
+    
+    /**
+     * Set histograms recording how long signature checks and decryption
+     * take. AES-GCM checks and decrypts in one pass, recorded as decryption.
+     * 
+     * @param   signatureLatency    histogram for signature checks, may be null
+     * @param   decryptLatency      histogram for decryption, may be null
+     */
+    public void setLatencyHistograms(LatencyHistogram signatureLatency, LatencyHistogram decryptLatency)
+    {
+        for (CookieCodec codec: this.codecs)
+        {
+            codec.setLatencyHistograms(signatureLatency, decryptLatency);
+        }
+    }
+    
+    /**
+     * Cheaply checks whether a cookie value has the structure of an encoded
+     * value: its length, segment count, segment sizes and characters. No
+     * cryptographic work is done, so a value passing this check may still
+     * fail to decode.
+     * 
+     * @param   message   the text to check
+     * @return  whether the value could be decoded
+     */
+    public boolean isWellFormed(String message)
+    {
+        if (message.length() > MAX_ENCODED_LENGTH)
+        {
+            return false;
+        }
+        
+        int start = getKeyIdLength(message) + 1;
+        Format format = getFormat(message, start);
+        
+        return this.codecs[format.ordinal()].isWellFormed(message, start + format.prefix.length());
+    }
+    
+    /**
+     * Find the length of the key identifier prefixed to an encoded value
+     * 
+     * @param   message   the encoded text
+     * @return  length of the key identifier, or -1 if there is none
+     */
+    public static int getKeyIdLength(String message)
+    {
+        int end = Math.min(message.length(), MAX_KEY_ID_LENGTH + 1);
+        for (int i = 0; i < end; i++)
+        {
+            if (message.charAt(i) == KEY_ID_SEPARATOR)
             {
-                if (LOG.isDebugEnabled())
-                    LOG.debug("Decrypting bytes");
-                
-                cookieContent = this.encryptionHandler.decrypt(cipherTextBytes, ivBytes);
+                return i;
             }
-            else
+        }
+        
+        return -1;
+    }
+    
+    /**
+     * Find the format of an encoded value from its version prefix
+     * 
+     * @param   message   the encoded text
+     * @param   start     index following any key identifier
+     * @return  the format
+     */
+    private static Format getFormat(String message, int start)
+    {
+        for (Format format: FORMATS)
+        {
+            if (!format.prefix.isEmpty() && message.startsWith(format.prefix, start))
             {
-                if (LOG.isDebugEnabled())
-                    LOG.debug("Digests do not match");
+                return format;
             }
         }
         
-        return cookieContent;
+        return Format.CBC_HMAC;
     }
     
     /**
@@ -102,13 +442,15 @@ public class EncodingHandler
      * @param   digest      digest to compare as a byte array
      * @param   key         secret key as a byte array
      * @return  whether the signature matched or not
+     * @deprecated creates a new MAC for every call; use a shared
+     *             {@link EncodingHandler} instead
      */
+    @Deprecated
     public static boolean VerifySignature(byte[] cipherText, byte[] digest, byte[] key)
     {
-        String originalDigest = new String(digest);
-        String calculatedDigest = Sign(key, cipherText);
+        byte[] calculatedDigest = HmacUtils.hmacSha256(key, cipherText);
         
-        return calculatedDigest.equals(originalDigest);
+        return MessageDigest.isEqual(calculatedDigest, digest);
     }
     
     /**
@@ -117,7 +459,10 @@ public class EncodingHandler
      * @param   key     the secret key
      * @param   message text to sign
      * @return  the resulting digest
+     * @deprecated the digest is decoded with the platform charset, which is
+     *             lossy; compare raw digest bytes instead
      */
+    @Deprecated
     public static String Sign(byte[] key, byte[] message)
     {
         byte[] digestBytes = HmacUtils.hmacSha256(key, message);
@@ -126,4 +471,26 @@ public class EncodingHandler
         
         return digest;
     }
+    
+    /**
+     * MAC and scratch buffers for one decode at a time, pooled between
+     * decodes
+     */
+    static class DecodeContext
+    {
+        final Mac mac;
+        
+        final byte[] signedText = new byte[MAX_ENCODED_LENGTH];
+        final byte[] cipherText = new byte[MAX_ENCODED_LENGTH * 3 / 4];
+        final byte[] iv = new byte[EncryptionHandler.BLOCK_SIZE];
+        final byte[] digest = new byte[MAC_LENGTH];
+        final byte[] calculatedDigest = new byte[MAC_LENGTH];
+        final byte[] plainText = new byte[MAX_ENCODED_LENGTH * 3 / 4];
+        final byte[] unescapedText = new byte[MAX_ENCODED_LENGTH * 3 / 4];
+        
+        DecodeContext(Mac mac)
+        {
+            this.mac = mac;
+        }
+    }
 }
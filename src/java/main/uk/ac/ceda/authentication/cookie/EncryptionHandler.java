@@ -4,15 +4,18 @@ import javax.crypto.*;
 import javax.crypto.spec.IvParameterSpec;
 import javax.crypto.spec.SecretKeySpec;
 
-import java.io.UnsupportedEncodingException;
-import java.security.InvalidAlgorithmParameterException;
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
 import java.security.InvalidKeyException;
 import java.security.NoSuchAlgorithmException;
-import java.util.regex.Pattern;
 
 /**
  * Class for parsing encrypted text
  * 
+ * Instances are thread safe and intended to be shared; initialised ciphers
+ * are pooled so that no JCE objects are created per decryption.
+ * {@link #close()} drops the pooled ciphers once the key is no longer used.
+ * 
  * @author William Tucker
  */
 public class EncryptionHandler
@@ -21,15 +24,22 @@ public class EncryptionHandler
     public static String DEFAULT_SECRET_KEY_SPEC = "AES";
     public static String DEFAULT_CIPHER = "AES/CBC/NoPadding";
     
+    /**
+     * Block cipher used to implement {@link #DEFAULT_CIPHER}; the CBC chaining
+     * is applied by hand so the cipher never needs re-initialising with an IV
+     */
+    public static String BLOCK_CIPHER = "AES/ECB/NoPadding";
+    public static int BLOCK_SIZE = 16;
+    
     private SecretKey key;
-    private Cipher cipher;
+    private ObjectPool<Cipher> cipher;
+    private ObjectPool<Cipher> encryptCipher;
     private char paddingChar;
     
     /**
-     * Constructor taking a secret key and an IV
+     * Constructor taking a secret key
      * 
      * @param   keyBytes    secret key
-     * @param   ivBytes     encryption iv
      * @throws NoSuchPaddingException 
      * @throws NoSuchAlgorithmException 
      */
@@ -39,37 +49,157 @@ public class EncryptionHandler
                 DEFAULT_SECRET_KEY_SPEC);
         this.paddingChar = DEFAULT_PADDING_CHAR;
         
-        this.cipher = Cipher.getInstance(DEFAULT_CIPHER);
+        // fail on construction rather than on the first request
+        newCipher();
+        
+        this.cipher = new ObjectPool<Cipher>(this::newCipher);
+        this.encryptCipher = new ObjectPool<Cipher>(() -> Cipher.getInstance(DEFAULT_CIPHER));
+    }
+    
+    /**
+     * Create a block cipher initialised for decryption with the secret key
+     * 
+     * @return  the cipher
+     * @throws NoSuchAlgorithmException 
+     * @throws NoSuchPaddingException 
+     */
+    private Cipher newCipher() throws NoSuchAlgorithmException, NoSuchPaddingException
+    {
+        Cipher blockCipher = Cipher.getInstance(BLOCK_CIPHER);
+        try
+        {
+            blockCipher.init(Cipher.DECRYPT_MODE, this.key);
+        }
+        catch (InvalidKeyException e)
+        {
+            throw new IllegalArgumentException("Invalid secret key", e);
+        }
+        
+        return blockCipher;
     }
     
     /**
      * Decrypt some text
      * 
      * @param   cipherTextBytes byte array of the text
+     * @param   ivBytes         encryption iv
      * @return  decrypted text
      * @throws DecryptionException 
      */
     public String decrypt(byte[] cipherTextBytes, byte[] ivBytes) throws DecryptionException
     {
-        IvParameterSpec iv = new IvParameterSpec(ivBytes);
+        if (ivBytes.length != BLOCK_SIZE)
+        {
+            throw new DecryptionException("Invalid IV length");
+        }
+        
+        byte[] plainTextBytes = new byte[cipherTextBytes.length];
+        int length = decrypt(cipherTextBytes, 0, cipherTextBytes.length, ivBytes, 0, plainTextBytes);
         
-        String textValue = null;
+        return new String(plainTextBytes, 0, trimPadding(plainTextBytes, length), StandardCharsets.UTF_8);
+    }
+    
+    /**
+     * Decrypt part of a buffer into another buffer without allocating
+     * 
+     * @param   cipherText  buffer holding the encrypted bytes
+     * @param   offset      position of the encrypted bytes
+     * @param   length      number of encrypted bytes; a multiple of the block size
+     * @param   iv          buffer holding the encryption iv
+     * @param   ivOffset    position of the iv
+     * @param   plainText   buffer receiving the decrypted bytes at position 0
+     * @return  number of decrypted bytes, including padding
+     * @throws DecryptionException 
+     */
+    public int decrypt(byte[] cipherText, int offset, int length, byte[] iv, int ivOffset, byte[] plainText)
+            throws DecryptionException
+    {
+        int plainTextLength;
+        Cipher cipher = this.cipher.acquire();
         try
         {
-            this.cipher.init(Cipher.DECRYPT_MODE, this.key, iv);
-            
-            byte[] plainTextBytes = this.cipher.doFinal(cipherTextBytes);
-            textValue = new String(plainTextBytes, "UTF-8");
-            
-            String regex = String.format("%s+$", Pattern.quote(String.valueOf(this.paddingChar)));
-            textValue = textValue.replaceAll(regex, "");
+            plainTextLength = cipher.doFinal(cipherText, offset, length, plainText, 0);
         }
-        catch (BadPaddingException | IllegalBlockSizeException | UnsupportedEncodingException |
-                InvalidKeyException | InvalidAlgorithmParameterException e)
+        catch (BadPaddingException | IllegalBlockSizeException | ShortBufferException e)
         {
             throw new DecryptionException("Problem decrypting bytes", e);
         }
+        finally
+        {
+            this.cipher.release(cipher);
+        }
+        
+        // undo the CBC chaining
+        for (int i = 0; i < plainTextLength; i++)
+        {
+            plainText[i] ^= i < BLOCK_SIZE ? iv[ivOffset + i] : cipherText[offset + i - BLOCK_SIZE];
+        }
+        
+        return plainTextLength;
+    }
+    
+    /**
+     * Encrypt text padded to a whole number of blocks, the inverse of
+     * {@link #decrypt(byte[], int, int, byte[], int, byte[])}
+     * 
+     * @param   plainText   buffer holding the text from position 0
+     * @param   length      length of the text, without padding
+     * @param   iv          encryption iv
+     * @return  encrypted bytes
+     * @throws GeneralSecurityException 
+     */
+    public byte[] encrypt(byte[] plainText, int length, byte[] iv) throws GeneralSecurityException
+    {
+        if (iv.length != BLOCK_SIZE)
+        {
+            throw new IllegalArgumentException("Invalid IV length");
+        }
+        
+        // pad to the next block boundary, adding nothing if already aligned
+        byte[] padded = new byte[(length + BLOCK_SIZE - 1) / BLOCK_SIZE * BLOCK_SIZE];
+        System.arraycopy(plainText, 0, padded, 0, length);
+        for (int i = length; i < padded.length; i++)
+        {
+            padded[i] = (byte) this.paddingChar;
+        }
+        
+        Cipher cipher = this.encryptCipher.acquire();
+        try
+        {
+            cipher.init(Cipher.ENCRYPT_MODE, this.key, new IvParameterSpec(iv));
+            
+            return cipher.doFinal(padded);
+        }
+        finally
+        {
+            this.encryptCipher.release(cipher);
+        }
+    }
+    
+    /**
+     * Drop the pooled ciphers. The handler still works afterwards, but
+     * creates a cipher for every call.
+     */
+    public void close()
+    {
+        this.cipher.close();
+        this.encryptCipher.close();
+    }
+    
+    /**
+     * Find the length of some decrypted text without its trailing padding
+     * 
+     * @param   plainText   buffer holding the decrypted bytes from position 0
+     * @param   length      number of decrypted bytes
+     * @return  length of the text once padding is removed
+     */
+    public int trimPadding(byte[] plainText, int length)
+    {
+        while (length > 0 && plainText[length - 1] == (byte) this.paddingChar)
+        {
+            length--;
+        }
         
-        return textValue;
+        return length;
     }
 }
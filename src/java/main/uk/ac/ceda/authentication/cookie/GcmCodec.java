@@ -0,0 +1,231 @@
+package uk.ac.ceda.authentication.cookie;
+
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.security.InvalidAlgorithmParameterException;
+import java.security.InvalidKeyException;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+
+import javax.crypto.AEADBadTagException;
+import javax.crypto.BadPaddingException;
+import javax.crypto.Cipher;
+import javax.crypto.IllegalBlockSizeException;
+import javax.crypto.Mac;
+import javax.crypto.NoSuchPaddingException;
+import javax.crypto.SecretKey;
+import javax.crypto.ShortBufferException;
+import javax.crypto.spec.GCMParameterSpec;
+import javax.crypto.spec.SecretKeySpec;
+
+import org.apache.commons.codec.DecoderException;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+/**
+ * AES-GCM scheme, which authenticates and decrypts in a single pass, laid
+ * out as {@code iv-cipherText} in hex or {@code iv.cipherText} in base64url,
+ * with the authentication tag at the end of the cipher text. No padding is
+ * needed.
+ * 
+ * The AES-CBC scheme uses the secret key both to encrypt and to sign, so
+ * GCM does not use it directly: its key is HMAC-SHA256 of the ASCII label
+ * {@code gcm} under the secret key, cut to the secret key's length. The
+ * same secret can then serve every format without one scheme's key being
+ * used by another.
+ * 
+ * @author William Tucker
+ */
+class GcmCodec implements CookieCodec
+{
+    static final String CIPHER = "AES/GCM/NoPadding";
+    static final int IV_LENGTH = 12;
+    static final int TAG_LENGTH = 16;
+    static final String KEY_LABEL = "gcm";
+    
+    private final SegmentEncoding encoding;
+    private final char delimiter;
+    private final SecretKey key;
+    private final ObjectPool<Cipher> cipher;
+    
+    private volatile LatencyHistogram decryptLatency;
+    
+    private static final Log LOG = LogFactory.getLog(GcmCodec.class);
+    
+    /**
+     * Constructor taking a secret key
+     * 
+     * @param   keyBytes    secret key, from which the GCM key is derived
+     * @param   encoding    text encoding of the segments
+     * @throws NoSuchAlgorithmException 
+     * @throws NoSuchPaddingException 
+     */
+    GcmCodec(byte[] keyBytes, SegmentEncoding encoding) throws NoSuchAlgorithmException, NoSuchPaddingException
+    {
+        this.encoding = encoding;
+        this.delimiter = encoding.getDelimiter();
+        this.key = new SecretKeySpec(deriveKey(keyBytes), EncryptionHandler.DEFAULT_SECRET_KEY_SPEC);
+        
+        // fail on construction rather than on the first request
+        Cipher.getInstance(CIPHER);
+        
+        this.cipher = new ObjectPool<Cipher>(() -> Cipher.getInstance(CIPHER));
+    }
+    
+    /**
+     * Derive the GCM key from the shared secret key
+     * 
+     * @param   keyBytes    secret key
+     * @return  HMAC-SHA256 of {@link #KEY_LABEL} under the secret key, cut to
+     *          the length of the secret key
+     * @throws NoSuchAlgorithmException 
+     */
+    static byte[] deriveKey(byte[] keyBytes) throws NoSuchAlgorithmException
+    {
+        try
+        {
+            Mac mac = Mac.getInstance(EncodingHandler.DEFAULT_MAC_ALGORITHM);
+            mac.init(new SecretKeySpec(keyBytes, EncodingHandler.DEFAULT_MAC_ALGORITHM));
+            byte[] derived = mac.doFinal(KEY_LABEL.getBytes(StandardCharsets.US_ASCII));
+            
+            return Arrays.copyOf(derived, Math.min(keyBytes.length, derived.length));
+        }
+        catch (InvalidKeyException e)
+        {
+            throw new IllegalArgumentException("Invalid secret key", e);
+        }
+    }
+    
+    @Override
+    public int getIvLength()
+    {
+        return IV_LENGTH;
+    }
+    
+    @Override
+    public boolean isWellFormed(String message, int start)
+    {
+        int cipherTextStart = findCipherText(message, start);
+        
+        return cipherTextStart > 0 &&
+                this.encoding.isValid(message, start, cipherTextStart - 1) &&
+                this.encoding.isValid(message, cipherTextStart, message.length());
+    }
+    
+    @Override
+    public int decode(String message, int start, EncodingHandler.DecodeContext context)
+            throws DecoderException, DecryptionException
+    {
+        int cipherTextStart = findCipherText(message, start);
+        if (cipherTextStart < 0)
+        {
+            throw new DecoderException("Invalid cookie format");
+        }
+        
+        int cipherTextBytes = this.encoding.decode(message, cipherTextStart, message.length(),
+                context.cipherText, 0);
+        if (cipherTextBytes < 0 || this.encoding.decode(message, start, cipherTextStart - 1, context.iv, 0) < 0)
+        {
+            throw new DecoderException("Invalid character in cookie");
+        }
+        
+        if (LOG.isDebugEnabled())
+            LOG.debug("Decrypting and authenticating bytes");
+        
+        LatencyHistogram decryptLatency = this.decryptLatency;
+        long timer = decryptLatency == null ? 0 : System.nanoTime();
+        
+        int plainTextLength;
+        Cipher cipher = this.cipher.acquire();
+        try
+        {
+            cipher.init(Cipher.DECRYPT_MODE, this.key, new GCMParameterSpec(8 * TAG_LENGTH, context.iv, 0, IV_LENGTH));
+            plainTextLength = cipher.doFinal(context.cipherText, 0, cipherTextBytes, context.plainText, 0);
+        }
+        catch (AEADBadTagException e)
+        {
+            if (LOG.isDebugEnabled())
+                LOG.debug("Authentication tags do not match");
+            
+            return -1;
+        }
+        catch (InvalidKeyException | InvalidAlgorithmParameterException | BadPaddingException |
+                IllegalBlockSizeException | ShortBufferException e)
+        {
+            throw new DecryptionException("Problem decrypting bytes", e);
+        }
+        finally
+        {
+            this.cipher.release(cipher);
+            if (decryptLatency != null)
+            {
+                decryptLatency.record(System.nanoTime() - timer);
+            }
+        }
+        
+        return plainTextLength;
+    }
+    
+    @Override
+    public void encode(byte[] plainText, int length, byte[] iv, EncodingHandler.DecodeContext context,
+            StringBuilder encoded) throws GeneralSecurityException
+    {
+        if (iv.length != IV_LENGTH)
+        {
+            throw new IllegalArgumentException("Invalid IV length");
+        }
+        
+        byte[] cipherText;
+        Cipher cipher = this.cipher.acquire();
+        try
+        {
+            cipher.init(Cipher.ENCRYPT_MODE, this.key, new GCMParameterSpec(8 * TAG_LENGTH, iv));
+            cipherText = cipher.doFinal(plainText, 0, length);
+        }
+        finally
+        {
+            this.cipher.release(cipher);
+        }
+        
+        this.encoding.encode(iv, encoded);
+        this.encoding.encode(cipherText, encoded.append(this.delimiter));
+    }
+    
+    @Override
+    public void close()
+    {
+        this.cipher.close();
+    }
+    
+    /**
+     * The tag is checked along with decryption, so only the decryption
+     * histogram is used
+     */
+    @Override
+    public void setLatencyHistograms(LatencyHistogram signatureLatency, LatencyHistogram decryptLatency)
+    {
+        this.decryptLatency = decryptLatency;
+    }
+    
+    /**
+     * Check the segment lengths: one iv, and a tag following at least one
+     * byte of cipher text
+     * 
+     * @param   message   the encoded text
+     * @param   start     index of the iv segment
+     * @return  start of the cipher text segment, or -1 if the segments are
+     *          not as expected
+     */
+    private int findCipherText(String message, int start)
+    {
+        int cipherTextStart = start + this.encoding.encodedLength(IV_LENGTH) + 1;
+        int cipherTextLength = message.length() - cipherTextStart;
+        if (cipherTextLength <= 0 || this.encoding.decodedLength(cipherTextLength) <= TAG_LENGTH ||
+                message.charAt(cipherTextStart - 1) != this.delimiter)
+        {
+            return -1;
+        }
+        
+        return cipherTextStart;
+    }
+}
@@ -0,0 +1,102 @@
+package uk.ac.ceda.authentication.cookie;
+
+/**
+ * Table driven hex decoding straight into caller supplied buffers, and
+ * the matching encoding
+ * 
+ * @author William Tucker
+ */
+final class HexCodec
+{
+    private static final byte[] VALUES = new byte[128];
+    private static final char[] DIGITS = "0123456789abcdef".toCharArray();
+    
+    static
+    {
+        for (int i = 0; i < VALUES.length; i++)
+        {
+            VALUES[i] = -1;
+        }
+        for (int i = 0; i < 10; i++)
+        {
+            VALUES['0' + i] = (byte) i;
+        }
+        for (int i = 0; i < 6; i++)
+        {
+            VALUES['a' + i] = (byte) (10 + i);
+            VALUES['A' + i] = (byte) (10 + i);
+        }
+    }
+    
+    private HexCodec()
+    {
+    }
+    
+    /**
+     * Decode a region of hex text
+     * 
+     * @param   text    text containing the hex digits
+     * @param   start   index of the first digit
+     * @param   end     index after the last digit; (end - start) must be even
+     * @param   out     buffer receiving the decoded bytes
+     * @param   offset  position in the buffer of the first decoded byte
+     * @return  number of bytes decoded, or -1 if a character is not a hex digit
+     */
+    static int decode(CharSequence text, int start, int end, byte[] out, int offset)
+    {
+        // accumulate invalid digits rather than branching on every character
+        int invalid = 0;
+        int position = offset;
+        for (int i = start; i < end; i += 2)
+        {
+            int high = value(text.charAt(i));
+            int low = value(text.charAt(i + 1));
+            
+            invalid |= high | low;
+            out[position++] = (byte) (high << 4 | low);
+        }
+        
+        return invalid < 0 ? -1 : position - offset;
+    }
+    
+    /**
+     * Encode bytes as lower case hex, appending to a builder
+     * 
+     * @param   bytes   bytes to encode
+     * @param   out     builder receiving the hex digits
+     * @return  the builder
+     */
+    static StringBuilder encode(byte[] bytes, StringBuilder out)
+    {
+        for (byte b: bytes)
+        {
+            out.append(DIGITS[b >> 4 & 0xf]).append(DIGITS[b & 0xf]);
+        }
+        
+        return out;
+    }
+    
+    /**
+     * Check that a region of text contains only hex digits
+     * 
+     * @param   text    text to check
+     * @param   start   index of the first character
+     * @param   end     index after the last character
+     * @return  whether every character is a hex digit
+     */
+    static boolean isHex(CharSequence text, int start, int end)
+    {
+        int invalid = 0;
+        for (int i = start; i < end; i++)
+        {
+            invalid |= value(text.charAt(i));
+        }
+        
+        return invalid >= 0;
+    }
+    
+    private static int value(char c)
+    {
+        return c < 128 ? VALUES[c] : -1;
+    }
+}
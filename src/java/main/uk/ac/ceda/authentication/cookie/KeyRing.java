@@ -0,0 +1,185 @@
+package uk.ac.ceda.authentication.cookie;
+
+import java.io.IOException;
+import java.io.Reader;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.security.NoSuchAlgorithmException;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Properties;
+
+import javax.crypto.NoSuchPaddingException;
+
+/**
+ * Immutable set of secret keys, each with its own {@link EncodingHandler}.
+ * 
+ * A cookie value may name the key it was encoded with in a prefix, as in
+ * {@code keyId:cipherText-iv-digest}; values without a prefix use the
+ * default key. Either way the handler is found with a single lookup, so
+ * only one signature check is needed however many keys are in use.
+ * 
+ * @author William Tucker
+ */
+public class KeyRing
+{
+    public static String KEY_PROPERTY_PREFIX = "key.";
+    public static String DEFAULT_PROPERTY = "default";
+    
+    private final Map<String, EncodingHandler> handlers;
+    private final EncodingHandler defaultHandler;
+    
+    /**
+     * Constructor for a key ring holding a single, default key
+     * 
+     * @param   defaultHandler  handler for the default key
+     */
+    public KeyRing(EncodingHandler defaultHandler)
+    {
+        this.handlers = Collections.emptyMap();
+        this.defaultHandler = defaultHandler;
+    }
+    
+    /**
+     * Constructor taking handlers by key identifier
+     * 
+     * @param   handlers        handlers by key identifier
+     * @param   defaultKeyId    identifier of the key used for values without a prefix, may be null
+     */
+    public KeyRing(Map<String, EncodingHandler> handlers, String defaultKeyId)
+    {
+        this.handlers = Collections.unmodifiableMap(new HashMap<String, EncodingHandler>(handlers));
+        
+        if (defaultKeyId != null && !handlers.containsKey(defaultKeyId))
+        {
+            throw new IllegalArgumentException(String.format("Default key %s is not defined", defaultKeyId));
+        }
+        this.defaultHandler = defaultKeyId == null ? null : handlers.get(defaultKeyId);
+    }
+    
+    /**
+     * Load a key ring from a properties file. Each key is given as
+     * {@code key.<id>=<base64 secret>} and the key used for values without a
+     * prefix as {@code default=<id>}. If the file holds a single key it is
+     * also the default.
+     * 
+     * @param   keyFile     the properties file
+     * @return  the loaded key ring
+     * @throws IOException
+     * @throws NoSuchAlgorithmException
+     * @throws NoSuchPaddingException
+     */
+    public static KeyRing load(Path keyFile) throws IOException, NoSuchAlgorithmException, NoSuchPaddingException
+    {
+        Properties properties = new Properties();
+        try (Reader reader = Files.newBufferedReader(keyFile, StandardCharsets.UTF_8))
+        {
+            properties.load(reader);
+        }
+        
+        Map<String, EncodingHandler> handlers = new HashMap<String, EncodingHandler>();
+        for (String name: properties.stringPropertyNames())
+        {
+            if (name.startsWith(KEY_PROPERTY_PREFIX))
+            {
+                String keyId = name.substring(KEY_PROPERTY_PREFIX.length());
+                if (keyId.isEmpty() || keyId.length() > EncodingHandler.MAX_KEY_ID_LENGTH ||
+                        keyId.indexOf(EncodingHandler.KEY_ID_SEPARATOR) >= 0)
+                {
+                    throw new IllegalArgumentException(String.format("Invalid key identifier: %s", keyId));
+                }
+                
+                handlers.put(keyId, new EncodingHandler(properties.getProperty(name).trim()));
+            }
+        }
+        
+        if (handlers.isEmpty())
+        {
+            throw new IllegalArgumentException(String.format("No keys defined in %s", keyFile));
+        }
+        
+        String defaultKeyId = properties.getProperty(DEFAULT_PROPERTY);
+        if (defaultKeyId != null)
+        {
+            defaultKeyId = defaultKeyId.trim();
+        }
+        else if (handlers.size() == 1)
+        {
+            defaultKeyId = handlers.keySet().iterator().next();
+        }
+        
+        return new KeyRing(handlers, defaultKeyId);
+    }
+    
+    /**
+     * Find the handler for the key an encoded value was encoded with
+     * 
+     * @param   encodedValue    encoded value, optionally prefixed with a key identifier
+     * @return  the handler, or null if the key is not in the ring
+     */
+    public EncodingHandler getHandler(String encodedValue)
+    {
+        int keyIdLength = EncodingHandler.getKeyIdLength(encodedValue);
+        if (keyIdLength < 0)
+        {
+            return this.defaultHandler;
+        }
+        
+        return this.handlers.get(encodedValue.substring(0, keyIdLength));
+    }
+    
+    /**
+     * Set histograms recording how long signature checks and decryption
+     * take with every key in the ring
+     * 
+     * @param   signatureLatency    histogram for signature checks, may be null
+     * @param   decryptLatency      histogram for decryption, may be null
+     */
+    public void setLatencyHistograms(LatencyHistogram signatureLatency, LatencyHistogram decryptLatency)
+    {
+        for (EncodingHandler handler: this.handlers.values())
+        {
+            handler.setLatencyHistograms(signatureLatency, decryptLatency);
+        }
+        if (this.defaultHandler != null)
+        {
+            this.defaultHandler.setLatencyHistograms(signatureLatency, decryptLatency);
+        }
+    }
+    
+    /**
+     * @return  handlers for every key in the ring
+     */
+    public Collection<EncodingHandler> getHandlers()
+    {
+        if (this.handlers.isEmpty() && this.defaultHandler != null)
+        {
+            return Collections.singletonList(this.defaultHandler);
+        }
+        
+        return this.handlers.values();
+    }
+    
+    /**
+     * Drop the pooled cryptographic objects of every key once the ring is
+     * no longer used
+     */
+    public void close()
+    {
+        for (EncodingHandler handler: getHandlers())
+        {
+            handler.close();
+        }
+    }
+    
+    /**
+     * @return  number of keys in the ring
+     */
+    public int size()
+    {
+        return this.handlers.isEmpty() && this.defaultHandler != null ? 1 : this.handlers.size();
+    }
+}
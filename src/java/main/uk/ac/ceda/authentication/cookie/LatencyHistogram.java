@@ -0,0 +1,121 @@
+package uk.ac.ceda.authentication.cookie;
+
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Histogram of latencies in power of two nanosecond buckets.
+ * 
+ * Recording a value is a single striped counter increment, so many threads
+ * can record at once without contending. Percentiles are reported as the
+ * upper bound of the bucket they fall in.
+ * 
+ * @author William Tucker
+ */
+public class LatencyHistogram
+{
+    // the last bucket holds everything from about two minutes up
+    private static final int BUCKETS = 38;
+    
+    private final LongAdder[] buckets = new LongAdder[BUCKETS];
+    private final LongAdder total = new LongAdder();
+    
+    public LatencyHistogram()
+    {
+        for (int i = 0; i < BUCKETS; i++)
+        {
+            this.buckets[i] = new LongAdder();
+        }
+    }
+    
+    /**
+     * Record a latency
+     * 
+     * @param nanos latency in nanoseconds
+     */
+    public void record(long nanos)
+    {
+        if (nanos < 0)
+        {
+            nanos = 0;
+        }
+        
+        // bucket n holds values from 2^(n-1) to 2^n - 1
+        int bucket = 64 - Long.numberOfLeadingZeros(nanos);
+        this.buckets[Math.min(bucket, BUCKETS - 1)].increment();
+        this.total.add(nanos);
+    }
+    
+    /**
+     * @return  number of latencies recorded
+     */
+    public long getCount()
+    {
+        long count = 0;
+        for (LongAdder bucket: this.buckets)
+        {
+            count += bucket.sum();
+        }
+        
+        return count;
+    }
+    
+    /**
+     * @return  mean latency in nanoseconds, or 0 if nothing has been recorded
+     */
+    public double getMean()
+    {
+        long count = getCount();
+        
+        return count == 0 ? 0 : (double) this.total.sum() / count;
+    }
+    
+    /**
+     * Estimate a percentile of the recorded latencies
+     * 
+     * @param percentile    percentile between 0 and 100
+     * @return  upper bound in nanoseconds of the bucket holding the
+     *          percentile, or 0 if nothing has been recorded
+     */
+    public long getPercentile(double percentile)
+    {
+        long[] counts = getBucketCounts();
+        
+        long count = 0;
+        for (long bucketCount: counts)
+        {
+            count += bucketCount;
+        }
+        if (count == 0)
+        {
+            return 0;
+        }
+        
+        long rank = (long) Math.ceil(count * percentile / 100);
+        long seen = 0;
+        int bucket = 0;
+        for (; bucket < BUCKETS - 1; bucket++)
+        {
+            seen += counts[bucket];
+            if (seen >= rank)
+            {
+                break;
+            }
+        }
+        
+        return (1L << bucket) - 1;
+    }
+    
+    /**
+     * @return  snapshot of the count in each bucket
+     */
+    public long[] getBucketCounts()
+    {
+        long[] counts = new long[BUCKETS];
+        for (int i = 0; i < BUCKETS; i++)
+        {
+            counts[i] = this.buckets[i].sum();
+        }
+        
+        return counts;
+    }
+}
@@ -0,0 +1,152 @@
+package uk.ac.ceda.authentication.cookie;
+
+import java.security.GeneralSecurityException;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * Small bounded pool of objects that are costly to create, such as
+ * initialised ciphers and MACs and decoding buffers.
+ * 
+ * Unlike thread locals, pooled objects are not attached to the container's
+ * threads: they are reachable only through their pool, so they go away with
+ * the handler that owns it when keys are swapped or the web application is
+ * redeployed. Taking and returning an object is a single compare and set in
+ * the common case, and nothing is allocated once the pool has filled.
+ * 
+ * @author William Tucker
+ */
+final class ObjectPool<T>
+{
+    /**
+     * Creates objects when the pool is empty
+     */
+    interface Factory<T>
+    {
+        T create() throws GeneralSecurityException;
+    }
+    
+    private final AtomicReferenceArray<T> slots;
+    private final Factory<T> factory;
+    private volatile boolean closed;
+    
+    /**
+     * Constructor sized for the number of processors, which bounds how many
+     * objects are in use at once by running threads
+     * 
+     * @param factory   creates objects when the pool is empty
+     */
+    ObjectPool(Factory<T> factory)
+    {
+        this(2 * Runtime.getRuntime().availableProcessors(), factory);
+    }
+    
+    /**
+     * Constructor specifying the number of idle objects kept
+     * 
+     * @param capacity  number of idle objects kept
+     * @param factory   creates objects when the pool is empty
+     */
+    ObjectPool(int capacity, Factory<T> factory)
+    {
+        if (capacity <= 0)
+        {
+            throw new IllegalArgumentException("Pool capacity must be positive");
+        }
+        
+        this.slots = new AtomicReferenceArray<T>(capacity);
+        this.factory = factory;
+    }
+    
+    /**
+     * Take an idle object, or create one if there are none. The object must
+     * be given back with {@link #release(Object)} once the caller is done.
+     * 
+     * @return  an object for the caller's exclusive use
+     */
+    T acquire()
+    {
+        int length = this.slots.length();
+        int start = startIndex(length);
+        for (int i = 0; i < length; i++)
+        {
+            int index = (start + i) % length;
+            T item = this.slots.get(index);
+            if (item != null && this.slots.compareAndSet(index, item, null))
+            {
+                return item;
+            }
+        }
+        
+        try
+        {
+            return this.factory.create();
+        }
+        catch (GeneralSecurityException e)
+        {
+            // the factory is checked when its owner is constructed
+            throw new IllegalStateException(e);
+        }
+    }
+    
+    /**
+     * Give an object back to the pool. If the pool is full or closed the
+     * object is left to the garbage collector.
+     * 
+     * @param item  object taken with {@link #acquire()}
+     */
+    void release(T item)
+    {
+        if (this.closed)
+        {
+            return;
+        }
+        
+        int length = this.slots.length();
+        int start = startIndex(length);
+        for (int i = 0; i < length; i++)
+        {
+            int index = (start + i) % length;
+            if (this.slots.get(index) == null && this.slots.compareAndSet(index, null, item))
+            {
+                return;
+            }
+        }
+    }
+    
+    /**
+     * Drop the idle objects, and any given back from now on
+     */
+    void close()
+    {
+        this.closed = true;
+        for (int i = 0; i < this.slots.length(); i++)
+        {
+            this.slots.set(i, null);
+        }
+    }
+    
+    /**
+     * @return  number of idle objects
+     */
+    int size()
+    {
+        int size = 0;
+        for (int i = 0; i < this.slots.length(); i++)
+        {
+            if (this.slots.get(i) != null)
+            {
+                size++;
+            }
+        }
+        
+        return size;
+    }
+    
+    /**
+     * Spread threads over the slots so that they rarely contend
+     */
+    private static int startIndex(int length)
+    {
+        return (int) (Thread.currentThread().getId() % length);
+    }
+}
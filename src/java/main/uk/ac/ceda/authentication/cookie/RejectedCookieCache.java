@@ -0,0 +1,120 @@
+package uk.ac.ceda.authentication.cookie;
+
+import java.security.SecureRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Small, fixed size record of recently rejected cookie values.
+ * 
+ * Only a 64 bit fingerprint of each value is kept, in a direct mapped table
+ * that needs no locking; a new rejection simply overwrites whatever shared its
+ * slot. A client that keeps sending the same bad cookie can then be turned
+ * away without repeating the signature check.
+ * 
+ * @author William Tucker
+ */
+public class RejectedCookieCache
+{
+    private static final long EMPTY = 0;
+    
+    // fingerprint and expiry time pairs
+    private final AtomicLongArray slots;
+    private final int mask;
+    private final long ttlNanos;
+    
+    // per instance seed, so fingerprints can't be predicted
+    private final long seed;
+    
+    /**
+     * Constructor specifying the cache bounds
+     * 
+     * @param size  number of rejected values to remember; rounded up to a power of two
+     * @param ttl   time a rejection is remembered for
+     * @param unit  unit of the ttl argument
+     */
+    public RejectedCookieCache(int size, long ttl, TimeUnit unit)
+    {
+        if (size <= 0)
+        {
+            throw new IllegalArgumentException("Cache size must be positive");
+        }
+        
+        int slotCount = Integer.highestOneBit(size);
+        if (slotCount < size)
+        {
+            slotCount <<= 1;
+        }
+        
+        this.slots = new AtomicLongArray(slotCount * 2);
+        this.mask = slotCount - 1;
+        this.ttlNanos = unit.toNanos(ttl);
+        this.seed = new SecureRandom().nextLong();
+    }
+    
+    /**
+     * Check whether a cookie value was recently rejected
+     * 
+     * @param cookieValue   raw cookie value
+     * @return  true if the value was rejected within the ttl
+     */
+    public boolean contains(String cookieValue)
+    {
+        long fingerprint = fingerprint(cookieValue);
+        int slot = slot(fingerprint);
+        
+        return this.slots.get(slot) == fingerprint && this.slots.get(slot + 1) - System.nanoTime() > 0;
+    }
+    
+    /**
+     * Record that a cookie value has been rejected
+     * 
+     * @param cookieValue   raw cookie value
+     */
+    public void add(String cookieValue)
+    {
+        long fingerprint = fingerprint(cookieValue);
+        int slot = slot(fingerprint);
+        
+        this.slots.set(slot + 1, System.nanoTime() + this.ttlNanos);
+        this.slots.set(slot, fingerprint);
+    }
+    
+    /**
+     * Forget every rejection
+     */
+    public void clear()
+    {
+        for (int i = 0; i < this.slots.length(); i++)
+        {
+            this.slots.set(i, EMPTY);
+        }
+    }
+    
+    private int slot(long fingerprint)
+    {
+        return ((int) (fingerprint ^ fingerprint >>> 32) & this.mask) * 2;
+    }
+    
+    /**
+     * Seeded 64 bit FNV-1a hash of the value, finished with the MurmurHash3
+     * mixing step
+     */
+    private long fingerprint(String value)
+    {
+        long hash = this.seed;
+        for (int i = 0; i < value.length(); i++)
+        {
+            hash ^= value.charAt(i);
+            hash *= 0x100000001b3L;
+        }
+        
+        hash ^= hash >>> 33;
+        hash *= 0xff51afd7ed558ccdL;
+        hash ^= hash >>> 33;
+        hash *= 0xc4ceb9fe1a85ec53L;
+        hash ^= hash >>> 33;
+        
+        return hash == EMPTY ? 1 : hash;
+    }
+}
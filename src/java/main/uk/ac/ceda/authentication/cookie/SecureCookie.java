@@ -43,6 +43,22 @@ public class SecureCookie
             NoSuchAlgorithmException, NoSuchPaddingException, DecoderException, DecryptionException
     {
         EncodingHandler encodingHandler = new EncodingHandler(key);
+        
+        return parseCookie(encodedValue, encodingHandler);
+    }
+    
+    /**
+     * Parses an encrypted cookie value using a shared encoding handler
+     * 
+     * @param encodedValue      encoded value
+     * @param encodingHandler   handler holding the secret key for decryption
+     * @return  parsed value
+     * @throws DecryptionException 
+     * @throws DecoderException 
+     */
+    public static SecureCookie parseCookie(String encodedValue, EncodingHandler encodingHandler)
+            throws DecoderException, DecryptionException
+    {
         String decodedValue = encodingHandler.decode(encodedValue);
         
         SecureCookie secureCookie = new SecureCookie(decodedValue);
@@ -0,0 +1,141 @@
+package uk.ac.ceda.authentication.cookie;
+
+/**
+ * Text encodings for the binary segments of a cookie value, each with the
+ * delimiter that separates segments
+ * 
+ * @author William Tucker
+ */
+enum SegmentEncoding
+{
+    /**
+     * Hex, as issued by the authentication service originally
+     */
+    HEX('-')
+    {
+        @Override
+        int encodedLength(int byteCount)
+        {
+            return 2 * byteCount;
+        }
+        
+        @Override
+        int decodedLength(int length)
+        {
+            return length % 2 == 0 ? length / 2 : -1;
+        }
+        
+        @Override
+        int decode(CharSequence text, int start, int end, byte[] out, int offset)
+        {
+            return decodedLength(end - start) < 0 ? -1 : HexCodec.decode(text, start, end, out, offset);
+        }
+        
+        @Override
+        boolean isValid(CharSequence text, int start, int end)
+        {
+            return decodedLength(end - start) >= 0 && HexCodec.isHex(text, start, end);
+        }
+        
+        @Override
+        void encode(byte[] bytes, StringBuilder out)
+        {
+            HexCodec.encode(bytes, out);
+        }
+    },
+    
+    /**
+     * Unpadded base64url, a third shorter than hex. Its alphabet includes
+     * the hex delimiter, so segments are separated with dots.
+     */
+    BASE64URL('.')
+    {
+        @Override
+        int encodedLength(int byteCount)
+        {
+            return Base64UrlCodec.encodedLength(byteCount);
+        }
+        
+        @Override
+        int decodedLength(int length)
+        {
+            return Base64UrlCodec.decodedLength(length);
+        }
+        
+        @Override
+        int decode(CharSequence text, int start, int end, byte[] out, int offset)
+        {
+            return Base64UrlCodec.decode(text, start, end, out, offset);
+        }
+        
+        @Override
+        boolean isValid(CharSequence text, int start, int end)
+        {
+            return Base64UrlCodec.isBase64Url(text, start, end);
+        }
+        
+        @Override
+        void encode(byte[] bytes, StringBuilder out)
+        {
+            Base64UrlCodec.encode(bytes, out);
+        }
+    };
+    
+    private final char delimiter;
+    
+    private SegmentEncoding(char delimiter)
+    {
+        this.delimiter = delimiter;
+    }
+    
+    /**
+     * @return  character separating segments
+     */
+    char getDelimiter()
+    {
+        return this.delimiter;
+    }
+    
+    /**
+     * @param   byteCount   number of bytes
+     * @return  number of characters encoding them
+     */
+    abstract int encodedLength(int byteCount);
+    
+    /**
+     * @param   length  number of characters
+     * @return  number of bytes they encode, or -1 if no byte sequence is
+     *          encoded with that many characters
+     */
+    abstract int decodedLength(int length);
+    
+    /**
+     * Decode a region of text without allocating
+     * 
+     * @param   text    text containing the segment
+     * @param   start   index of the first character
+     * @param   end     index after the last character
+     * @param   out     buffer receiving the decoded bytes
+     * @param   offset  position in the buffer of the first decoded byte
+     * @return  number of bytes decoded, or -1 if the text is not valid
+     */
+    abstract int decode(CharSequence text, int start, int end, byte[] out, int offset);
+    
+    /**
+     * Check that a region of text could be decoded
+     * 
+     * @param   text    text to check
+     * @param   start   index of the first character
+     * @param   end     index after the last character
+     * @return  whether the text is valid
+     */
+    abstract boolean isValid(CharSequence text, int start, int end);
+    
+    /**
+     * Encode bytes, appending to a builder
+     * 
+     * @param   bytes   bytes to encode
+     * @param   out     builder receiving the characters
+     */
+    abstract void encode(byte[] bytes, StringBuilder out);
+}
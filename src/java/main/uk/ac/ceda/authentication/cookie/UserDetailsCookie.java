@@ -1,10 +1,10 @@
 package uk.ac.ceda.authentication.cookie;
 
-import java.io.UnsupportedEncodingException;
-import java.net.URLDecoder;
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
 import java.security.NoSuchAlgorithmException;
 import java.sql.Timestamp;
-import java.util.regex.Pattern;
+import java.util.Arrays;
 
 import javax.crypto.NoSuchPaddingException;
 
@@ -15,18 +15,39 @@ import org.apache.commons.logging.LogFactory;
 /**
  * Class encapsulating a cookie containing user details
  * 
+ * Parsed cookies decode the user ID straight away; the timestamp, tokens and
+ * user data are only materialised when their getters are first called.
+ * 
  * @author William Tucker
  */
 public class UserDetailsCookie extends SecureCookie
 {
     public static String BODY_SEPARATOR = "!";
     public static String TIMESTAMP_FORMAT = "%08d";
+    public static int TIMESTAMP_LENGTH = 8;
+    public static char TOKEN_SEPARATOR = ',';
+    
+    private static final char[] HEX_DIGITS = "0123456789ABCDEF".toCharArray();
     
-    private Timestamp timestamp;
+    private final Timestamp timestamp;
     private String userID;
-    private String[] tokens;
-    private String userData;
+    private volatile String[] tokens;
+    private volatile String userData;
+    private volatile String value;
+    
+    // decrypted content and field offsets, kept so that fields other than
+    // the user ID are only materialised when first requested
+    private byte[] content;
+    private long time = -1;
+    private int tokensStart = -1;
+    private int tokensEnd;
+    private int userDataStart = -1;
+    private int userDataEnd;
 
+    // handler for the key last passed to parseCookie(String, String),
+    // which is almost always the same one
+    private static volatile KeyedHandler lastHandler;
+    
     private static final Log LOG = LogFactory.getLog(UserDetailsCookie.class);
     
     /**
@@ -43,14 +64,34 @@ public class UserDetailsCookie extends SecureCookie
     {
         super(key);
         
-        this.timestamp = timestamp;
+        this.timestamp = timestamp == null ? null : (Timestamp) timestamp.clone();
+        this.time = timestamp == null ? -1 : timestamp.getTime();
         this.userID = userID;
-        this.tokens = tokens;
+        this.tokens = tokens == null ? null : tokens.clone();
         this.userData = userData;
     }
     
     /**
-     * Parses an encrypted user details cookie value
+     * Constructor taking decrypted content and the positions of its fields
+     * 
+     * @param content   decrypted cookie content
+     * @param time      cookie creation time, or -1 if it could not be parsed
+     * @param userID    cookie user ID
+     */
+    private UserDetailsCookie(byte[] content, long time, String userID)
+    {
+        super(null);
+        
+        this.timestamp = null;
+        this.content = content;
+        this.time = time;
+        this.userID = userID;
+    }
+    
+    /**
+     * Parses an encrypted user details cookie value. The handler for the
+     * most recently used key is kept, so repeated calls with the same key
+     * don't rebuild it.
      * 
      * @param name          cookie name
      * @param encodedValue  encoded value
@@ -60,84 +101,393 @@ public class UserDetailsCookie extends SecureCookie
      * @throws DecoderException 
      * @throws NoSuchPaddingException 
      * @throws NoSuchAlgorithmException 
+     * @deprecated build an {@link EncodingHandler} or {@link KeyRing} once
+     *             and use {@link #parseCookie(String, EncodingHandler)}
      */
+    @Deprecated
     public static UserDetailsCookie parseCookie(String encodedValue, String key)
             throws NoSuchAlgorithmException, NoSuchPaddingException, DecoderException,
                     DecryptionException
     {
-        SecureCookie cookie = SecureCookie.parseCookie(encodedValue, key);
-        String cookieContent = cookie.getValue();
+        KeyedHandler keyedHandler = lastHandler;
+        if (keyedHandler == null || !keyedHandler.key.equals(key))
+        {
+            keyedHandler = new KeyedHandler(key, new EncodingHandler(key));
+            lastHandler = keyedHandler;
+        }
         
-        Timestamp timestamp = null;
-        String userID = null;
-        String[] tokens = null;
-        String userData = null;
-        if (cookieContent != null)
+        return parseCookie(encodedValue, keyedHandler.handler);
+    }
+    
+    /**
+     * Parses an encrypted user details cookie value using a shared encoding
+     * handler
+     * 
+     * @param encodedValue      encoded value
+     * @param encodingHandler   handler holding the secret key for decryption
+     * @return  parsed value
+     * @throws DecryptionException 
+     * @throws DecoderException 
+     */
+    public static UserDetailsCookie parseCookie(String encodedValue, EncodingHandler encodingHandler)
+            throws DecoderException, DecryptionException
+    {
+        EncodingHandler.DecodeContext context = encodingHandler.acquireContext();
+        try
         {
-            try
-            {
-                timestamp = new Timestamp(Long.parseLong(cookieContent.substring(0, 8), 16));
-            }
-            catch (NumberFormatException e)
+            int length = encodingHandler.decode(encodedValue, context);
+            if (length < 0)
             {
-                e.printStackTrace();
+                return new UserDetailsCookie(null, null, null, null, null);
             }
             
-            String cookieBody = cookieContent.substring(8);
-            if (!cookieBody.contains(BODY_SEPARATOR))
+            // the content is copied, so the buffers can be given back
+            return parse(context.plainText, length, context.unescapedText);
+        }
+        finally
+        {
+            encodingHandler.releaseContext(context);
+        }
+    }
+    
+    /**
+     * Encodes user details as the authentication service does, the inverse
+     * of {@link #parseCookie(String, EncodingHandler)}
+     * 
+     * @param encodingHandler   handler holding the secret key for encryption
+     * @param time      cookie creation time in seconds since the epoch
+     * @param userID    user ID
+     * @param tokens    tokens, may be empty
+     * @param userData  user data, may be empty
+     * @return  encoded value
+     * @throws GeneralSecurityException 
+     */
+    public static String encode(EncodingHandler encodingHandler, long time, String userID, String[] tokens,
+            String userData) throws GeneralSecurityException
+    {
+        return encodingHandler.encode(format(time, userID, tokens, userData));
+    }
+    
+    /**
+     * Encodes user details in a given format
+     * 
+     * @param encodingHandler   handler holding the secret key for encryption
+     * @param format    the scheme to encode with
+     * @param time      cookie creation time in seconds since the epoch
+     * @param userID    user ID
+     * @param tokens    tokens, may be empty
+     * @param userData  user data, may be empty
+     * @return  encoded value
+     * @throws GeneralSecurityException 
+     */
+    public static String encode(EncodingHandler encodingHandler, EncodingHandler.Format format, long time,
+            String userID, String[] tokens, String userData) throws GeneralSecurityException
+    {
+        return encodingHandler.encode(format(time, userID, tokens, userData), format);
+    }
+    
+    /**
+     * Formats user details as cookie content: an 8 digit hex timestamp, the
+     * URL encoded user ID, then the tokens if there are any and the user
+     * data, each introduced by {@link #BODY_SEPARATOR}.
+     * 
+     * As with the service, tokens followed by empty user data are read back
+     * as user data.
+     * 
+     * @param time      cookie creation time in seconds since the epoch
+     * @param userID    user ID
+     * @param tokens    tokens, may be empty
+     * @param userData  user data, may be empty
+     * @return  cookie content
+     */
+    public static String format(long time, String userID, String[] tokens, String userData)
+    {
+        StringBuilder content = new StringBuilder(String.format("%08x", time));
+        escape(userID, content);
+        content.append(BODY_SEPARATOR);
+        
+        if (tokens.length > 0)
+        {
+            for (int i = 0; i < tokens.length; i++)
             {
-                if (LOG.isDebugEnabled())
-                    LOG.debug("Bad cookie format");
+                if (i > 0)
+                {
+                    content.append(TOKEN_SEPARATOR);
+                }
+                content.append(tokens[i]);
             }
-            
-            String[] parts = cookieBody.split(Pattern.quote(BODY_SEPARATOR), 2);
-            try
+            content.append(BODY_SEPARATOR);
+        }
+        
+        return content.append(userData).toString();
+    }
+    
+    /**
+     * URL encode text the way the service does, leaving letters, digits and
+     * {@code _.-/} as they are
+     */
+    private static void escape(String text, StringBuilder out)
+    {
+        for (byte b: text.getBytes(StandardCharsets.UTF_8))
+        {
+            if (b >= 'a' && b <= 'z' || b >= 'A' && b <= 'Z' || b >= '0' && b <= '9' ||
+                    b == '_' || b == '.' || b == '-' || b == '/')
             {
-                userID = URLDecoder.decode(parts[0], "UTF-8");
+                out.append((char) b);
             }
-            catch (UnsupportedEncodingException e)
+            else
             {
-                userID = parts[0];
+                out.append('%').append(HEX_DIGITS[b >> 4 & 0xf]).append(HEX_DIGITS[b & 0xf]);
             }
-            
-            if (parts.length > 1)
+        }
+    }
+    
+    /**
+     * Parses decrypted cookie content in a single forward pass.
+     * 
+     * The content is an 8 digit hex timestamp followed by the URL encoded
+     * user ID and, optionally, tokens and user data, each introduced by
+     * {@link #BODY_SEPARATOR}. Tokens are comma separated. Fields are split
+     * with the same rules as {@link String#split(String)}.
+     * 
+     * @param text      buffer holding the content from position 0, without padding
+     * @param length    length of the content
+     * @param scratch   buffer at least as long as the content, used to unescape the user ID
+     * @return  parsed value
+     * @throws DecoderException if the content is too short or the user ID is badly escaped
+     */
+    static UserDetailsCookie parse(byte[] text, int length, byte[] scratch) throws DecoderException
+    {
+        if (length < TIMESTAMP_LENGTH)
+        {
+            throw new DecoderException("Cookie content too short");
+        }
+        
+        long time = parseHex(text, 0, TIMESTAMP_LENGTH);
+        if (time < 0 && LOG.isDebugEnabled())
+        {
+            LOG.debug("Bad cookie timestamp");
+        }
+        
+        byte separator = (byte) BODY_SEPARATOR.charAt(0);
+        
+        // user ID runs to the first separator
+        int userIDEnd = indexOf(text, TIMESTAMP_LENGTH, length, separator);
+        if (userIDEnd == length && LOG.isDebugEnabled())
+        {
+            LOG.debug("Bad cookie format");
+        }
+        String userID = unescape(text, TIMESTAMP_LENGTH, userIDEnd, scratch);
+        
+        UserDetailsCookie details = new UserDetailsCookie(Arrays.copyOf(text, length), time, userID);
+        if (userIDEnd < length)
+        {
+            // find the first two separators in the remainder, and the
+            // number of fields left once trailing empty fields are dropped
+            int start = userIDEnd + 1;
+            int firstEnd = -1;
+            int secondEnd = -1;
+            int field = 0;
+            int lastNonEmptyField = -1;
+            for (int i = start; i < length; i++)
             {
-                parts = parts[1].split(Pattern.quote(BODY_SEPARATOR));
-                if (parts.length == 2)
+                if (text[i] == separator)
                 {
-                    // tokens are comma separated
-                    tokens = parts[0].split(Pattern.quote(","));
-                    userData = parts[1];
+                    if (field == 0)
+                    {
+                        firstEnd = i;
+                    }
+                    else if (field == 1)
+                    {
+                        secondEnd = i;
+                    }
+                    field++;
                 }
-                else if (parts.length == 1)
+                else
                 {
-                    userData = parts[0];
+                    lastNonEmptyField = field;
                 }
             }
+            
+            int fields = start == length ? 1 : lastNonEmptyField + 1;
+            if (fields == 2)
+            {
+                details.tokensStart = start;
+                details.tokensEnd = firstEnd;
+                details.userDataStart = firstEnd + 1;
+                details.userDataEnd = secondEnd < 0 ? length : secondEnd;
+            }
+            else if (fields == 1)
+            {
+                details.userDataStart = start;
+                details.userDataEnd = firstEnd < 0 ? length : firstEnd;
+            }
         }
         
-        UserDetailsCookie details = new UserDetailsCookie(key, timestamp, userID, tokens, userData);
-        
         return details;
     }
     
+    /**
+     * Parse a region of hex digits
+     * 
+     * @return  the value, or -1 if a character is not a hex digit
+     */
+    private static long parseHex(byte[] text, int start, int end)
+    {
+        long value = 0;
+        for (int i = start; i < end; i++)
+        {
+            int digit = Character.digit(text[i], 16);
+            if (digit < 0)
+            {
+                return -1;
+            }
+            value = value << 4 | digit;
+        }
+        
+        return value;
+    }
+    
+    private static int indexOf(byte[] text, int start, int end, byte b)
+    {
+        for (int i = start; i < end; i++)
+        {
+            if (text[i] == b)
+            {
+                return i;
+            }
+        }
+        
+        return end;
+    }
+    
+    /**
+     * Split a region of text with the same rules as {@link String#split(String)}
+     */
+    private static String[] split(byte[] text, int start, int end, byte separator)
+    {
+        int count = 0;
+        int lastNonEmpty = -1;
+        for (int i = start; i < end; i++)
+        {
+            if (text[i] == separator)
+            {
+                count++;
+            }
+            else
+            {
+                lastNonEmpty = count;
+            }
+        }
+        
+        if (start == end)
+        {
+            return new String[] { "" };
+        }
+        
+        String[] parts = new String[lastNonEmpty + 1];
+        int partStart = start;
+        for (int part = 0; part < parts.length; part++)
+        {
+            int partEnd = indexOf(text, partStart, end, separator);
+            parts[part] = new String(text, partStart, partEnd - partStart, StandardCharsets.UTF_8);
+            partStart = partEnd + 1;
+        }
+        
+        return parts;
+    }
+    
+    /**
+     * Decode a region of URL encoded text, as {@link java.net.URLDecoder} does
+     * 
+     * @throws DecoderException if an escape sequence is incomplete
+     */
+    private static String unescape(byte[] text, int start, int end, byte[] scratch) throws DecoderException
+    {
+        int escape = start;
+        while (escape < end && text[escape] != '%' && text[escape] != '+')
+        {
+            escape++;
+        }
+        
+        if (escape == end)
+        {
+            // nothing to unescape
+            return new String(text, start, end - start, StandardCharsets.UTF_8);
+        }
+        
+        int length = 0;
+        for (int i = start; i < end; i++)
+        {
+            byte b = text[i];
+            if (b == '+')
+            {
+                b = ' ';
+            }
+            else if (b == '%')
+            {
+                int high = i + 2 < end ? Character.digit(text[i + 1], 16) : -1;
+                int low = i + 2 < end ? Character.digit(text[i + 2], 16) : -1;
+                if (high < 0 || low < 0)
+                {
+                    throw new DecoderException("Incomplete escape sequence in user ID");
+                }
+                
+                b = (byte) (high << 4 | low);
+                i += 2;
+            }
+            scratch[length++] = b;
+        }
+        
+        return new String(scratch, 0, length, StandardCharsets.UTF_8);
+    }
+    
     /**
      * @see SecureCookie#getValue()
      */
     @Override
     public String getValue()
     {
-        return super.getValue();
+        if (this.content == null)
+        {
+            return super.getValue();
+        }
+        
+        String value = this.value;
+        if (value == null)
+        {
+            value = new String(this.content, StandardCharsets.UTF_8);
+            this.value = value;
+        }
+        
+        return value;
     }
     
     /**
-     * Get the timestamp of the cookie
+     * Get the timestamp of the cookie. Cookies are shared between requests,
+     * so each call returns a new copy.
      * 
      * @return  cookie timestamp
      */
     public Timestamp getTimestamp()
     {
-        return timestamp;
+        if (this.timestamp != null)
+        {
+            return (Timestamp) this.timestamp.clone();
+        }
+        
+        return this.time >= 0 ? new Timestamp(this.time) : null;
+    }
+    
+    /**
+     * Get the time of the cookie without allocating
+     * 
+     * @return  the value of {@link Timestamp#getTime()} on the cookie timestamp, or
+     *          -1 if there is none
+     */
+    public long getTime()
+    {
+        return this.time;
     }
     
     /**
@@ -151,13 +501,21 @@ public class UserDetailsCookie extends SecureCookie
     }
     
     /**
-     * Get a list of tokens from the cookie
+     * Get a list of tokens from the cookie. Cookies are shared between
+     * requests, so each call returns a new copy.
      * 
      * @return  cookie tokens
      */
     public String[] getTokens()
     {
-        return tokens;
+        String[] tokens = this.tokens;
+        if (tokens == null && this.tokensStart >= 0)
+        {
+            tokens = split(this.content, this.tokensStart, this.tokensEnd, (byte) TOKEN_SEPARATOR);
+            this.tokens = tokens;
+        }
+        
+        return tokens == null ? null : tokens.clone();
     }
     
     /**
@@ -167,6 +525,29 @@ public class UserDetailsCookie extends SecureCookie
      */
     public String getUserData()
     {
+        String userData = this.userData;
+        if (userData == null && this.userDataStart >= 0)
+        {
+            userData = new String(this.content, this.userDataStart,
+                    this.userDataEnd - this.userDataStart, StandardCharsets.UTF_8);
+            this.userData = userData;
+        }
+        
         return userData;
     }
+    
+    /**
+     * An encoding handler and the key it was built from
+     */
+    private static class KeyedHandler
+    {
+        final String key;
+        final EncodingHandler handler;
+        
+        KeyedHandler(String key, EncodingHandler handler)
+        {
+            this.key = key;
+            this.handler = handler;
+        }
+    }
 }
@@ -0,0 +1,316 @@
+package uk.ac.ceda.authentication.filter;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.Reader;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * Rules mapping URL paths to the tokens a user needs to access them.
+ * 
+ * Rules are given one per line as {@code pattern = token1, token2}, where
+ * the user needs any one of the tokens listed; a rule with no tokens makes
+ * its paths open to every authenticated user. A pattern ending in
+ * {@code /*} covers a path and everything below it, and any other pattern
+ * covers exactly one path. The most specific rule matching a path applies:
+ * an exact rule, then the longest prefix rule. Blank lines and lines
+ * starting with {@code #} are ignored.
+ * 
+ * The rules are compiled into a character trie, so matching a path takes
+ * time proportional to its length however many rules there are.
+ * 
+ * @author William Tucker
+ */
+class AccessRules
+{
+    private static final String PREFIX_SUFFIX = "/*";
+    private static final char COMMENT = '#';
+    private static final char ASSIGNMENT = '=';
+    private static final char TOKEN_SEPARATOR = ',';
+    
+    private final Node root;
+    private final int size;
+    
+    private AccessRules(Node root, int size)
+    {
+        this.root = root;
+        this.size = size;
+    }
+    
+    /**
+     * Parse and compile a set of rules
+     * 
+     * @param reader    source of the rules
+     * @return  compiled rules
+     * @throws IOException if the rules can't be read
+     * @throws IllegalArgumentException if a rule is invalid or repeated
+     */
+    static AccessRules parse(Reader reader) throws IOException
+    {
+        Builder root = new Builder();
+        int size = 0;
+        
+        BufferedReader lines = new BufferedReader(reader);
+        String line;
+        int lineNumber = 0;
+        while ((line = lines.readLine()) != null)
+        {
+            lineNumber++;
+            line = line.trim();
+            if (line.isEmpty() || line.charAt(0) == COMMENT)
+            {
+                continue;
+            }
+            
+            int assignment = line.indexOf(ASSIGNMENT);
+            String pattern = (assignment < 0 ? line : line.substring(0, assignment)).trim();
+            if (assignment < 0 || pattern.isEmpty() || pattern.charAt(0) != '/')
+            {
+                throw new IllegalArgumentException(String.format(
+                        "Line %d: expected /path = tokens but got %s", lineNumber, line));
+            }
+            
+            if (!root.add(new Rule(pattern, parseTokens(line.substring(assignment + 1)))))
+            {
+                throw new IllegalArgumentException(String.format(
+                        "Line %d: repeated rule for %s", lineNumber, pattern));
+            }
+            size++;
+        }
+        
+        return new AccessRules(root.compile(), size);
+    }
+    
+    /**
+     * Compile a set of patterns that require no tokens, to test whether
+     * any of them covers a path
+     * 
+     * @param patterns  path patterns, each starting with /
+     * @return  compiled rules
+     * @throws IllegalArgumentException if a pattern is invalid
+     */
+    static AccessRules compile(Collection<String> patterns)
+    {
+        Builder root = new Builder();
+        int size = 0;
+        for (String pattern: patterns)
+        {
+            if (pattern.isEmpty() || pattern.charAt(0) != '/')
+            {
+                throw new IllegalArgumentException(String.format("%s is not a path pattern", pattern));
+            }
+            
+            // repeats are harmless when no tokens are involved
+            if (root.add(new Rule(pattern, new String[0])))
+            {
+                size++;
+            }
+        }
+        
+        return new AccessRules(root.compile(), size);
+    }
+    
+    private static String[] parseTokens(String text)
+    {
+        List<String> tokens = new ArrayList<String>();
+        for (String token: text.split(String.valueOf(TOKEN_SEPARATOR)))
+        {
+            token = token.trim();
+            if (!token.isEmpty())
+            {
+                tokens.add(token);
+            }
+        }
+        
+        return tokens.toArray(new String[tokens.size()]);
+    }
+    
+    /**
+     * Find the most specific rule covering a path, in a single pass over
+     * the path
+     * 
+     * @param path  request path within the web application
+     * @return  the rule, or null if no rule covers the path
+     */
+    Rule match(CharSequence path)
+    {
+        int length = path.length();
+        
+        // a /* rule covers everything
+        Rule match = this.root.prefixRule;
+        
+        Node node = this.root;
+        for (int i = 0; i < length; i++)
+        {
+            node = node.child(path.charAt(i));
+            if (node == null)
+            {
+                return match;
+            }
+            
+            // prefix rules only match at segment boundaries
+            if (node.prefixRule != null && (i + 1 == length || path.charAt(i + 1) == '/'))
+            {
+                match = node.prefixRule;
+            }
+        }
+        
+        return node.exactRule != null ? node.exactRule : match;
+    }
+    
+    /**
+     * @return  number of rules
+     */
+    int size()
+    {
+        return this.size;
+    }
+    
+    /**
+     * A path pattern and the tokens it requires
+     */
+    static class Rule
+    {
+        private final String pattern;
+        private final String[] tokens;
+        
+        Rule(String pattern, String[] tokens)
+        {
+            this.pattern = pattern;
+            this.tokens = tokens;
+        }
+        
+        /**
+         * Check whether a user's tokens give access
+         * 
+         * @param userTokens    the user's tokens, may be null
+         * @return  whether the user holds one of the required tokens, or
+         *          true if none are required
+         */
+        boolean permits(String[] userTokens)
+        {
+            if (this.tokens.length == 0)
+            {
+                return true;
+            }
+            if (userTokens == null)
+            {
+                return false;
+            }
+            
+            for (String token: this.tokens)
+            {
+                for (String userToken: userTokens)
+                {
+                    if (token.equals(userToken))
+                    {
+                        return true;
+                    }
+                }
+            }
+            
+            return false;
+        }
+        
+        String getPattern()
+        {
+            return this.pattern;
+        }
+        
+        String[] getTokens()
+        {
+            return this.tokens.clone();
+        }
+    }
+    
+    /**
+     * Compiled trie node, with its children's characters sorted for binary
+     * search
+     */
+    private static class Node
+    {
+        final char[] keys;
+        final Node[] children;
+        final Rule exactRule;
+        final Rule prefixRule;
+        
+        Node(char[] keys, Node[] children, Rule exactRule, Rule prefixRule)
+        {
+            this.keys = keys;
+            this.children = children;
+            this.exactRule = exactRule;
+            this.prefixRule = prefixRule;
+        }
+        
+        Node child(char c)
+        {
+            int index = Arrays.binarySearch(this.keys, c);
+            
+            return index < 0 ? null : this.children[index];
+        }
+    }
+    
+    /**
+     * Trie node while the rules are being added
+     */
+    private static class Builder
+    {
+        final Map<Character, Builder> children = new TreeMap<Character, Builder>();
+        Rule exactRule;
+        Rule prefixRule;
+        
+        /**
+         * Add a rule below this node
+         * 
+         * @return  false if there is already a rule for the pattern
+         */
+        boolean add(Rule rule)
+        {
+            // a prefix rule is held on the node for the path without its /*
+            String pattern = rule.getPattern();
+            boolean prefix = pattern.endsWith(PREFIX_SUFFIX);
+            String path = prefix ? pattern.substring(0, pattern.length() - PREFIX_SUFFIX.length()) : pattern;
+            
+            Builder node = this;
+            for (int i = 0; i < path.length(); i++)
+            {
+                node = node.children.computeIfAbsent(path.charAt(i), c -> new Builder());
+            }
+            
+            if ((prefix ? node.prefixRule : node.exactRule) != null)
+            {
+                return false;
+            }
+            if (prefix)
+            {
+                node.prefixRule = rule;
+            }
+            else
+            {
+                node.exactRule = rule;
+            }
+            
+            return true;
+        }
+        
+        Node compile()
+        {
+            char[] keys = new char[this.children.size()];
+            Node[] nodes = new Node[this.children.size()];
+            int i = 0;
+            for (Map.Entry<Character, Builder> child: this.children.entrySet())
+            {
+                keys[i] = child.getKey();
+                nodes[i] = child.getValue().compile();
+                i++;
+            }
+            
+            return new Node(keys, nodes, this.exactRule, this.prefixRule);
+        }
+    }
+}
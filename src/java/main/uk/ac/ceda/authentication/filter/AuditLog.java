@@ -0,0 +1,483 @@
+package uk.ac.ceda.authentication.filter;
+
+import java.io.BufferedOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.time.Instant;
+import java.time.format.DateTimeFormatter;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+/**
+ * Audit trail of the filter's decisions, written as one JSON object per
+ * line to a local file that is rolled when it grows too large:
+ * 
+ * <pre>
+ * {"time":"2026-10-18T10:00:00.123Z","outcome":"rejected","user":null,"path":"/badc/file.nc","reason":"BAD_SIGNATURE"}
+ * </pre>
+ * 
+ * Request threads hand events to a bounded ring buffer without locking or
+ * blocking, and a background thread writes them out in batches. If the
+ * buffer is full the event is dropped and counted. Cookie values are never
+ * recorded.
+ * 
+ * @author William Tucker
+ */
+class AuditLog
+{
+    /**
+     * Decisions recorded
+     */
+    enum Outcome
+    {
+        AUTHENTICATED("authenticated"),
+        REDIRECTED("redirected"),
+        REJECTED("rejected"),
+        FORBIDDEN("forbidden");
+        
+        private final String label;
+        
+        private Outcome(String label)
+        {
+            this.label = label;
+        }
+        
+        String getLabel()
+        {
+            return this.label;
+        }
+    }
+    
+    private static final int BATCH_SIZE = 512;
+    private static final long IDLE_WAIT_NANOS = TimeUnit.MILLISECONDS.toNanos(20);
+    private static final int WRITE_BUFFER_SIZE = 1 << 16;
+    
+    private final Path file;
+    private final long maxFileSize;
+    private final int maxFiles;
+    
+    // ring buffer: a slot is free for position p when its sequence is p,
+    // and holds the event for position p once its sequence is p + 1
+    private final Event[] slots;
+    private final AtomicLongArray sequences;
+    private final int mask;
+    private final AtomicLong tail = new AtomicLong();
+    private long head;
+    
+    private final LongAdder dropped = new LongAdder();
+    private final LongAdder written = new LongAdder();
+    
+    private final Thread writer;
+    private volatile boolean running;
+    private OutputStream out;
+    private long fileSize;
+    
+    private final LogRateLimiter failureLogLimiter = new LogRateLimiter(10, 1, TimeUnit.MINUTES);
+    
+    private static final Log LOG = LogFactory.getLog(AuditLog.class);
+    
+    /**
+     * Constructor specifying the file and limits. Events are buffered but
+     * not written until {@link #start()} is called.
+     * 
+     * @param file          file to write to, appending to any existing content
+     * @param capacity      number of events buffered; rounded up to a power of two
+     * @param maxFileSize   size in bytes at which the file is rolled, or 0 to never roll
+     * @param maxFiles      number of rolled files kept, as file.1, file.2 and so on
+     * @throws IOException if the file can't be opened
+     */
+    AuditLog(Path file, int capacity, long maxFileSize, int maxFiles) throws IOException
+    {
+        if (capacity <= 0 || capacity > 1 << 30)
+        {
+            throw new IllegalArgumentException("Audit buffer size must be positive");
+        }
+        
+        this.file = file;
+        this.maxFileSize = maxFileSize;
+        this.maxFiles = maxFiles;
+        
+        int size = Integer.highestOneBit(capacity);
+        if (size < capacity)
+        {
+            size <<= 1;
+        }
+        this.mask = size - 1;
+        this.slots = new Event[size];
+        this.sequences = new AtomicLongArray(size);
+        for (int i = 0; i < size; i++)
+        {
+            this.slots[i] = new Event();
+            this.sequences.set(i, i);
+        }
+        
+        open();
+        
+        this.writer = new Thread(this::run, "ceda-auth-filter audit writer");
+        this.writer.setDaemon(true);
+    }
+    
+    /**
+     * Start writing events in the background
+     */
+    void start()
+    {
+        this.running = true;
+        this.writer.start();
+    }
+    
+    /**
+     * Record a decision without blocking
+     * 
+     * @param outcome   what the filter decided
+     * @param userID    authenticated user, may be null
+     * @param path      request path within the web application
+     * @param reason    why a session cookie was rejected, may be null
+     * @return  false if the buffer was full and the event was dropped
+     */
+    boolean record(Outcome outcome, String userID, String path, RejectReason reason)
+    {
+        long time = System.currentTimeMillis();
+        while (true)
+        {
+            long position = this.tail.get();
+            int index = (int) position & this.mask;
+            long sequence = this.sequences.get(index);
+            if (sequence == position)
+            {
+                if (this.tail.compareAndSet(position, position + 1))
+                {
+                    Event event = this.slots[index];
+                    event.time = time;
+                    event.outcome = outcome;
+                    event.userID = userID;
+                    event.path = path;
+                    event.reason = reason;
+                    
+                    // publish the event to the writer
+                    this.sequences.lazySet(index, position + 1);
+                    return true;
+                }
+            }
+            else if (sequence < position)
+            {
+                // the writer has not yet taken the event a lap behind
+                this.dropped.increment();
+                return false;
+            }
+        }
+    }
+    
+    /**
+     * Write events until stopped, then write whatever is left and close the
+     * file. Only this thread uses the file once it has started.
+     */
+    private void run()
+    {
+        try
+        {
+            StringBuilder batch = new StringBuilder(BATCH_SIZE * 128);
+            while (this.running)
+            {
+                if (drain(batch) == 0)
+                {
+                    LockSupport.parkNanos(this, IDLE_WAIT_NANOS);
+                }
+            }
+            
+            while (drain(batch) > 0)
+            {
+                ;
+            }
+        }
+        finally
+        {
+            closeFile();
+        }
+    }
+    
+    /**
+     * Take up to a batch of events from the buffer and write them out
+     * 
+     * @param batch     reusable text buffer
+     * @return  number of events taken
+     */
+    private int drain(StringBuilder batch)
+    {
+        batch.setLength(0);
+        
+        int count = 0;
+        while (count < BATCH_SIZE)
+        {
+            int index = (int) this.head & this.mask;
+            if (this.sequences.get(index) != this.head + 1)
+            {
+                break;
+            }
+            
+            Event event = this.slots[index];
+            format(event, batch);
+            event.userID = null;
+            event.path = null;
+            
+            // free the slot for the next lap
+            this.sequences.lazySet(index, this.head + this.slots.length);
+            this.head++;
+            count++;
+        }
+        
+        if (count > 0)
+        {
+            write(batch, count);
+        }
+        
+        return count;
+    }
+    
+    private void write(StringBuilder batch, int count)
+    {
+        byte[] bytes = batch.toString().getBytes(StandardCharsets.UTF_8);
+        try
+        {
+            if (this.out == null)
+            {
+                // a previous roll could not reopen the file
+                open();
+            }
+            
+            if (this.maxFileSize > 0 && this.fileSize > 0 && this.fileSize + bytes.length > this.maxFileSize)
+            {
+                roll();
+            }
+            
+            this.out.write(bytes);
+            this.out.flush();
+            this.fileSize += bytes.length;
+            this.written.add(count);
+        }
+        catch (IOException e)
+        {
+            this.dropped.add(count);
+            
+            long suppressed = this.failureLogLimiter.acquire();
+            if (suppressed >= 0)
+            {
+                LOG.warn(String.format("Audit events could not be written to %s: %s%s", this.file, e,
+                        suppressed > 0 ? String.format("; %d similar messages suppressed", suppressed) : ""));
+            }
+        }
+    }
+    
+    private void open() throws IOException
+    {
+        OutputStream out = new BufferedOutputStream(Files.newOutputStream(this.file, StandardOpenOption.CREATE,
+                StandardOpenOption.APPEND), WRITE_BUFFER_SIZE);
+        this.fileSize = Files.size(this.file);
+        this.out = out;
+    }
+    
+    /**
+     * Move the file to file.1, shifting older files along and deleting the
+     * oldest, and start a new file. If the files can't be moved, writing
+     * carries on at the end of the current file.
+     * 
+     * @throws IOException if no file could be opened; the next write tries again
+     */
+    private void roll() throws IOException
+    {
+        OutputStream current = this.out;
+        this.out = null;
+        current.close();
+        
+        try
+        {
+            shiftFiles();
+        }
+        catch (IOException e)
+        {
+            long suppressed = this.failureLogLimiter.acquire();
+            if (suppressed >= 0)
+            {
+                LOG.warn(String.format("Audit log %s could not be rolled: %s%s", this.file, e,
+                        suppressed > 0 ? String.format("; %d similar messages suppressed", suppressed) : ""));
+            }
+        }
+        
+        open();
+    }
+    
+    /**
+     * Move the file and its rolled copies one place along
+     */
+    private void shiftFiles() throws IOException
+    {
+        if (this.maxFiles > 0)
+        {
+            Files.deleteIfExists(rolledFile(this.maxFiles));
+            for (int i = this.maxFiles - 1; i >= 1; i--)
+            {
+                Path rolled = rolledFile(i);
+                if (Files.exists(rolled))
+                {
+                    Files.move(rolled, rolledFile(i + 1), StandardCopyOption.REPLACE_EXISTING);
+                }
+            }
+            Files.move(this.file, rolledFile(1), StandardCopyOption.REPLACE_EXISTING);
+        }
+        else
+        {
+            Files.delete(this.file);
+        }
+    }
+    
+    private Path rolledFile(int index)
+    {
+        Path name = this.file.getFileName();
+        Path parent = this.file.getParent();
+        String rolledName = name + "." + index;
+        
+        return parent == null ? Paths.get(rolledName) : parent.resolve(rolledName);
+    }
+    
+    /**
+     * Append an event as a line of JSON
+     */
+    static void format(Event event, StringBuilder out)
+    {
+        out.append("{\"time\":\"");
+        DateTimeFormatter.ISO_INSTANT.formatTo(Instant.ofEpochMilli(event.time), out);
+        out.append("\",\"outcome\":\"").append(event.outcome.getLabel()).append("\",\"user\":");
+        appendString(event.userID, out);
+        out.append(",\"path\":");
+        appendString(event.path, out);
+        out.append(",\"reason\":");
+        if (event.reason == null)
+        {
+            out.append("null");
+        }
+        else
+        {
+            out.append('"').append(event.reason.name()).append('"');
+        }
+        out.append("}\n");
+    }
+    
+    private static void appendString(String value, StringBuilder out)
+    {
+        if (value == null)
+        {
+            out.append("null");
+            return;
+        }
+        
+        out.append('"');
+        for (int i = 0; i < value.length(); i++)
+        {
+            char c = value.charAt(i);
+            if (c == '"' || c == '\\')
+            {
+                out.append('\\').append(c);
+            }
+            else if (c < 0x20)
+            {
+                out.append(String.format("\\u%04x", (int) c));
+            }
+            else
+            {
+                out.append(c);
+            }
+        }
+        out.append('"');
+    }
+    
+    /**
+     * Stop the writer once it has written every buffered event; the writer
+     * closes the file on its way out. A writer stuck for more than a few
+     * seconds is interrupted, which drops the events it has not written.
+     */
+    void close()
+    {
+        this.running = false;
+        if (this.writer.getState() == Thread.State.NEW)
+        {
+            // never started, so the file is still ours to close
+            closeFile();
+            return;
+        }
+        
+        LockSupport.unpark(this.writer);
+        try
+        {
+            this.writer.join(TimeUnit.SECONDS.toMillis(5));
+            if (this.writer.isAlive())
+            {
+                LOG.warn(String.format("Audit log %s writer did not stop; interrupting it", this.file));
+                this.writer.interrupt();
+                this.writer.join(TimeUnit.SECONDS.toMillis(5));
+            }
+        }
+        catch (InterruptedException e)
+        {
+            Thread.currentThread().interrupt();
+        }
+    }
+    
+    private void closeFile()
+    {
+        if (this.out == null)
+        {
+            return;
+        }
+        
+        try
+        {
+            this.out.close();
+            this.out = null;
+        }
+        catch (IOException e)
+        {
+            LOG.warn(String.format("Audit log %s could not be closed: %s", this.file, e));
+        }
+    }
+    
+    /**
+     * @return  number of events dropped because the buffer was full or they
+     *          could not be written
+     */
+    long getDroppedCount()
+    {
+        return this.dropped.sum();
+    }
+    
+    /**
+     * @return  number of events written
+     */
+    long getWrittenCount()
+    {
+        return this.written.sum();
+    }
+    
+    /**
+     * A buffer slot, reused for every lap of the ring
+     */
+    static class Event
+    {
+        long time;
+        Outcome outcome;
+        String userID;
+        String path;
+        RejectReason reason;
+    }
+}
@@ -2,10 +2,24 @@ package uk.ac.ceda.authentication.filter;
 
 import java.io.IOException;
 import java.io.UnsupportedEncodingException;
+import java.io.Reader;
+import java.io.StringReader;
 import java.net.MalformedURLException;
 import java.net.URL;
-import java.net.URLEncoder;
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
 import java.security.NoSuchAlgorithmException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.attribute.FileTime;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Enumeration;
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
 
 import javax.crypto.NoSuchPaddingException;
 import javax.servlet.Filter;
@@ -22,7 +36,11 @@ import org.apache.commons.codec.DecoderException;
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
 
+import uk.ac.ceda.authentication.cookie.CookieCache;
 import uk.ac.ceda.authentication.cookie.DecryptionException;
+import uk.ac.ceda.authentication.cookie.EncodingHandler;
+import uk.ac.ceda.authentication.cookie.KeyRing;
+import uk.ac.ceda.authentication.cookie.RejectedCookieCache;
 import uk.ac.ceda.authentication.cookie.UserDetailsCookie;
 import uk.ac.ceda.authentication.filter.AuthenticateRedirectFilter;
 
@@ -35,14 +53,71 @@ public class AuthenticateRedirectFilter implements Filter
 {
 
     private String requestAttribute;
+    private String sessionAttribute;
+    private boolean wrapRequest;
     
     private URL authenticateUrl;
     private String returnQueryName;
+    private String redirectPrefix;
     
     private String sessionCookieName;
     private String secretKey;
+    private volatile KeyRing keyRing;
+    
+    private Path keyFile;
+    private FileTime keyFileModified;
+    private ScheduledExecutorService fileWatcher;
+    
+    private Path revocationFile;
+    private FileTime revocationFileModified;
+    private volatile RevocationList revocationList;
+    
+    private CookieCache<UserDetailsCookie> sessionCache;
+    private RejectedCookieCache rejectedCookies;
+    private final LogRateLimiter rejectionLogLimiter =
+            new LogRateLimiter(REJECTION_LOG_LIMIT, 1, TimeUnit.MINUTES);
+    private final FilterMetrics metrics = new FilterMetrics();
+    
+    private SessionValidator sessionValidator;
+    private AccessRules accessRules;
+    private BypassRules bypassRules;
+    private boolean sessionCheckFailOpen;
+    
+    private boolean directRejection;
+    private boolean cookieHeaderScan;
+    
+    private AuditLog auditLog;
     
     private static final String RETURN_QUERY_NAME_DEFAULT = "r";
+    private static final String REJECTION_MODE_ERROR = "sendError";
+    private static final String REJECTION_MODE_DIRECT = "direct";
+    private static final String COOKIE_HEADER = "Cookie";
+    private static final int CACHE_SIZE_DEFAULT = 10000;
+    private static final int CACHE_TTL_DEFAULT = 300;
+    private static final int REJECT_CACHE_SIZE_DEFAULT = 4096;
+    private static final int REJECT_CACHE_TTL_DEFAULT = 60;
+    private static final int REJECTION_LOG_LIMIT = 10;
+    private static final int KEY_FILE_RELOAD_INTERVAL_DEFAULT = 30;
+    private static final int REVOCATION_RELOAD_INTERVAL_DEFAULT = 30;
+    private static final int SESSION_CHECK_CACHE_SIZE_DEFAULT = 10000;
+    private static final int SESSION_CHECK_TTL_DEFAULT = 30;
+    private static final int SESSION_CHECK_MAX_STALE_DEFAULT = 300;
+    private static final int SESSION_CHECK_MAX_IN_FLIGHT_DEFAULT = 16;
+    private static final int SESSION_CHECK_TIMEOUT_DEFAULT = 2000;
+    private static final int AUDIT_BUFFER_SIZE_DEFAULT = 8192;
+    private static final int AUDIT_LOG_MAX_SIZE_DEFAULT = 10 * 1024 * 1024;
+    private static final int AUDIT_LOG_FILES_DEFAULT = 5;
+    private static final int WARM_UP_ITERATIONS_DEFAULT = 5000;
+    private static final String WARM_UP_USER_ID = "warm-up";
+    private static final String WARM_UP_URL = "http://localhost/warm-up?a=1&b=2";
+    
+    private static final String UNAUTHORIZED_MESSAGE = "User not found.";
+    private static final byte[] UNAUTHORIZED_BODY =
+            (UNAUTHORIZED_MESSAGE + "\n").getBytes(StandardCharsets.UTF_8);
+    private static final String FORBIDDEN_MESSAGE = "Access denied.";
+    private static final byte[] FORBIDDEN_BODY =
+            (FORBIDDEN_MESSAGE + "\n").getBytes(StandardCharsets.UTF_8);
+    private static final String REJECTION_CONTENT_TYPE = "text/plain;charset=UTF-8";
     
     private static final Log LOG = LogFactory.getLog(AuthenticateRedirectFilter.class);
     
@@ -51,7 +126,35 @@ public class AuthenticateRedirectFilter implements Filter
      */
     public void destroy()
     {
+        this.metrics.unregister();
+        
+        if (this.fileWatcher != null)
+        {
+            this.fileWatcher.shutdownNow();
+            this.fileWatcher = null;
+        }
+        
+        if (this.sessionValidator != null)
+        {
+            this.sessionValidator.shutdown();
+            this.sessionValidator = null;
+        }
+        
+        if (this.auditLog != null)
+        {
+            this.auditLog.close();
+            this.auditLog = null;
+        }
         
+        if (this.sessionCache != null)
+        {
+            LOG.info(String.format("Session cache hits: %d, misses: %d",
+                    this.sessionCache.getHitCount(), this.sessionCache.getMissCount()));
+            
+            this.sessionCache.clear();
+        }
+        
+        swapKeyRing(null);
     }
     
     /**
@@ -60,30 +163,32 @@ public class AuthenticateRedirectFilter implements Filter
     public void doFilter(ServletRequest request, ServletResponse response, FilterChain chain)
             throws IOException, ServletException
     {
+        BypassRules bypassRules = this.bypassRules;
+        if (bypassRules != null)
+        {
+            HttpServletRequest httpRequest = (HttpServletRequest) request;
+            if (bypassRules.matches(httpRequest.getMethod(), getRequestPath(httpRequest)))
+            {
+                // public resources go straight along the chain
+                this.metrics.recordBypassed();
+                chain.doFilter(request, response);
+                return;
+            }
+        }
+        
         if (this.authenticateUrl == null)
         {
             LOG.warn("Authenticate URL not specified in config; skipping filter.");
+            this.metrics.recordSkipped();
         }
         else
         {
             HttpServletRequest httpRequest = (HttpServletRequest) request;
             
             // retrieve session cookie
-            String cookieValue = null;
-            Cookie[] cookies = httpRequest.getCookies();
-            if (cookies != null)
-            {
-                for (Cookie cookie: cookies)
-                {
-                    if (cookie.getName().equals(this.sessionCookieName))
-                    {
-                        cookieValue = cookie.getValue();
-                        
-                        if (LOG.isDebugEnabled())
-                            LOG.debug(String.format("Found session cookie: %s", this.sessionCookieName));
-                    }
-                }
-            }
+            String cookieValue = getSessionCookieValue(httpRequest);
+            if (cookieValue != null && LOG.isDebugEnabled())
+                LOG.debug(String.format("Found session cookie: %s", this.sessionCookieName));
             
             if (cookieValue == null)
             {
@@ -97,62 +202,93 @@ public class AuthenticateRedirectFilter implements Filter
                     requestUrl.append('?').append(query);
                 }
                 
-                try
-                {
-                    String redirectUrl = getRedirectUrl(requestUrl.toString());
-                    
-                    // send the redirect
-                    HttpServletResponse httpResponse = (HttpServletResponse) response;
-                    httpResponse.sendRedirect(redirectUrl);
-                    
-                    if (LOG.isDebugEnabled())
-                        LOG.debug(String.format(
-                                "Session cookie not found; redirecting to: %s", redirectUrl));
-                }
-                catch (MalformedURLException | UnsupportedEncodingException e)
-                {
-                    LOG.error("Failed to construct redirect reponse.", e);
-                }
+                String redirectUrl = getRedirectUrl(requestUrl);
+                
+                // send the redirect
+                HttpServletResponse httpResponse = (HttpServletResponse) response;
+                httpResponse.sendRedirect(redirectUrl);
+                
+                if (LOG.isDebugEnabled())
+                    LOG.debug(String.format(
+                            "Session cookie not found; redirecting to: %s", redirectUrl));
+                this.metrics.recordRedirected();
+                audit(httpRequest, AuditLog.Outcome.REDIRECTED, null, null);
+                
+                // the request has been answered; don't pass it along the chain
+                return;
             }
             else
             {
                 // determine userID from session cookie
+                UserDetailsCookie sessionCookie = null;
+                if (this.sessionCache != null)
+                {
+                    sessionCookie = this.sessionCache.get(cookieValue);
+                }
+                
+                if (sessionCookie == null)
+                {
+                    sessionCookie = parseSessionCookie(httpRequest, cookieValue);
+                }
+                
                 String userID = null;
-                try
+                if (sessionCookie != null)
                 {
-                    // parse a user ID from the cookie value
-                    UserDetailsCookie sessionCookie = UserDetailsCookie.parseCookie(
-                            cookieValue,
-                            this.secretKey);
                     userID = sessionCookie.getUserID();
                     
                     if (LOG.isDebugEnabled())
                         LOG.debug(String.format("Found user ID: %s, cookie timestamp: %s",
                                 userID, sessionCookie.getTimestamp()));
-                }
-                catch (NoSuchAlgorithmException | NoSuchPaddingException e)
-                {
-                    LOG.error("Failed to load decoding/decryption handlers.", e);
-                }
-                catch (DecoderException | DecryptionException e)
-                {
-                    if (LOG.isDebugEnabled())
-                        LOG.debug(String.format("Problem parsing cookie value: %s", cookieValue), e);
+                    
+                    // the cookie is genuine, but the user may have been revoked
+                    // or the session ended since
+                    if (userID != null && isRevoked(httpRequest, userID, sessionCookie))
+                    {
+                        userID = null;
+                    }
+                    else if (userID != null && this.sessionValidator != null &&
+                            !isSessionLive(httpRequest, cookieValue, userID))
+                    {
+                        userID = null;
+                    }
                 }
                 
                 if (userID == null)
                 {
                     // userID not found in cookie
-                    // send 401 response
-                    HttpServletResponse httpResponse = (HttpServletResponse) response;
-                    httpResponse.sendError(HttpServletResponse.SC_UNAUTHORIZED, "User not found.");
+                    // send 401 response and end the request
+                    this.metrics.recordRejected();
+                    sendRejection((HttpServletResponse) response, HttpServletResponse.SC_UNAUTHORIZED,
+                            UNAUTHORIZED_MESSAGE, UNAUTHORIZED_BODY);
+                    return;
+                }
+                else if (this.accessRules != null && !isAccessPermitted(httpRequest, sessionCookie))
+                {
+                    // send 403 response and end the request
+                    this.metrics.recordForbidden();
+                    audit(httpRequest, AuditLog.Outcome.FORBIDDEN, userID, null);
+                    sendRejection((HttpServletResponse) response, HttpServletResponse.SC_FORBIDDEN,
+                            FORBIDDEN_MESSAGE, FORBIDDEN_BODY);
+                    return;
                 }
                 else
                 {
                     // set request attribute indicating authentication success
                     httpRequest.setAttribute(this.requestAttribute, userID);
+                    this.metrics.recordAuthenticated();
+                    audit(httpRequest, AuditLog.Outcome.AUTHENTICATED, userID, null);
                     if (LOG.isDebugEnabled())
                         LOG.debug(String.format("Setting '%s' attribute", this.requestAttribute));
+                    
+                    // share the parsed cookie so it isn't decrypted again downstream
+                    if (this.sessionAttribute != null)
+                    {
+                        httpRequest.setAttribute(this.sessionAttribute, sessionCookie);
+                    }
+                    if (this.wrapRequest)
+                    {
+                        request = new AuthenticatedRequest(httpRequest, sessionCookie);
+                    }
                 }
             }
         }
@@ -161,6 +297,298 @@ public class AuthenticateRedirectFilter implements Filter
         chain.doFilter(request, response);
     }
     
+    /**
+     * Parse a session cookie that isn't in the cache. Values that are
+     * malformed or were recently rejected are turned away before any
+     * cryptographic work is done.
+     * 
+     * @param request       the request, for the audit log
+     * @param cookieValue   raw cookie value
+     * @return  the parsed cookie, or null if the cookie was rejected
+     */
+    private UserDetailsCookie parseSessionCookie(HttpServletRequest request, String cookieValue)
+    {
+        KeyRing keyRing = this.keyRing;
+        if (keyRing == null)
+        {
+            LOG.error("Decoding/decryption handlers not loaded; check secret key config.");
+            this.metrics.recordRejectReason(RejectReason.NO_SECRET_KEY);
+            audit(request, AuditLog.Outcome.REJECTED, null, RejectReason.NO_SECRET_KEY);
+            return null;
+        }
+        
+        RejectedCookieCache rejectedCookies = this.rejectedCookies;
+        if (rejectedCookies != null && rejectedCookies.contains(cookieValue))
+        {
+            reject(request, null, RejectReason.RECENTLY_REJECTED, null);
+            return null;
+        }
+        
+        // pick the key named by the cookie, so only one signature is checked
+        EncodingHandler encodingHandler = keyRing.getHandler(cookieValue);
+        if (encodingHandler == null)
+        {
+            reject(request, null, RejectReason.UNKNOWN_KEY, null);
+            return null;
+        }
+        
+        if (!encodingHandler.isWellFormed(cookieValue))
+        {
+            reject(request, null, RejectReason.MALFORMED, null);
+            return null;
+        }
+        
+        RejectReason reason;
+        Exception cause = null;
+        try
+        {
+            // parse a user ID from the cookie value
+            long start = System.nanoTime();
+            UserDetailsCookie sessionCookie = UserDetailsCookie.parseCookie(cookieValue, encodingHandler);
+            this.metrics.recordDecode(System.nanoTime() - start);
+            if (sessionCookie.getUserID() != null)
+            {
+                if (this.sessionCache != null)
+                {
+                    this.sessionCache.put(cookieValue, sessionCookie);
+                }
+                
+                return sessionCookie;
+            }
+            
+            reason = RejectReason.BAD_SIGNATURE;
+        }
+        catch (DecoderException e)
+        {
+            reason = RejectReason.DECODE_ERROR;
+            cause = e;
+        }
+        catch (DecryptionException e)
+        {
+            reason = RejectReason.DECRYPT_ERROR;
+            cause = e;
+        }
+        
+        // remember the value so that repeats are cheap to reject
+        if (rejectedCookies != null)
+        {
+            rejectedCookies.add(cookieValue);
+        }
+        reject(request, null, reason, cause);
+        
+        return null;
+    }
+    
+    /**
+     * Check whether the session has been revoked, which is the case if its
+     * user is on the revocation list and the cookie was issued no later than
+     * the revocation
+     * 
+     * @param request       the request, for the audit log
+     * @param userID        user named by the cookie
+     * @param sessionCookie the parsed cookie
+     * @return  whether the request must be rejected
+     */
+    private boolean isRevoked(HttpServletRequest request, String userID, UserDetailsCookie sessionCookie)
+    {
+        RevocationList revocationList = this.revocationList;
+        if (revocationList == null || !revocationList.isRevoked(userID, sessionCookie.getTime()))
+        {
+            return false;
+        }
+        
+        reject(request, userID, RejectReason.REVOKED, null);
+        return true;
+    }
+    
+    /**
+     * Check with the authentication service that a session is still live.
+     * A cached answer is used straight away, even if it is being refreshed;
+     * only a session's first check waits, for up to sessionCheckTimeout. A
+     * session that can't be checked in that time is let through or rejected
+     * according to sessionCheckFailOpen.
+     * 
+     * @param request       the request, for the audit log
+     * @param cookieValue   raw cookie value
+     * @param userID        user named by the cookie
+     * @return  whether the request may go ahead
+     */
+    private boolean isSessionLive(HttpServletRequest request, String cookieValue, String userID)
+    {
+        switch (this.sessionValidator.check(cookieValue))
+        {
+            case LIVE:
+                return true;
+            case ENDED:
+                reject(request, userID, RejectReason.SESSION_ENDED, null);
+                return false;
+            default:
+                if (this.sessionCheckFailOpen)
+                {
+                    return true;
+                }
+                reject(request, userID, RejectReason.SESSION_UNCHECKED, null);
+                return false;
+        }
+    }
+    
+    /**
+     * Count, audit and log a rejected session cookie, limiting how often
+     * rejections are logged. The cookie value itself is never logged.
+     * 
+     * @param request   the request
+     * @param userID    user named by the cookie, if it was genuine
+     * @param reason    why the cookie was rejected
+     * @param cause     exception raised while parsing, may be null
+     */
+    private void reject(HttpServletRequest request, String userID, RejectReason reason, Exception cause)
+    {
+        this.metrics.recordRejectReason(reason);
+        audit(request, AuditLog.Outcome.REJECTED, userID, reason);
+        
+        if (!LOG.isInfoEnabled())
+        {
+            return;
+        }
+        
+        long suppressed = this.rejectionLogLimiter.acquire();
+        if (suppressed < 0)
+        {
+            return;
+        }
+        
+        StringBuilder message = new StringBuilder("Rejected session cookie: ").append(reason.getDescription());
+        if (cause != null)
+        {
+            message.append(" (").append(cause.getMessage()).append(')');
+        }
+        if (suppressed > 0)
+        {
+            message.append("; ").append(suppressed).append(" similar messages suppressed");
+        }
+        
+        LOG.info(message.toString());
+    }
+    
+    /**
+     * Hand a decision to the audit log, if there is one
+     * 
+     * @param request   the request
+     * @param outcome   what was decided
+     * @param userID    user named by the session cookie, may be null
+     * @param reason    why the session cookie was rejected, may be null
+     */
+    private void audit(HttpServletRequest request, AuditLog.Outcome outcome, String userID, RejectReason reason)
+    {
+        AuditLog auditLog = this.auditLog;
+        if (auditLog != null)
+        {
+            auditLog.record(outcome, userID, getRequestPath(request), reason);
+        }
+    }
+    
+    /**
+     * Find the value of the session cookie. If the same cookie name occurs
+     * more than once the last value is used.
+     * 
+     * @param request   the request
+     * @return  the cookie value, or null if the request has no session cookie
+     */
+    private String getSessionCookieValue(HttpServletRequest request)
+    {
+        if (this.cookieHeaderScan)
+        {
+            // look for the one cookie we need without the container parsing them all
+            Enumeration<String> headers = request.getHeaders(COOKIE_HEADER);
+            if (headers != null)
+            {
+                return CookieHeaderParser.findCookie(headers, this.sessionCookieName);
+            }
+        }
+        
+        Cookie[] cookies = request.getCookies();
+        if (cookies != null)
+        {
+            for (int i = cookies.length - 1; i >= 0; i--)
+            {
+                if (cookies[i].getName().equals(this.sessionCookieName))
+                {
+                    return cookies[i].getValue();
+                }
+            }
+        }
+        
+        return null;
+    }
+    
+    /**
+     * Check the user's tokens against the access rule covering the request
+     * path
+     * 
+     * @param request       the request
+     * @param sessionCookie the user's session cookie
+     * @return  whether the user may access the path
+     */
+    private boolean isAccessPermitted(HttpServletRequest request, UserDetailsCookie sessionCookie)
+    {
+        String path = getRequestPath(request);
+        AccessRules.Rule rule = this.accessRules.match(path);
+        if (rule == null || rule.permits(sessionCookie.getTokens()))
+        {
+            return true;
+        }
+        
+        if (LOG.isDebugEnabled())
+            LOG.debug(String.format("User %s lacks the tokens for %s required by %s",
+                    sessionCookie.getUserID(), path, rule.getPattern()));
+        
+        return false;
+    }
+    
+    /**
+     * Get the path of a request within the web application from the servlet
+     * path and path info, which the container has already decoded and
+     * normalised
+     * 
+     * @param request   the request
+     * @return  the request path
+     */
+    private static String getRequestPath(HttpServletRequest request)
+    {
+        String servletPath = request.getServletPath();
+        String pathInfo = request.getPathInfo();
+        String path = servletPath == null ? "" : servletPath;
+        
+        return pathInfo == null ? path : path.concat(pathInfo);
+    }
+    
+    /**
+     * Send a rejection response, either through the container's error
+     * handling or by writing the pre-rendered response directly
+     * 
+     * @param response  the response to send
+     * @param status    HTTP status code
+     * @param message   message for the container's error page
+     * @param body      pre-rendered response body
+     * @throws IOException
+     */
+    private void sendRejection(HttpServletResponse response, int status, String message, byte[] body)
+            throws IOException
+    {
+        if (this.directRejection)
+        {
+            response.setStatus(status);
+            response.setContentType(REJECTION_CONTENT_TYPE);
+            response.setContentLength(body.length);
+            response.setHeader("Cache-Control", "no-store");
+            response.getOutputStream().write(body);
+        }
+        else
+        {
+            response.sendError(status, message);
+        }
+    }
+    
     /**
      * @see Filter#init(FilterConfig)
      */
@@ -173,12 +601,528 @@ public class AuthenticateRedirectFilter implements Filter
             this.setSessionCookieName(fConfig.getInitParameter("sessionCookieName"));
             this.setSecretKey(fConfig.getInitParameter("secretKey"));
             this.setRequestAttribute(fConfig.getInitParameter("requestAttribute"));
+            this.setSessionAttribute(fConfig.getInitParameter("sessionAttribute"));
+            this.setWrapRequest(Boolean.parseBoolean(fConfig.getInitParameter("wrapRequest")));
+            
+            String keyFile = fConfig.getInitParameter("keyFile");
+            if (keyFile != null)
+            {
+                this.setKeyFile(Paths.get(keyFile));
+            }
         }
         
         if (this.returnQueryName == null)
         {
             this.returnQueryName = RETURN_QUERY_NAME_DEFAULT;
         }
+        updateRedirectPrefix();
+        
+        String cookieHeaderScan = fConfig == null ? null : fConfig.getInitParameter("cookieHeaderScan");
+        this.cookieHeaderScan = Boolean.parseBoolean(cookieHeaderScan);
+        
+        String rejectionMode = fConfig == null ? null : fConfig.getInitParameter("rejectionMode");
+        if (rejectionMode == null || rejectionMode.equals(REJECTION_MODE_ERROR))
+        {
+            this.directRejection = false;
+        }
+        else if (rejectionMode.equals(REJECTION_MODE_DIRECT))
+        {
+            this.directRejection = true;
+        }
+        else
+        {
+            throw new ServletException(String.format("%s is not a valid rejection mode", rejectionMode));
+        }
+        
+        // before any background threads start, so a failed self-test leaves none behind
+        if (fConfig != null && Boolean.parseBoolean(fConfig.getInitParameter("warmUp")))
+        {
+            warmUp(fConfig.getInitParameter("warmUpCookie"),
+                    getIntParameter(fConfig, "warmUpIterations", WARM_UP_ITERATIONS_DEFAULT));
+        }
+        
+        int cacheSize = getIntParameter(fConfig, "cacheSize", CACHE_SIZE_DEFAULT);
+        int cacheTtl = getIntParameter(fConfig, "cacheTtl", CACHE_TTL_DEFAULT);
+        if (cacheSize > 0 && cacheTtl > 0)
+        {
+            this.sessionCache = new CookieCache<UserDetailsCookie>(cacheSize, cacheTtl, TimeUnit.SECONDS);
+        }
+        else
+        {
+            this.sessionCache = null;
+        }
+        this.metrics.setSessionCache(this.sessionCache);
+        
+        int rejectCacheSize = getIntParameter(fConfig, "rejectCacheSize", REJECT_CACHE_SIZE_DEFAULT);
+        int rejectCacheTtl = getIntParameter(fConfig, "rejectCacheTtl", REJECT_CACHE_TTL_DEFAULT);
+        if (rejectCacheSize > 0 && rejectCacheTtl > 0)
+        {
+            this.rejectedCookies = new RejectedCookieCache(rejectCacheSize, rejectCacheTtl, TimeUnit.SECONDS);
+        }
+        else
+        {
+            this.rejectedCookies = null;
+        }
+        
+        if (this.keyFile != null)
+        {
+            int reloadInterval = getIntParameter(fConfig, "keyFileReloadInterval",
+                    KEY_FILE_RELOAD_INTERVAL_DEFAULT);
+            if (reloadInterval > 0)
+            {
+                watchFile(this::checkKeyFile, reloadInterval);
+            }
+        }
+        
+        this.revocationList = null;
+        this.revocationFile = null;
+        String revocationFile = fConfig == null ? null : fConfig.getInitParameter("revocationFile");
+        if (revocationFile != null)
+        {
+            this.revocationFile = Paths.get(revocationFile);
+            try
+            {
+                this.revocationFileModified = Files.getLastModifiedTime(this.revocationFile);
+                this.revocationList = RevocationList.load(this.revocationFile);
+                LOG.info(String.format("Loaded %d revoked users from %s", this.revocationList.size(),
+                        this.revocationFile));
+            }
+            catch (IOException e)
+            {
+                throw new ServletException(String.format("Failed to load revocation file %s", revocationFile), e);
+            }
+            
+            int reloadInterval = getIntParameter(fConfig, "revocationReloadInterval",
+                    REVOCATION_RELOAD_INTERVAL_DEFAULT);
+            if (reloadInterval > 0)
+            {
+                watchFile(this::checkRevocationFile, reloadInterval);
+            }
+        }
+        
+        if (this.sessionValidator != null)
+        {
+            this.sessionValidator.shutdown();
+            this.sessionValidator = null;
+        }
+        
+        String sessionCheckUrl = fConfig == null ? null : fConfig.getInitParameter("sessionCheckUrl");
+        if (sessionCheckUrl != null)
+        {
+            URL checkUrl;
+            try
+            {
+                checkUrl = new URL(sessionCheckUrl);
+            }
+            catch (MalformedURLException e)
+            {
+                throw new ServletException(String.format("%s is not a valid URL", sessionCheckUrl), e);
+            }
+            
+            int checkCacheSize = getIntParameter(fConfig, "sessionCheckCacheSize",
+                    SESSION_CHECK_CACHE_SIZE_DEFAULT);
+            int checkTtl = getIntParameter(fConfig, "sessionCheckTtl", SESSION_CHECK_TTL_DEFAULT);
+            int checkMaxStale = getIntParameter(fConfig, "sessionCheckMaxStale",
+                    Math.max(SESSION_CHECK_MAX_STALE_DEFAULT, checkTtl));
+            int maxInFlight = getIntParameter(fConfig, "sessionCheckMaxInFlight",
+                    SESSION_CHECK_MAX_IN_FLIGHT_DEFAULT);
+            int checkTimeout = getIntParameter(fConfig, "sessionCheckTimeout", SESSION_CHECK_TIMEOUT_DEFAULT);
+            
+            try
+            {
+                this.sessionValidator = new SessionValidator(checkUrl, this.sessionCookieName, checkCacheSize,
+                        TimeUnit.SECONDS.toMillis(checkTtl), TimeUnit.SECONDS.toMillis(checkMaxStale), maxInFlight,
+                        checkTimeout, TimeUnit.MILLISECONDS);
+            }
+            catch (IllegalArgumentException e)
+            {
+                throw new ServletException("Invalid session check settings", e);
+            }
+            
+            String failOpen = fConfig.getInitParameter("sessionCheckFailOpen");
+            this.sessionCheckFailOpen = failOpen == null || Boolean.parseBoolean(failOpen);
+        }
+        this.metrics.setSessionValidator(this.sessionValidator);
+        
+        if (this.auditLog != null)
+        {
+            this.auditLog.close();
+            this.auditLog = null;
+        }
+        
+        String auditFile = fConfig == null ? null : fConfig.getInitParameter("auditLog");
+        if (auditFile != null)
+        {
+            int bufferSize = getIntParameter(fConfig, "auditBufferSize", AUDIT_BUFFER_SIZE_DEFAULT);
+            int maxSize = getIntParameter(fConfig, "auditLogMaxSize", AUDIT_LOG_MAX_SIZE_DEFAULT);
+            int files = getIntParameter(fConfig, "auditLogFiles", AUDIT_LOG_FILES_DEFAULT);
+            
+            try
+            {
+                this.auditLog = new AuditLog(Paths.get(auditFile), bufferSize, maxSize, files);
+            }
+            catch (IOException | IllegalArgumentException e)
+            {
+                throw new ServletException(String.format("Failed to open audit log %s", auditFile), e);
+            }
+            this.auditLog.start();
+        }
+        this.metrics.setAuditLog(this.auditLog);
+        
+        this.accessRules = loadAccessRules(fConfig);
+        
+        if (fConfig != null)
+        {
+            try
+            {
+                this.bypassRules = BypassRules.compile(fConfig.getInitParameter("bypassMethods"),
+                        fConfig.getInitParameter("bypassPaths"), fConfig.getInitParameter("bypassExtensions"));
+            }
+            catch (IllegalArgumentException e)
+            {
+                throw new ServletException("Invalid bypass rules", e);
+            }
+        }
+        
+        String jmxMetrics = fConfig == null ? null : fConfig.getInitParameter("jmxMetrics");
+        if (Boolean.parseBoolean(jmxMetrics))
+        {
+            String context = null;
+            String name = null;
+            if (fConfig != null)
+            {
+                name = fConfig.getFilterName();
+                if (fConfig.getServletContext() != null)
+                {
+                    context = fConfig.getServletContext().getContextPath();
+                }
+            }
+            this.metrics.register(context, name);
+        }
+    }
+    
+    /**
+     * Initialise the cryptographic primitives for every key and compile the
+     * decode and redirect paths before the first request arrives, so that
+     * early requests don't pay for provider lookups, class loading and
+     * interpreted code. Warm-up decodes are kept out of the metrics and the
+     * caches.
+     * 
+     * @param knownCookie   cookie issued by the authentication service, which
+     *                      must decode with the configured keys; may be null
+     * @param iterations    number of times the decode and redirect paths are run
+     * @throws ServletException if the keys are missing or don't work
+     */
+    private void warmUp(String knownCookie, int iterations) throws ServletException
+    {
+        long start = System.nanoTime();
+        
+        KeyRing keyRing = this.keyRing;
+        if (keyRing == null)
+        {
+            throw new ServletException("Warm-up failed: no secret key is configured");
+        }
+        
+        // a cookie of each format for each key, to exercise every codec
+        List<EncodingHandler> handlers = new ArrayList<EncodingHandler>();
+        List<String> samples = new ArrayList<String>();
+        try
+        {
+            long time = System.currentTimeMillis() / 1000;
+            for (EncodingHandler handler: keyRing.getHandlers())
+            {
+                for (EncodingHandler.Format format: EncodingHandler.Format.values())
+                {
+                    handlers.add(handler);
+                    samples.add(UserDetailsCookie.encode(handler, format, time, WARM_UP_USER_ID,
+                            new String[] {"token"}, "data"));
+                }
+            }
+        }
+        catch (GeneralSecurityException e)
+        {
+            throw new ServletException("Warm-up failed: cookies could not be encoded", e);
+        }
+        
+        keyRing.setLatencyHistograms(null, null);
+        try
+        {
+            // self-test before anything else, so a bad key fails fast
+            if (knownCookie != null && warmUpDecode(keyRing.getHandler(knownCookie), knownCookie) == null)
+            {
+                throw new ServletException(
+                        "Warm-up failed: the warm-up cookie could not be decoded; check the secret key config");
+            }
+            for (int i = 0; i < samples.size(); i++)
+            {
+                if (!WARM_UP_USER_ID.equals(warmUpDecode(handlers.get(i), samples.get(i))))
+                {
+                    throw new ServletException("Warm-up failed: a sample cookie could not be decoded");
+                }
+            }
+            
+            String cookieHeader = String.format("other=1; %s=%s", this.sessionCookieName, samples.get(0));
+            StringBuffer requestUrl = new StringBuffer();
+            for (int i = 0; i < iterations; i++)
+            {
+                int sample = i % samples.size();
+                warmUpDecode(handlers.get(sample), samples.get(sample));
+                
+                CookieHeaderParser.findCookie(Collections.enumeration(Collections.singletonList(cookieHeader)),
+                        this.sessionCookieName);
+                
+                if (this.redirectPrefix != null)
+                {
+                    requestUrl.setLength(0);
+                    requestUrl.append(WARM_UP_URL);
+                    getRedirectUrl(requestUrl);
+                }
+            }
+        }
+        finally
+        {
+            this.metrics.instrument(keyRing);
+        }
+        
+        LOG.info(String.format("Warmed up %d keys with %d iterations in %d ms", keyRing.size(), iterations,
+                TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start)));
+    }
+    
+    /**
+     * Decode a cookie during warm-up, bypassing the caches and metrics
+     * 
+     * @param encodingHandler   handler for the cookie's key, may be null
+     * @param cookieValue       raw cookie value
+     * @return  the user ID, or null if the cookie could not be decoded
+     */
+    private static String warmUpDecode(EncodingHandler encodingHandler, String cookieValue)
+    {
+        if (encodingHandler == null || !encodingHandler.isWellFormed(cookieValue))
+        {
+            return null;
+        }
+        
+        try
+        {
+            return UserDetailsCookie.parseCookie(cookieValue, encodingHandler).getUserID();
+        }
+        catch (DecoderException | DecryptionException e)
+        {
+            return null;
+        }
+    }
+    
+    /**
+     * Compile the access rules given inline or in a file, if any
+     * 
+     * @param fConfig   filter config, may be null
+     * @return  the rules, or null if there are none
+     * @throws ServletException if the rules can't be read or are invalid
+     */
+    private static AccessRules loadAccessRules(FilterConfig fConfig) throws ServletException
+    {
+        String rules = fConfig == null ? null : fConfig.getInitParameter("accessRules");
+        String rulesFile = fConfig == null ? null : fConfig.getInitParameter("accessRulesFile");
+        if (rules == null && rulesFile == null)
+        {
+            return null;
+        }
+        if (rules != null && rulesFile != null)
+        {
+            throw new ServletException("Only one of accessRules and accessRulesFile may be set");
+        }
+        
+        try (Reader reader = rules != null ? new StringReader(rules) :
+                Files.newBufferedReader(Paths.get(rulesFile), StandardCharsets.UTF_8))
+        {
+            AccessRules accessRules = AccessRules.parse(reader);
+            LOG.info(String.format("Loaded %d access rules", accessRules.size()));
+            
+            return accessRules;
+        }
+        catch (IOException | IllegalArgumentException e)
+        {
+            throw new ServletException("Failed to load access rules", e);
+        }
+    }
+    
+    /**
+     * Run a file check periodically on the shared watcher thread
+     * 
+     * @param check     the check to run
+     * @param interval  seconds between checks
+     */
+    private void watchFile(Runnable check, int interval)
+    {
+        if (this.fileWatcher == null)
+        {
+            this.fileWatcher = Executors.newSingleThreadScheduledExecutor(runnable -> {
+                Thread thread = new Thread(runnable, "ceda-auth-filter file watcher");
+                thread.setDaemon(true);
+                return thread;
+            });
+        }
+        this.fileWatcher.scheduleWithFixedDelay(check, interval, interval, TimeUnit.SECONDS);
+    }
+    
+    /**
+     * Reload the revocation file if it has been modified since it was last
+     * read. If the file can't be loaded the current list is kept.
+     */
+    private void checkRevocationFile()
+    {
+        try
+        {
+            FileTime modified = Files.getLastModifiedTime(this.revocationFile);
+            if (!modified.equals(this.revocationFileModified))
+            {
+                // a file that fails to load is not retried until it changes again
+                this.revocationFileModified = modified;
+                
+                RevocationList revocationList = RevocationList.load(this.revocationFile);
+                this.revocationList = revocationList;
+                
+                LOG.info(String.format("Loaded %d revoked users from %s", revocationList.size(),
+                        this.revocationFile));
+            }
+        }
+        catch (IOException | RuntimeException e)
+        {
+            LOG.warn(String.format("Failed to load revocation file %s", this.revocationFile), e);
+        }
+    }
+    
+    /**
+     * Reload the key file if it has been modified since it was last read
+     */
+    private void checkKeyFile()
+    {
+        try
+        {
+            if (!Files.getLastModifiedTime(this.keyFile).equals(this.keyFileModified))
+            {
+                loadKeyFile();
+            }
+        }
+        catch (IOException | RuntimeException e)
+        {
+            // keep the current keys and try again next time
+            LOG.warn(String.format("Failed to check key file %s", this.keyFile), e);
+        }
+    }
+    
+    /**
+     * Load the key ring from the key file and swap it in for the current one.
+     * If the file can't be loaded the current keys are kept.
+     */
+    private synchronized void loadKeyFile()
+    {
+        try
+        {
+            // a file that fails to load is not retried until it changes again
+            this.keyFileModified = Files.getLastModifiedTime(this.keyFile);
+            
+            KeyRing keyRing = KeyRing.load(this.keyFile);
+            this.metrics.instrument(keyRing);
+            swapKeyRing(keyRing);
+            clearCaches();
+            
+            LOG.info(String.format("Loaded %d keys from %s", keyRing.size(), this.keyFile));
+        }
+        catch (IOException | NoSuchAlgorithmException | NoSuchPaddingException | IllegalArgumentException e)
+        {
+            LOG.error(String.format("Failed to load key file %s", this.keyFile), e);
+        }
+    }
+    
+    /**
+     * Replace the key ring, dropping the pooled ciphers and buffers of the
+     * old one. Requests still using the old keys finish normally.
+     * 
+     * @param keyRing   the new key ring, may be null
+     */
+    private void swapKeyRing(KeyRing keyRing)
+    {
+        KeyRing oldKeyRing = this.keyRing;
+        this.keyRing = keyRing;
+        if (oldKeyRing != null && oldKeyRing != keyRing)
+        {
+            oldKeyRing.close();
+        }
+    }
+    
+    /**
+     * Forget parsed and rejected cookies, which may no longer be valid
+     * after the keys change
+     */
+    private void clearCaches()
+    {
+        if (this.sessionCache != null)
+        {
+            this.sessionCache.clear();
+        }
+        if (this.rejectedCookies != null)
+        {
+            this.rejectedCookies.clear();
+        }
+    }
+    
+    /**
+     * Read an integer init parameter
+     * 
+     * @param fConfig       filter config, may be null
+     * @param name          parameter name
+     * @param defaultValue  value used if the parameter is not set
+     * @return  parameter value
+     * @throws ServletException if the parameter is not an integer
+     */
+    private static int getIntParameter(FilterConfig fConfig, String name, int defaultValue)
+            throws ServletException
+    {
+        String value = fConfig == null ? null : fConfig.getInitParameter(name);
+        if (value == null)
+        {
+            return defaultValue;
+        }
+        
+        try
+        {
+            return Integer.parseInt(value.trim());
+        }
+        catch (NumberFormatException e)
+        {
+            throw new ServletException(String.format("%s is not a valid value for %s", value, name), e);
+        }
+    }
+    
+    /**
+     * Getter for the cache of parsed session cookies
+     * 
+     * @return  the session cache, or null if caching is disabled
+     */
+    public CookieCache<UserDetailsCookie> getSessionCache()
+    {
+        return this.sessionCache;
+    }
+    
+    /**
+     * Getter for the filter's metrics
+     * 
+     * @return  the metrics
+     */
+    FilterMetrics getMetrics()
+    {
+        return this.metrics;
+    }
+    
+    /**
+     * Getter for the record of recently rejected session cookies
+     * 
+     * @return  the rejected cookie cache, or null if it is disabled
+     */
+    public RejectedCookieCache getRejectedCookies()
+    {
+        return this.rejectedCookies;
     }
     
     /**
@@ -186,17 +1130,52 @@ public class AuthenticateRedirectFilter implements Filter
      * 
      * @param returnUrl URL to return to after authentication
      * @return  redirect URL
-     * @throws MalformedURLException
-     * @throws UnsupportedEncodingException
+     * @throws MalformedURLException 
+     * @throws UnsupportedEncodingException 
      */
     public String getRedirectUrl(String returnUrl) throws MalformedURLException, UnsupportedEncodingException
     {
+        return getRedirectUrl((CharSequence) returnUrl);
+    }
+    
+    /**
+     * Construct a redirection URL based on config settings, without first
+     * copying the return URL into a string
+     * 
+     * @param returnUrl URL to return to after authentication, such as the
+     *                  request URL buffer
+     * @return  redirect URL
+     */
+    public String getRedirectUrl(CharSequence returnUrl)
+    {
+        String prefix = this.redirectPrefix;
+        
+        // most return URLs are plain ASCII with a few characters to escape
+        StringBuilder redirectUrl = new StringBuilder(prefix.length() + returnUrl.length() * 5 / 4 + 16);
+        redirectUrl.append(prefix);
+        QueryEncoder.encode(returnUrl, redirectUrl);
+        
+        return redirectUrl.toString();
+    }
+    
+    /**
+     * Precompute the constant start of every redirect URL: the authenticate
+     * URL, a query separator and the return query parameter name
+     */
+    private void updateRedirectPrefix()
+    {
+        if (this.authenticateUrl == null)
+        {
+            this.redirectPrefix = null;
+            return;
+        }
+        
         String query = this.authenticateUrl.getQuery();
         
         String queryPrefix = "";
         if (query != null)
         {
-            if (query != "" && !query.endsWith("&"))
+            if (!query.isEmpty() && !query.endsWith("&"))
             {
                 queryPrefix = "&";
             }
@@ -206,16 +1185,9 @@ public class AuthenticateRedirectFilter implements Filter
             queryPrefix = "?";
         }
         
-        returnUrl = URLEncoder.encode(returnUrl, "UTF-8");
+        String returnQueryName = this.returnQueryName == null ? RETURN_QUERY_NAME_DEFAULT : this.returnQueryName;
         
-        URL redirectUrl = new URL(String.format("%s%s%s=%s",
-                this.authenticateUrl,
-                queryPrefix,
-                this.returnQueryName,
-                returnUrl
-            ));
-        
-        return redirectUrl.toString();
+        this.redirectPrefix = this.authenticateUrl.toString() + queryPrefix + returnQueryName + "=";
     }
     
     /**
@@ -228,6 +1200,27 @@ public class AuthenticateRedirectFilter implements Filter
         this.requestAttribute = requestAttribute;
     }
     
+    /**
+     * Setter for sessionAttribute
+     * 
+     * @param sessionAttribute  Attribute name the parsed session cookie is set under
+     */
+    public void setSessionAttribute(String sessionAttribute)
+    {
+        this.sessionAttribute = sessionAttribute;
+    }
+    
+    /**
+     * Setter for wrapRequest
+     * 
+     * @param wrapRequest   Whether the request passed along the chain reports
+     *                      the user through getRemoteUser and getUserPrincipal
+     */
+    public void setWrapRequest(boolean wrapRequest)
+    {
+        this.wrapRequest = wrapRequest;
+    }
+    
     /**
      * Setter for authenticateUrl
      * 
@@ -248,6 +1241,8 @@ public class AuthenticateRedirectFilter implements Filter
                 LOG.error(String.format("%s is not a valid URL", authenticateUrl), e);
             }
         }
+        
+        updateRedirectPrefix();
     }
     
     /**
@@ -258,6 +1253,8 @@ public class AuthenticateRedirectFilter implements Filter
     public void setReturnQueryName(String returnQueryName)
     {
         this.returnQueryName = returnQueryName;
+        
+        updateRedirectPrefix();
     }
     
     /**
@@ -278,6 +1275,47 @@ public class AuthenticateRedirectFilter implements Filter
     public void setSecretKey(String secretKey)
     {
         this.secretKey = secretKey;
+        if (this.keyFile != null)
+        {
+            LOG.warn("Secret key ignored; keys are loaded from the key file.");
+            return;
+        }
+        
+        swapKeyRing(null);
+        clearCaches();
+        
+        if (secretKey != null)
+        {
+            // build the decoding/decryption handlers once and share them between requests
+            try
+            {
+                KeyRing keyRing = new KeyRing(new EncodingHandler(secretKey));
+                this.metrics.instrument(keyRing);
+                swapKeyRing(keyRing);
+            }
+            catch (NoSuchAlgorithmException | NoSuchPaddingException | IllegalArgumentException e)
+            {
+                LOG.error("Failed to load decoding/decryption handlers.", e);
+            }
+        }
+    }
+    
+    /**
+     * Setter for keyFile. Keys in the file replace the secret key.
+     * 
+     * @param keyFile   properties file holding the secret keys and their identifiers
+     */
+    public void setKeyFile(Path keyFile)
+    {
+        this.keyFile = keyFile;
+        if (keyFile != null)
+        {
+            loadKeyFile();
+        }
+        else
+        {
+            setSecretKey(this.secretKey);
+        }
     }
 
 }
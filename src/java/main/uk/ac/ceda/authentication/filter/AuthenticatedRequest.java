@@ -0,0 +1,58 @@
+package uk.ac.ceda.authentication.filter;
+
+import java.security.Principal;
+
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletRequestWrapper;
+
+import uk.ac.ceda.authentication.cookie.UserDetailsCookie;
+
+/**
+ * Request wrapper reporting the user authenticated by the session cookie
+ * through the standard servlet API. The principal is only created if it is
+ * asked for.
+ * 
+ * @author William Tucker
+ */
+class AuthenticatedRequest extends HttpServletRequestWrapper
+{
+    private final UserDetailsCookie sessionCookie;
+    private Principal principal;
+    
+    /**
+     * Constructor taking the request and the user's parsed session cookie
+     * 
+     * @param request       the request to wrap
+     * @param sessionCookie the user's session cookie
+     */
+    AuthenticatedRequest(HttpServletRequest request, UserDetailsCookie sessionCookie)
+    {
+        super(request);
+        
+        this.sessionCookie = sessionCookie;
+    }
+    
+    /**
+     * @see HttpServletRequestWrapper#getRemoteUser()
+     */
+    @Override
+    public String getRemoteUser()
+    {
+        return this.sessionCookie.getUserID();
+    }
+    
+    /**
+     * @see HttpServletRequestWrapper#getUserPrincipal()
+     */
+    @Override
+    public Principal getUserPrincipal()
+    {
+        // requests are handled by one thread at a time
+        if (this.principal == null)
+        {
+            this.principal = new UserDetailsPrincipal(this.sessionCookie);
+        }
+        
+        return this.principal;
+    }
+}
@@ -0,0 +1,123 @@
+package uk.ac.ceda.authentication.filter;
+
+import java.util.ArrayList;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Set;
+
+/**
+ * Requests that are passed straight along the filter chain without any
+ * cookie handling: those using given HTTP methods, such as CORS preflight
+ * OPTIONS requests, and those for paths matching given patterns or ending
+ * in given file extensions.
+ * 
+ * Path patterns follow {@link AccessRules}: a pattern ending in {@code /*}
+ * covers a path and everything below it, and any other pattern covers
+ * exactly one path.
+ * 
+ * @author William Tucker
+ */
+class BypassRules
+{
+    private final String[] methods;
+    private final AccessRules paths;
+    private final String[] extensions;
+    
+    private BypassRules(String[] methods, AccessRules paths, String[] extensions)
+    {
+        this.methods = methods;
+        this.paths = paths;
+        this.extensions = extensions;
+    }
+    
+    /**
+     * Compile bypass rules from lists separated by commas or whitespace
+     * 
+     * @param methods       HTTP methods, may be null
+     * @param paths         path patterns, may be null
+     * @param extensions    file extensions, with or without a leading dot, may be null
+     * @return  the rules, or null if there are none
+     * @throws IllegalArgumentException if a path pattern is invalid
+     */
+    static BypassRules compile(String methods, String paths, String extensions)
+    {
+        Set<String> methodList = split(methods);
+        Set<String> pathList = split(paths);
+        Set<String> extensionList = split(extensions);
+        if (methodList.isEmpty() && pathList.isEmpty() && extensionList.isEmpty())
+        {
+            return null;
+        }
+        
+        List<String> dottedExtensions = new ArrayList<String>();
+        for (String extension: extensionList)
+        {
+            dottedExtensions.add(extension.charAt(0) == '.' ? extension : "." + extension);
+        }
+        
+        List<String> upperCaseMethods = new ArrayList<String>();
+        for (String method: methodList)
+        {
+            upperCaseMethods.add(method.toUpperCase(Locale.ROOT));
+        }
+        
+        return new BypassRules(
+                upperCaseMethods.toArray(new String[upperCaseMethods.size()]),
+                pathList.isEmpty() ? null : AccessRules.compile(pathList),
+                dottedExtensions.toArray(new String[dottedExtensions.size()]));
+    }
+    
+    private static Set<String> split(String list)
+    {
+        Set<String> items = new LinkedHashSet<String>();
+        if (list != null)
+        {
+            for (String item: list.split("[,\\s]+"))
+            {
+                if (!item.isEmpty())
+                {
+                    items.add(item);
+                }
+            }
+        }
+        
+        return items;
+    }
+    
+    /**
+     * Check whether a request is passed straight along the chain. Nothing
+     * is allocated.
+     * 
+     * @param method    HTTP method
+     * @param path      request path within the web application
+     * @return  whether the request bypasses the filter
+     */
+    boolean matches(String method, String path)
+    {
+        for (String bypassMethod: this.methods)
+        {
+            if (bypassMethod.equals(method))
+            {
+                return true;
+            }
+        }
+        
+        if (this.paths != null && this.paths.match(path) != null)
+        {
+            return true;
+        }
+        
+        int length = path.length();
+        for (String extension: this.extensions)
+        {
+            if (length > extension.length() &&
+                    path.regionMatches(true, length - extension.length(), extension, 0, extension.length()))
+            {
+                return true;
+            }
+        }
+        
+        return false;
+    }
+}
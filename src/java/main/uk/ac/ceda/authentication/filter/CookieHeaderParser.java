@@ -0,0 +1,117 @@
+package uk.ac.ceda.authentication.filter;
+
+import java.util.Enumeration;
+
+/**
+ * Finds the value of a single cookie in raw Cookie request headers without
+ * parsing every other cookie the browser sends
+ * 
+ * @author William Tucker
+ */
+final class CookieHeaderParser
+{
+    private CookieHeaderParser()
+    {
+    }
+    
+    /**
+     * Find the value of a named cookie. If the name occurs more than once
+     * the last value wins, matching the filter's use of getCookies().
+     * Surrounding double quotes are removed from the value.
+     * 
+     * @param headers   Cookie header values
+     * @param name      name of the cookie to find
+     * @return  the cookie value, or null if it is not present
+     */
+    static String findCookie(Enumeration<String> headers, String name)
+    {
+        String value = null;
+        while (headers.hasMoreElements())
+        {
+            String header = headers.nextElement();
+            if (header != null)
+            {
+                String headerValue = findCookie(header, name);
+                if (headerValue != null)
+                {
+                    value = headerValue;
+                }
+            }
+        }
+        
+        return value;
+    }
+    
+    /**
+     * Find the value of a named cookie in a single Cookie header
+     * 
+     * @param header    Cookie header value
+     * @param name      name of the cookie to find
+     * @return  the last value found, or null if it is not present
+     */
+    static String findCookie(String header, String name)
+    {
+        int valueStart = -1;
+        int valueEnd = -1;
+        
+        int length = header.length();
+        int nameLength = name.length();
+        int position = 0;
+        while (position < length)
+        {
+            position = skipWhitespace(header, position, length);
+            
+            int pairEnd = header.indexOf(';', position);
+            if (pairEnd < 0)
+            {
+                pairEnd = length;
+            }
+            
+            // only compare names of the right length
+            int equals = position + nameLength;
+            if (equals < pairEnd && header.regionMatches(position, name, 0, nameLength))
+            {
+                equals = skipWhitespace(header, equals, pairEnd);
+                if (equals < pairEnd && header.charAt(equals) == '=')
+                {
+                    valueStart = skipWhitespace(header, equals + 1, pairEnd);
+                    valueEnd = pairEnd;
+                    while (valueEnd > valueStart && isWhitespace(header.charAt(valueEnd - 1)))
+                    {
+                        valueEnd--;
+                    }
+                }
+            }
+            
+            position = pairEnd + 1;
+        }
+        
+        if (valueStart < 0)
+        {
+            return null;
+        }
+        
+        if (valueEnd - valueStart >= 2 && header.charAt(valueStart) == '"' && header.charAt(valueEnd - 1) == '"')
+        {
+            valueStart++;
+            valueEnd--;
+        }
+        
+        return header.substring(valueStart, valueEnd);
+    }
+    
+    private static int skipWhitespace(String header, int position, int end)
+    {
+        while (position < end && isWhitespace(header.charAt(position)))
+        {
+            position++;
+        }
+        
+        return position;
+    }
+    
+    private static boolean isWhitespace(char c)
+    {
+        return c == ' ' || c == '\t';
+    }
+}
@@ -0,0 +1,392 @@
+package uk.ac.ceda.authentication.filter;
+
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Supplier;
+
+import javax.management.Attribute;
+import javax.management.AttributeList;
+import javax.management.AttributeNotFoundException;
+import javax.management.DynamicMBean;
+import javax.management.JMException;
+import javax.management.MBeanAttributeInfo;
+import javax.management.MBeanInfo;
+import javax.management.MBeanOperationInfo;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import javax.management.ReflectionException;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+import uk.ac.ceda.authentication.cookie.CookieCache;
+import uk.ac.ceda.authentication.cookie.KeyRing;
+import uk.ac.ceda.authentication.cookie.LatencyHistogram;
+
+/**
+ * Request and cookie decoding statistics for a filter, published as a read
+ * only MBean.
+ * 
+ * Counters are striped adders, so recording costs a few nanoseconds and
+ * threads don't contend; sums are only taken when the MBean is read.
+ * 
+ * @author William Tucker
+ */
+class FilterMetrics implements DynamicMBean
+{
+    static final String DOMAIN = "uk.ac.ceda.authentication";
+    
+    private final LongAdder skipped = new LongAdder();
+    private final LongAdder bypassed = new LongAdder();
+    private final LongAdder redirected = new LongAdder();
+    private final LongAdder authenticated = new LongAdder();
+    private final LongAdder rejected = new LongAdder();
+    private final LongAdder forbidden = new LongAdder();
+    private final LongAdder[] rejectReasons = new LongAdder[RejectReason.values().length];
+    
+    private final LatencyHistogram decodeLatency = new LatencyHistogram();
+    private final LatencyHistogram signatureLatency = new LatencyHistogram();
+    private final LatencyHistogram decryptLatency = new LatencyHistogram();
+    
+    private volatile CookieCache<?> sessionCache;
+    private volatile SessionValidator sessionValidator;
+    private volatile AuditLog auditLog;
+    
+    private final Map<String, MetricAttribute> attributes = new LinkedHashMap<String, MetricAttribute>();
+    private ObjectName objectName;
+    
+    private static final Log LOG = LogFactory.getLog(FilterMetrics.class);
+    
+    FilterMetrics()
+    {
+        addAttribute("SkippedCount", "Requests passed on because no authenticate URL is set", this.skipped::sum);
+        addAttribute("BypassedCount", "Requests passed on by the bypass rules", this.bypassed::sum);
+        addAttribute("RedirectedCount", "Requests without a session cookie", this.redirected::sum);
+        addAttribute("AuthenticatedCount", "Requests with a valid session cookie that were let through",
+                this.authenticated::sum);
+        addAttribute("RejectedCount", "Requests with an invalid session cookie", this.rejected::sum);
+        addAttribute("ForbiddenCount", "Authenticated requests without the tokens the access rules require",
+                this.forbidden::sum);
+        
+        for (RejectReason reason: RejectReason.values())
+        {
+            LongAdder counter = new LongAdder();
+            this.rejectReasons[reason.ordinal()] = counter;
+            addAttribute(String.format("Rejected%sCount", camelCase(reason.name())),
+                    String.format("Session cookies rejected because the %s", reason.getDescription()),
+                    counter::sum);
+        }
+        
+        addAttribute("CacheHitCount", "Session cache hits",
+                () -> this.sessionCache == null ? 0 : this.sessionCache.getHitCount());
+        addAttribute("CacheMissCount", "Session cache misses",
+                () -> this.sessionCache == null ? 0 : this.sessionCache.getMissCount());
+        addAttribute("CacheEvictionCount", "Session cache evictions",
+                () -> this.sessionCache == null ? 0 : this.sessionCache.getEvictionCount());
+        addAttribute("CacheHitRatio", "Fraction of session cache lookups that hit", this::getCacheHitRatio);
+        
+        addAttribute("SessionCheckLookupCount", "Session checks sent to the authentication service",
+                () -> this.sessionValidator == null ? 0 : this.sessionValidator.getLookupCount());
+        addAttribute("SessionCheckCoalescedCount", "Session checks that shared a lookup in flight",
+                () -> this.sessionValidator == null ? 0 : this.sessionValidator.getCoalescedCount());
+        addAttribute("SessionCheckCacheHitCount", "Session checks answered from the cache",
+                () -> this.sessionValidator == null ? 0 : this.sessionValidator.getResults().getHitCount());
+        addAttribute("SessionCheckSaturatedCount", "Session checks skipped because too many were in flight",
+                () -> this.sessionValidator == null ? 0 : this.sessionValidator.getSaturatedCount());
+        addAttribute("SessionCheckFailureCount", "Session checks that failed",
+                () -> this.sessionValidator == null ? 0 : this.sessionValidator.getFailureCount());
+        addAttribute("SessionCheckStaleCount", "Session checks answered with a stale answer while it was refreshed",
+                () -> this.sessionValidator == null ? 0 : this.sessionValidator.getStaleCount());
+        addAttribute("SessionCheckTimeoutCount", "Session checks that gave up waiting for a first answer",
+                () -> this.sessionValidator == null ? 0 : this.sessionValidator.getTimeoutCount());
+        
+        addAttribute("AuditWrittenCount", "Audit events written",
+                () -> this.auditLog == null ? 0 : this.auditLog.getWrittenCount());
+        addAttribute("AuditDroppedCount", "Audit events dropped because the buffer was full or writing failed",
+                () -> this.auditLog == null ? 0 : this.auditLog.getDroppedCount());
+        
+        addHistogramAttributes("Decode", "session cookie decoding", this.decodeLatency);
+        addHistogramAttributes("Signature", "signature checks", this.signatureLatency);
+        addHistogramAttributes("Decrypt", "decryption", this.decryptLatency);
+    }
+    
+    void recordSkipped()
+    {
+        this.skipped.increment();
+    }
+    
+    void recordBypassed()
+    {
+        this.bypassed.increment();
+    }
+    
+    void recordRedirected()
+    {
+        this.redirected.increment();
+    }
+    
+    void recordAuthenticated()
+    {
+        this.authenticated.increment();
+    }
+    
+    void recordRejected()
+    {
+        this.rejected.increment();
+    }
+    
+    void recordForbidden()
+    {
+        this.forbidden.increment();
+    }
+    
+    void recordRejectReason(RejectReason reason)
+    {
+        this.rejectReasons[reason.ordinal()].increment();
+    }
+    
+    void recordDecode(long nanos)
+    {
+        this.decodeLatency.record(nanos);
+    }
+    
+    /**
+     * Set the session cache whose statistics are published
+     * 
+     * @param sessionCache  the session cache, may be null
+     */
+    void setSessionCache(CookieCache<?> sessionCache)
+    {
+        this.sessionCache = sessionCache;
+    }
+    
+    /**
+     * Set the session validator whose statistics are published
+     * 
+     * @param sessionValidator  the session validator, may be null
+     */
+    void setSessionValidator(SessionValidator sessionValidator)
+    {
+        this.sessionValidator = sessionValidator;
+    }
+    
+    /**
+     * Set the audit log whose statistics are published
+     * 
+     * @param auditLog  the audit log, may be null
+     */
+    void setAuditLog(AuditLog auditLog)
+    {
+        this.auditLog = auditLog;
+    }
+    
+    private Double getCacheHitRatio()
+    {
+        CookieCache<?> sessionCache = this.sessionCache;
+        if (sessionCache == null)
+        {
+            return 0.0;
+        }
+        
+        long hits = sessionCache.getHitCount();
+        long lookups = hits + sessionCache.getMissCount();
+        
+        return lookups == 0 ? 0.0 : (double) hits / lookups;
+    }
+    
+    /**
+     * Have a key ring's handlers record signature and decryption latencies
+     * 
+     * @param keyRing   the key ring
+     */
+    void instrument(KeyRing keyRing)
+    {
+        keyRing.setLatencyHistograms(this.signatureLatency, this.decryptLatency);
+    }
+    
+    long getRejectReasonCount(RejectReason reason)
+    {
+        return this.rejectReasons[reason.ordinal()].sum();
+    }
+    
+    /**
+     * Publish a value as an MBean attribute
+     * 
+     * @param name          attribute name
+     * @param description   attribute description
+     * @param value         supplies the current value
+     */
+    void addAttribute(String name, String description, Supplier<? extends Number> value)
+    {
+        this.attributes.put(name, new MetricAttribute(name, description, value));
+    }
+    
+    private void addHistogramAttributes(String name, String description, LatencyHistogram histogram)
+    {
+        addAttribute(name + "Count", "Number of timed " + description, histogram::getCount);
+        addAttribute(name + "MeanMicros", "Mean time of " + description, () -> histogram.getMean() / 1000);
+        addAttribute(name + "P50Micros", "Median time of " + description,
+                () -> histogram.getPercentile(50) / 1000.0);
+        addAttribute(name + "P99Micros", "99th percentile time of " + description,
+                () -> histogram.getPercentile(99) / 1000.0);
+        addAttribute(name + "P999Micros", "99.9th percentile time of " + description,
+                () -> histogram.getPercentile(99.9) / 1000.0);
+    }
+    
+    /**
+     * Register with the platform MBean server. Failure is logged rather than
+     * raised, since the filter works without its metrics.
+     * 
+     * @param context   servlet context path, may be null
+     * @param name      filter name, may be null
+     */
+    void register(String context, String name)
+    {
+        unregister();
+        
+        StringBuilder objectName = new StringBuilder(DOMAIN).append(":type=AuthenticateRedirectFilter");
+        if (context != null)
+        {
+            objectName.append(",context=").append(ObjectName.quote(context.isEmpty() ? "/" : context));
+        }
+        objectName.append(",name=").append(ObjectName.quote(name == null ? "default" : name));
+        
+        MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+        try
+        {
+            this.objectName = server.registerMBean(this, new ObjectName(objectName.toString())).getObjectName();
+        }
+        catch (JMException e)
+        {
+            LOG.warn(String.format("Failed to register metrics as %s", objectName), e);
+        }
+    }
+    
+    /**
+     * Unregister from the platform MBean server, if registered
+     */
+    void unregister()
+    {
+        if (this.objectName != null)
+        {
+            try
+            {
+                ManagementFactory.getPlatformMBeanServer().unregisterMBean(this.objectName);
+            }
+            catch (JMException e)
+            {
+                LOG.warn(String.format("Failed to unregister metrics %s", this.objectName), e);
+            }
+            this.objectName = null;
+        }
+    }
+    
+    /**
+     * @return  name the metrics are registered under, or null if they are not registered
+     */
+    ObjectName getObjectName()
+    {
+        return this.objectName;
+    }
+    
+    @Override
+    public Object getAttribute(String attribute) throws AttributeNotFoundException
+    {
+        MetricAttribute metric = this.attributes.get(attribute);
+        if (metric == null)
+        {
+            throw new AttributeNotFoundException(attribute);
+        }
+        
+        return metric.getValue();
+    }
+    
+    @Override
+    public AttributeList getAttributes(String[] names)
+    {
+        AttributeList list = new AttributeList();
+        for (String name: names)
+        {
+            MetricAttribute metric = this.attributes.get(name);
+            if (metric != null)
+            {
+                list.add(new Attribute(name, metric.getValue()));
+            }
+        }
+        
+        return list;
+    }
+    
+    @Override
+    public void setAttribute(Attribute attribute) throws AttributeNotFoundException
+    {
+        throw new AttributeNotFoundException(String.format("%s is read only", attribute.getName()));
+    }
+    
+    @Override
+    public AttributeList setAttributes(AttributeList attributes)
+    {
+        return new AttributeList();
+    }
+    
+    @Override
+    public Object invoke(String actionName, Object[] params, String[] signature) throws ReflectionException
+    {
+        // the MBean has no operations
+        throw new ReflectionException(new NoSuchMethodException(actionName));
+    }
+    
+    @Override
+    public MBeanInfo getMBeanInfo()
+    {
+        List<MBeanAttributeInfo> infos = new ArrayList<MBeanAttributeInfo>();
+        for (MetricAttribute metric: this.attributes.values())
+        {
+            infos.add(metric.info);
+        }
+        
+        return new MBeanInfo(getClass().getName(), "Authentication filter metrics",
+                infos.toArray(new MBeanAttributeInfo[infos.size()]), null, new MBeanOperationInfo[0], null);
+    }
+    
+    private static String camelCase(String name)
+    {
+        StringBuilder builder = new StringBuilder(name.length());
+        for (String part: name.split("_"))
+        {
+            builder.append(part.charAt(0)).append(part.substring(1).toLowerCase());
+        }
+        
+        return builder.toString();
+    }
+    
+    /**
+     * A published value and its description
+     */
+    private static class MetricAttribute
+    {
+        final MBeanAttributeInfo info;
+        final Supplier<? extends Number> value;
+        
+        MetricAttribute(String name, String description, Supplier<? extends Number> value)
+        {
+            // values are reported as doubles or longs
+            Number sample = value.get();
+            String type = sample instanceof Double ? Double.class.getName() : Long.class.getName();
+            
+            this.info = new MBeanAttributeInfo(name, type, description, true, false, false);
+            this.value = value;
+        }
+        
+        Object getValue()
+        {
+            Number number = this.value.get();
+            
+            return number instanceof Double ? number : Long.valueOf(number.longValue());
+        }
+    }
+}
@@ -0,0 +1,59 @@
+package uk.ac.ceda.authentication.filter;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Limits how many messages of one kind are logged in each time window, so
+ * that a flood of bad requests can't flood the logs as well
+ * 
+ * @author William Tucker
+ */
+class LogRateLimiter
+{
+    private final int limit;
+    private final long windowNanos;
+    
+    private final AtomicLong windowStart;
+    private final AtomicInteger count = new AtomicInteger();
+    private final AtomicLong suppressed = new AtomicLong();
+    
+    /**
+     * Constructor specifying the rate limit
+     * 
+     * @param limit     messages allowed per window
+     * @param window    length of the window
+     * @param unit      unit of the window argument
+     */
+    LogRateLimiter(int limit, long window, TimeUnit unit)
+    {
+        this.limit = limit;
+        this.windowNanos = unit.toNanos(window);
+        this.windowStart = new AtomicLong(System.nanoTime());
+    }
+    
+    /**
+     * Ask to log a message
+     * 
+     * @return  -1 if the message should be dropped, otherwise the number of
+     *          messages dropped since the last one was allowed
+     */
+    long acquire()
+    {
+        long now = System.nanoTime();
+        long start = this.windowStart.get();
+        if (now - start >= this.windowNanos && this.windowStart.compareAndSet(start, now))
+        {
+            this.count.set(0);
+        }
+        
+        if (this.count.incrementAndGet() > this.limit)
+        {
+            this.suppressed.incrementAndGet();
+            return -1;
+        }
+        
+        return this.suppressed.getAndSet(0);
+    }
+}
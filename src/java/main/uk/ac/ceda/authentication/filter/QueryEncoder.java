@@ -0,0 +1,95 @@
+package uk.ac.ceda.authentication.filter;
+
+/**
+ * Encodes query parameter values exactly as
+ * {@link java.net.URLEncoder#encode(String, String)} does with UTF-8, but
+ * appends straight to a builder without intermediate strings or byte arrays
+ * 
+ * @author William Tucker
+ */
+final class QueryEncoder
+{
+    private static final char[] HEX_DIGITS = "0123456789ABCDEF".toCharArray();
+    private static final boolean[] UNRESERVED = new boolean[128];
+    
+    static
+    {
+        for (char c = 'a'; c <= 'z'; c++)
+        {
+            UNRESERVED[c] = true;
+            UNRESERVED[c - 'a' + 'A'] = true;
+        }
+        for (char c = '0'; c <= '9'; c++)
+        {
+            UNRESERVED[c] = true;
+        }
+        UNRESERVED['.'] = true;
+        UNRESERVED['-'] = true;
+        UNRESERVED['*'] = true;
+        UNRESERVED['_'] = true;
+    }
+    
+    private QueryEncoder()
+    {
+    }
+    
+    /**
+     * Append the encoded form of a value to a builder
+     * 
+     * @param value     text to encode
+     * @param builder   builder receiving the encoded text
+     */
+    static void encode(CharSequence value, StringBuilder builder)
+    {
+        int length = value.length();
+        for (int i = 0; i < length; i++)
+        {
+            char c = value.charAt(i);
+            if (c < 128)
+            {
+                if (UNRESERVED[c])
+                {
+                    builder.append(c);
+                }
+                else if (c == ' ')
+                {
+                    builder.append('+');
+                }
+                else
+                {
+                    appendEscaped(c, builder);
+                }
+            }
+            else if (c < 0x800)
+            {
+                appendEscaped(0xC0 | c >> 6, builder);
+                appendEscaped(0x80 | c & 0x3F, builder);
+            }
+            else if (Character.isHighSurrogate(c) && i + 1 < length &&
+                    Character.isLowSurrogate(value.charAt(i + 1)))
+            {
+                int codePoint = Character.toCodePoint(c, value.charAt(++i));
+                appendEscaped(0xF0 | codePoint >> 18, builder);
+                appendEscaped(0x80 | codePoint >> 12 & 0x3F, builder);
+                appendEscaped(0x80 | codePoint >> 6 & 0x3F, builder);
+                appendEscaped(0x80 | codePoint & 0x3F, builder);
+            }
+            else if (Character.isSurrogate(c))
+            {
+                // unpaired surrogates are replaced, as the UTF-8 encoder does
+                appendEscaped('?', builder);
+            }
+            else
+            {
+                appendEscaped(0xE0 | c >> 12, builder);
+                appendEscaped(0x80 | c >> 6 & 0x3F, builder);
+                appendEscaped(0x80 | c & 0x3F, builder);
+            }
+        }
+    }
+    
+    private static void appendEscaped(int b, StringBuilder builder)
+    {
+        builder.append('%').append(HEX_DIGITS[b >> 4 & 0xF]).append(HEX_DIGITS[b & 0xF]);
+    }
+}
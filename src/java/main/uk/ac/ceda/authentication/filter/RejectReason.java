@@ -0,0 +1,35 @@
+package uk.ac.ceda.authentication.filter;
+
+/**
+ * Reasons a session cookie can be rejected
+ * 
+ * @author William Tucker
+ */
+enum RejectReason
+{
+    NO_SECRET_KEY("no secret key is configured"),
+    RECENTLY_REJECTED("value was recently rejected"),
+    UNKNOWN_KEY("value names an unknown key"),
+    MALFORMED("value is malformed"),
+    BAD_SIGNATURE("signature does not match"),
+    DECODE_ERROR("value could not be decoded"),
+    DECRYPT_ERROR("value could not be decrypted"),
+    SESSION_ENDED("session has ended"),
+    SESSION_UNCHECKED("session could not be checked"),
+    REVOKED("user's sessions have been revoked");
+    
+    private final String description;
+    
+    private RejectReason(String description)
+    {
+        this.description = description;
+    }
+    
+    /**
+     * @return  description used when logging the rejection
+     */
+    public String getDescription()
+    {
+        return this.description;
+    }
+}
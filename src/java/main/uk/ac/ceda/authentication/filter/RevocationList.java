@@ -0,0 +1,311 @@
+package uk.ac.ceda.authentication.filter;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.Reader;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Instant;
+import java.time.format.DateTimeParseException;
+import java.util.Arrays;
+
+/**
+ * Users whose sessions have been revoked, read one per line from a file as
+ * a user ID followed by the time of revocation, in seconds since the epoch
+ * or as an ISO-8601 instant:
+ * 
+ * <pre>
+ * alice 1792310400
+ * bob   2026-10-18T10:00:00Z
+ * </pre>
+ * 
+ * Only sessions whose cookies were issued at or before that time are
+ * revoked, so a user can log in again afterwards. The time is required:
+ * one taken from when the file was read would move on every edit and log
+ * out users who had long since logged in again. Blank lines and lines
+ * starting with {@code #} are ignored.
+ * 
+ * Almost every lookup is for a user who is not revoked, so the IDs are held
+ * in a blocked Bloom filter that answers those with a few probes of one
+ * 64 byte block and no allocation. The rare positives are confirmed by a
+ * binary search of sorted 64 bit fingerprints of the IDs; two IDs share a
+ * fingerprint with negligible probability. A million revoked users take
+ * about 1.3MB of filter, 8MB of fingerprints and 4MB of times.
+ * 
+ * Lists are immutable; a reload builds a new list and swaps it in.
+ * 
+ * @author William Tucker
+ */
+class RevocationList
+{
+    private static final char COMMENT = '#';
+    
+    // about 1% false positives, which only cost a binary search
+    private static final int BITS_PER_ENTRY = 10;
+    private static final int HASH_COUNT = 6;
+    
+    // a block is 512 bits, the size of a typical cache line
+    private static final int BLOCK_SHIFT = 3;
+    private static final int BLOCK_BITS = 64 << BLOCK_SHIFT;
+    private static final int BIT_INDEX_BITS = 9;
+    private static final int MAX_BLOCKS = 1 << 24;
+    private static final long SECOND_HASH_SEED = 0x9e3779b97f4a7c15L;
+    
+    private final long[] bits;
+    private final int blockMask;
+    
+    // sorted fingerprints, and the revocation time in unsigned seconds of each
+    private final long[] fingerprints;
+    private final int[] revokedAt;
+    
+    private RevocationList(long[] fingerprints, int[] revokedAt)
+    {
+        this.fingerprints = fingerprints;
+        this.revokedAt = revokedAt;
+        
+        // a power of two number of blocks, so a block is picked with a mask
+        long wanted = ((long) fingerprints.length * BITS_PER_ENTRY + BLOCK_BITS - 1) / BLOCK_BITS;
+        int blocks = 1;
+        while (blocks < wanted && blocks < MAX_BLOCKS)
+        {
+            blocks <<= 1;
+        }
+        this.bits = new long[blocks << BLOCK_SHIFT];
+        this.blockMask = blocks - 1;
+        
+        for (long fingerprint: fingerprints)
+        {
+            add(fingerprint);
+        }
+    }
+    
+    /**
+     * Read a list of revoked users
+     * 
+     * @param reader    source of the entries
+     * @return  the list
+     * @throws IOException if the entries can't be read or a time is missing
+     *          or invalid
+     */
+    static RevocationList parse(Reader reader) throws IOException
+    {
+        long[] entries = new long[16];
+        long[] times = new long[16];
+        int count = 0;
+        
+        BufferedReader lines = new BufferedReader(reader);
+        String line;
+        int lineNumber = 0;
+        while ((line = lines.readLine()) != null)
+        {
+            lineNumber++;
+            line = line.trim();
+            if (line.isEmpty() || line.charAt(0) == COMMENT)
+            {
+                continue;
+            }
+            
+            int space = indexOfWhitespace(line);
+            if (space < 0)
+            {
+                throw new IOException(String.format("No revocation time on line %d: %s", lineNumber, line));
+            }
+            String userID = line.substring(0, space);
+            long time = parseTime(line.substring(space + 1).trim(), lineNumber);
+            
+            if (count == entries.length)
+            {
+                entries = Arrays.copyOf(entries, count * 2);
+                times = Arrays.copyOf(times, count * 2);
+            }
+            entries[count] = fingerprint(userID);
+            times[count] = time;
+            count++;
+        }
+        
+        return build(entries, times, count);
+    }
+    
+    /**
+     * Read a list of revoked users from a UTF-8 file
+     * 
+     * @param file  file holding one entry per line
+     * @return  the list
+     * @throws IOException if the file can't be read or a time is missing or
+     *          invalid
+     */
+    static RevocationList load(Path file) throws IOException
+    {
+        try (Reader reader = Files.newBufferedReader(file, StandardCharsets.UTF_8))
+        {
+            return parse(reader);
+        }
+    }
+    
+    /**
+     * Sort the entries by fingerprint, keeping the latest time of repeats
+     */
+    private static RevocationList build(long[] entries, long[] times, int count)
+    {
+        Integer[] order = new Integer[count];
+        for (int i = 0; i < count; i++)
+        {
+            order[i] = i;
+        }
+        Arrays.sort(order, (a, b) -> Long.compare(entries[a], entries[b]));
+        
+        long[] fingerprints = new long[count];
+        int[] revokedAt = new int[count];
+        int size = 0;
+        for (int i = 0; i < count; i++)
+        {
+            long fingerprint = entries[order[i]];
+            int time = (int) Math.max(0, Math.min(times[order[i]], 0xffffffffL));
+            if (size > 0 && fingerprints[size - 1] == fingerprint)
+            {
+                if (Integer.compareUnsigned(time, revokedAt[size - 1]) > 0)
+                {
+                    revokedAt[size - 1] = time;
+                }
+            }
+            else
+            {
+                fingerprints[size] = fingerprint;
+                revokedAt[size] = time;
+                size++;
+            }
+        }
+        
+        return new RevocationList(Arrays.copyOf(fingerprints, size), Arrays.copyOf(revokedAt, size));
+    }
+    
+    private static int indexOfWhitespace(String line)
+    {
+        for (int i = 0; i < line.length(); i++)
+        {
+            if (Character.isWhitespace(line.charAt(i)))
+            {
+                return i;
+            }
+        }
+        
+        return -1;
+    }
+    
+    /**
+     * Parse a revocation time given in seconds since the epoch or as an
+     * ISO-8601 instant
+     */
+    private static long parseTime(String text, int lineNumber) throws IOException
+    {
+        try
+        {
+            if (text.chars().allMatch(Character::isDigit))
+            {
+                return Long.parseLong(text);
+            }
+            
+            return Instant.parse(text).getEpochSecond();
+        }
+        catch (NumberFormatException | DateTimeParseException e)
+        {
+            throw new IOException(String.format("Invalid revocation time on line %d: %s", lineNumber, text), e);
+        }
+    }
+    
+    private void add(long fingerprint)
+    {
+        int block = ((int) fingerprint & this.blockMask) << BLOCK_SHIFT;
+        long probes = mix(fingerprint + SECOND_HASH_SEED);
+        for (int i = 0; i < HASH_COUNT; i++)
+        {
+            int bit = (int) probes & (BLOCK_BITS - 1);
+            this.bits[block + (bit >>> 6)] |= 1L << bit;
+            probes >>>= BIT_INDEX_BITS;
+        }
+    }
+    
+    /**
+     * Find when a user's sessions were revoked. Nothing is allocated.
+     * 
+     * @param userID    the user ID
+     * @return  the revocation time in seconds since the epoch, or -1 if the
+     *          user is not on the list
+     */
+    long getRevokedAt(String userID)
+    {
+        long fingerprint = fingerprint(userID);
+        int block = ((int) fingerprint & this.blockMask) << BLOCK_SHIFT;
+        long probes = mix(fingerprint + SECOND_HASH_SEED);
+        for (int i = 0; i < HASH_COUNT; i++)
+        {
+            int bit = (int) probes & (BLOCK_BITS - 1);
+            if ((this.bits[block + (bit >>> 6)] & 1L << bit) == 0)
+            {
+                return -1;
+            }
+            probes >>>= BIT_INDEX_BITS;
+        }
+        
+        int index = Arrays.binarySearch(this.fingerprints, fingerprint);
+        
+        return index < 0 ? -1 : Integer.toUnsignedLong(this.revokedAt[index]);
+    }
+    
+    /**
+     * Check whether a session has been revoked
+     * 
+     * @param userID        the user ID
+     * @param cookieTime    time the session cookie was issued, in seconds
+     *                      since the epoch, or -1 if it is not known, which
+     *                      is treated as before any revocation
+     * @return  whether the user is on the list with a revocation time at or
+     *          after the cookie's
+     */
+    boolean isRevoked(String userID, long cookieTime)
+    {
+        long revokedAt = getRevokedAt(userID);
+        
+        return revokedAt >= 0 && cookieTime <= revokedAt;
+    }
+    
+    /**
+     * 64 bit fingerprint of an ID: an FNV-1a hash of the characters, passed
+     * through the MurmurHash3 finaliser so that every bit depends on every
+     * character. The Bloom filter block is picked from the low bits and the
+     * probes within it from a differently seeded mix.
+     */
+    private static long fingerprint(String id)
+    {
+        long hash = 0xcbf29ce484222325L;
+        for (int i = 0; i < id.length(); i++)
+        {
+            hash = (hash ^ id.charAt(i)) * 0x100000001b3L;
+        }
+        
+        return mix(hash);
+    }
+    
+    /**
+     * MurmurHash3 finaliser
+     */
+    private static long mix(long hash)
+    {
+        hash ^= hash >>> 33;
+        hash *= 0xff51afd7ed558ccdL;
+        hash ^= hash >>> 33;
+        hash *= 0xc4ceb9fe1a85ec53L;
+        hash ^= hash >>> 33;
+        
+        return hash;
+    }
+    
+    /**
+     * @return  number of revoked users
+     */
+    int size()
+    {
+        return this.fingerprints.length;
+    }
+}
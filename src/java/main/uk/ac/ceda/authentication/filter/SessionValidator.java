@@ -0,0 +1,400 @@
+package uk.ac.ceda.authentication.filter;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+import uk.ac.ceda.authentication.cookie.CookieCache;
+
+/**
+ * Checks with the authentication service whether the session behind a
+ * session cookie is still live.
+ * 
+ * The session cookie is sent to a check endpoint, which answers 2xx while
+ * the session is live and 401, 403, 404 or 410 once it has ended. Lookups
+ * run on a small pool of background threads with a bounded number in
+ * flight; concurrent checks of the same cookie share one lookup, and
+ * answers are cached, so the service only sees a small fraction of the
+ * requests the filter handles.
+ * 
+ * An answer older than the ttl is stale: it is still returned straight
+ * away, while a lookup refreshes it in the background, until it is older
+ * than the maximum staleness. A failed refresh leaves the stale answer in
+ * place. Only a session with no answer at all makes the request wait, for
+ * at most the lookup timeout; if the answer doesn't arrive in that time the
+ * session's status is unknown, and the caller decides whether to let the
+ * request through.
+ * 
+ * @author William Tucker
+ */
+class SessionValidator
+{
+    /**
+     * Outcome of a session check
+     */
+    enum Status
+    {
+        LIVE,
+        ENDED,
+        UNKNOWN
+    }
+    
+    private final URL checkUrl;
+    private final String cookieName;
+    private final long timeoutMillis;
+    private final long ttlNanos;
+    
+    private final CookieCache<Answer> results;
+    private final ConcurrentHashMap<String, CompletableFuture<Status>> inFlight =
+            new ConcurrentHashMap<String, CompletableFuture<Status>>();
+    private final Semaphore permits;
+    private final ExecutorService executor;
+    
+    private final LongAdder lookups = new LongAdder();
+    private final LongAdder coalesced = new LongAdder();
+    private final LongAdder saturated = new LongAdder();
+    private final LongAdder failures = new LongAdder();
+    private final LongAdder stale = new LongAdder();
+    private final LongAdder timeouts = new LongAdder();
+    
+    private final LogRateLimiter failureLogLimiter = new LogRateLimiter(10, 1, TimeUnit.MINUTES);
+    
+    private static final Log LOG = LogFactory.getLog(SessionValidator.class);
+    
+    /**
+     * Constructor specifying the check endpoint and limits
+     * 
+     * @param checkUrl      session check endpoint
+     * @param cookieName    name the session cookie is sent under
+     * @param cacheSize     number of answers cached
+     * @param ttl           time after which an answer is refreshed
+     * @param maxStale      time after which an answer is no longer used
+     * @param maxInFlight   maximum number of lookups running at once
+     * @param timeout       connect and read timeout of a lookup, and the
+     *                      longest a check waits for a session's first answer
+     * @param unit          unit of the time arguments
+     */
+    SessionValidator(URL checkUrl, String cookieName, int cacheSize, long ttl, long maxStale, int maxInFlight,
+            long timeout, TimeUnit unit)
+    {
+        if (maxInFlight <= 0)
+        {
+            throw new IllegalArgumentException("Lookups in flight must be positive");
+        }
+        if (maxStale < ttl)
+        {
+            throw new IllegalArgumentException("Maximum staleness must be at least the ttl");
+        }
+        
+        this.checkUrl = checkUrl;
+        this.cookieName = cookieName;
+        this.timeoutMillis = unit.toMillis(timeout);
+        this.ttlNanos = unit.toNanos(ttl);
+        
+        this.results = new CookieCache<Answer>(cacheSize, maxStale, unit);
+        this.permits = new Semaphore(maxInFlight);
+        
+        // the permits keep the queue from growing beyond maxInFlight
+        AtomicInteger threadCount = new AtomicInteger();
+        ThreadPoolExecutor executor = new ThreadPoolExecutor(maxInFlight, maxInFlight, 60, TimeUnit.SECONDS,
+                new LinkedBlockingQueue<Runnable>(), runnable -> {
+                    Thread thread = new Thread(runnable,
+                            "ceda-auth-filter session check " + threadCount.incrementAndGet());
+                    thread.setDaemon(true);
+                    return thread;
+                });
+        executor.allowCoreThreadTimeOut(true);
+        this.executor = executor;
+    }
+    
+    /**
+     * Check a session. A cached answer, even a stale one, is returned
+     * straight away; otherwise the check waits up to the lookup timeout for
+     * a lookup to answer.
+     * 
+     * @param cookieValue   raw session cookie value
+     * @return  the session's status, or {@link Status#UNKNOWN} if it could
+     *          not be looked up in time
+     */
+    Status check(String cookieValue)
+    {
+        CompletableFuture<Status> future = checkAsync(cookieValue);
+        Status status = future.getNow(null);
+        if (status != null)
+        {
+            return status;
+        }
+        
+        try
+        {
+            return future.get(this.timeoutMillis, TimeUnit.MILLISECONDS);
+        }
+        catch (TimeoutException e)
+        {
+            this.timeouts.increment();
+        }
+        catch (InterruptedException e)
+        {
+            Thread.currentThread().interrupt();
+        }
+        catch (ExecutionException e)
+        {
+            // lookups complete normally
+        }
+        
+        return Status.UNKNOWN;
+    }
+    
+    /**
+     * Check a session without waiting. A cached answer is returned straight
+     * away, and refreshed in the background if it is stale; otherwise the
+     * answer comes from a lookup already running for the same cookie or
+     * from a new one. If too many lookups are running the answer is
+     * {@link Status#UNKNOWN}.
+     * 
+     * @param cookieValue   raw session cookie value
+     * @return  the session's status, when known
+     */
+    CompletableFuture<Status> checkAsync(String cookieValue)
+    {
+        Answer cached = this.results.get(cookieValue);
+        if (cached != null)
+        {
+            if (System.nanoTime() - cached.checkedAt >= this.ttlNanos)
+            {
+                this.stale.increment();
+                startLookup(cookieValue);
+            }
+            
+            return CompletableFuture.completedFuture(cached.status);
+        }
+        
+        return startLookup(cookieValue);
+    }
+    
+    /**
+     * Start a lookup, or join one already running for the same cookie
+     * 
+     * @param cookieValue   raw session cookie value
+     * @return  the lookup's answer, {@link Status#UNKNOWN} if it could not
+     *          be started
+     */
+    private CompletableFuture<Status> startLookup(String cookieValue)
+    {
+        CompletableFuture<Status> future = new CompletableFuture<Status>();
+        CompletableFuture<Status> existing = this.inFlight.putIfAbsent(cookieValue, future);
+        if (existing != null)
+        {
+            this.coalesced.increment();
+            return existing;
+        }
+        
+        if (!this.permits.tryAcquire())
+        {
+            this.saturated.increment();
+            this.inFlight.remove(cookieValue, future);
+            future.complete(Status.UNKNOWN);
+            return future;
+        }
+        
+        this.lookups.increment();
+        try
+        {
+            this.executor.execute(() -> lookup(cookieValue, future));
+        }
+        catch (RejectedExecutionException e)
+        {
+            // shut down
+            this.permits.release();
+            this.inFlight.remove(cookieValue, future);
+            future.complete(Status.UNKNOWN);
+        }
+        
+        return future;
+    }
+    
+    /**
+     * Ask the authentication service about a session and publish the answer
+     */
+    private void lookup(String cookieValue, CompletableFuture<Status> future)
+    {
+        Status status = Status.UNKNOWN;
+        try
+        {
+            status = query(cookieValue);
+        }
+        catch (IOException | RuntimeException e)
+        {
+            this.failures.increment();
+            
+            long suppressed = this.failureLogLimiter.acquire();
+            if (suppressed >= 0)
+            {
+                LOG.warn(String.format("Session check against %s failed: %s%s", this.checkUrl, e,
+                        suppressed > 0 ? String.format("; %d similar messages suppressed", suppressed) : ""));
+            }
+        }
+        finally
+        {
+            // cache before leaving the in flight map, so no later check misses
+            // both; a failure leaves any stale answer to be used meanwhile
+            if (status != Status.UNKNOWN)
+            {
+                this.results.put(cookieValue, new Answer(status, System.nanoTime()));
+            }
+            this.inFlight.remove(cookieValue, future);
+            this.permits.release();
+            
+            future.complete(status);
+        }
+    }
+    
+    /**
+     * Send the session cookie to the check endpoint
+     * 
+     * @param cookieValue   raw session cookie value
+     * @return  the session's status
+     * @throws IOException if the endpoint can't be reached
+     */
+    private Status query(String cookieValue) throws IOException
+    {
+        HttpURLConnection connection = (HttpURLConnection) this.checkUrl.openConnection();
+        connection.setConnectTimeout((int) this.timeoutMillis);
+        connection.setReadTimeout((int) this.timeoutMillis);
+        connection.setInstanceFollowRedirects(false);
+        connection.setUseCaches(false);
+        connection.setRequestProperty("Cookie", this.cookieName + "=" + cookieValue);
+        
+        int code = connection.getResponseCode();
+        
+        // read what is left of the body so the connection can be reused
+        InputStream body = code < HttpURLConnection.HTTP_BAD_REQUEST ?
+                connection.getInputStream() : connection.getErrorStream();
+        if (body != null)
+        {
+            try (InputStream stream = body)
+            {
+                byte[] buffer = new byte[512];
+                while (stream.read(buffer) >= 0)
+                {
+                    ;
+                }
+            }
+        }
+        
+        if (code >= 200 && code < 300)
+        {
+            return Status.LIVE;
+        }
+        
+        switch (code)
+        {
+            case HttpURLConnection.HTTP_UNAUTHORIZED:
+            case HttpURLConnection.HTTP_FORBIDDEN:
+            case HttpURLConnection.HTTP_NOT_FOUND:
+            case HttpURLConnection.HTTP_GONE:
+                return Status.ENDED;
+            default:
+                throw new IOException(String.format("Unexpected response %d", code));
+        }
+    }
+    
+    /**
+     * Stop the lookup threads; checks after this are answered
+     * {@link Status#UNKNOWN} unless cached
+     */
+    void shutdown()
+    {
+        this.executor.shutdownNow();
+        this.results.clear();
+    }
+    
+    /**
+     * @return  cache of answers from the authentication service
+     */
+    CookieCache<Answer> getResults()
+    {
+        return this.results;
+    }
+    
+    /**
+     * @return  number of lookups sent to the authentication service
+     */
+    long getLookupCount()
+    {
+        return this.lookups.sum();
+    }
+    
+    /**
+     * @return  number of checks that shared a lookup already in flight
+     */
+    long getCoalescedCount()
+    {
+        return this.coalesced.sum();
+    }
+    
+    /**
+     * @return  number of checks not looked up because too many lookups were in flight
+     */
+    long getSaturatedCount()
+    {
+        return this.saturated.sum();
+    }
+    
+    /**
+     * @return  number of lookups that failed
+     */
+    long getFailureCount()
+    {
+        return this.failures.sum();
+    }
+    
+    /**
+     * @return  number of checks answered with a stale answer while it was
+     *          refreshed
+     */
+    long getStaleCount()
+    {
+        return this.stale.sum();
+    }
+    
+    /**
+     * @return  number of checks that gave up waiting for a session's first
+     *          answer
+     */
+    long getTimeoutCount()
+    {
+        return this.timeouts.sum();
+    }
+    
+    /**
+     * A session's status and when the service gave it
+     */
+    static class Answer
+    {
+        final Status status;
+        final long checkedAt;
+        
+        Answer(Status status, long checkedAt)
+        {
+            this.status = status;
+            this.checkedAt = checkedAt;
+        }
+    }
+}
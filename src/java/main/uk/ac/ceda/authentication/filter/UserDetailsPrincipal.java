@@ -0,0 +1,87 @@
+package uk.ac.ceda.authentication.filter;
+
+import java.security.Principal;
+import java.sql.Timestamp;
+
+import uk.ac.ceda.authentication.cookie.UserDetailsCookie;
+
+/**
+ * Principal of a user authenticated by a session cookie, giving access to
+ * the rest of the parsed cookie without decrypting it again
+ * 
+ * @author William Tucker
+ */
+public class UserDetailsPrincipal implements Principal
+{
+    private final UserDetailsCookie sessionCookie;
+    
+    /**
+     * Constructor taking a parsed session cookie
+     * 
+     * @param sessionCookie the user's session cookie
+     */
+    public UserDetailsPrincipal(UserDetailsCookie sessionCookie)
+    {
+        this.sessionCookie = sessionCookie;
+    }
+    
+    /**
+     * @return  the user ID
+     */
+    @Override
+    public String getName()
+    {
+        return this.sessionCookie.getUserID();
+    }
+    
+    /**
+     * @return  the parsed session cookie
+     */
+    public UserDetailsCookie getSessionCookie()
+    {
+        return this.sessionCookie;
+    }
+    
+    /**
+     * @return  the user's tokens
+     */
+    public String[] getTokens()
+    {
+        return this.sessionCookie.getTokens();
+    }
+    
+    /**
+     * @return  the user data from the session cookie
+     */
+    public String getUserData()
+    {
+        return this.sessionCookie.getUserData();
+    }
+    
+    /**
+     * @return  when the session cookie was created
+     */
+    public Timestamp getTimestamp()
+    {
+        return this.sessionCookie.getTimestamp();
+    }
+    
+    @Override
+    public boolean equals(Object other)
+    {
+        return other instanceof UserDetailsPrincipal &&
+                getName().equals(((UserDetailsPrincipal) other).getName());
+    }
+    
+    @Override
+    public int hashCode()
+    {
+        return getName().hashCode();
+    }
+    
+    @Override
+    public String toString()
+    {
+        return getName();
+    }
+}
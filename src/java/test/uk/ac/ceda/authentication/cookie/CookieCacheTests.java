@@ -0,0 +1,80 @@
+package uk.ac.ceda.authentication.cookie;
+
+import static org.junit.Assert.*;
+
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Test;
+
+public class CookieCacheTests
+{
+
+    @Test
+    public void testGetPut()
+    {
+        CookieCache<String> cache = new CookieCache<String>(100, 1, TimeUnit.MINUTES);
+        
+        assertNull(cache.get("cookie"));
+        cache.put("cookie", "value");
+        assertEquals("value", cache.get("cookie"));
+        
+        assertEquals(1, cache.getHitCount());
+        assertEquals(1, cache.getMissCount());
+    }
+    
+    @Test
+    public void testMaxSize()
+    {
+        CookieCache<String> cache = new CookieCache<String>(64, 1, TimeUnit.MINUTES);
+        
+        for (int i = 0; i < 1000; i++)
+        {
+            cache.put("cookie" + i, "value" + i);
+        }
+        
+        assertTrue(cache.size() <= 64);
+        assertEquals(1000 - cache.size(), cache.getEvictionCount());
+    }
+    
+    @Test
+    public void testExpiry() throws InterruptedException
+    {
+        CookieCache<String> cache = new CookieCache<String>(100, 10, TimeUnit.MILLISECONDS);
+        
+        cache.put("cookie", "value");
+        Thread.sleep(50);
+        
+        assertNull(cache.get("cookie"));
+    }
+    
+    @Test
+    public void testScanResistance()
+    {
+        CookieCache<String> cache = new CookieCache<String>(64, 1, TimeUnit.MINUTES);
+        
+        // a second lookup promotes the session
+        cache.put("session", "user");
+        assertEquals("user", cache.get("session"));
+        
+        // a stream of one-off cookies should not displace the session in use
+        for (int i = 0; i < 10000; i++)
+        {
+            cache.put("scan" + i, "value");
+        }
+        
+        assertEquals("user", cache.get("session"));
+    }
+    
+    @Test
+    public void testClear()
+    {
+        CookieCache<String> cache = new CookieCache<String>(100, 1, TimeUnit.MINUTES);
+        
+        cache.put("cookie", "value");
+        cache.clear();
+        
+        assertEquals(0, cache.size());
+        assertNull(cache.get("cookie"));
+    }
+    
+}
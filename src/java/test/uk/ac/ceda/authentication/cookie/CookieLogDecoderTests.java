@@ -0,0 +1,184 @@
+package uk.ac.ceda.authentication.cookie;
+
+import static org.junit.Assert.*;
+
+import java.io.StringWriter;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+
+import org.apache.commons.codec.binary.Base64;
+import org.apache.commons.codec.digest.DigestUtils;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import uk.ac.ceda.authentication.cookie.CookieLogDecoder.Entry;
+import uk.ac.ceda.authentication.cookie.CookieLogDecoder.Status;
+
+public class CookieLogDecoderTests
+{
+
+    static final String COOKIE_NAME = "ceda.session.1";
+    
+    EncodingHandler encodingHandler;
+    KeyRing keyRing;
+    ForkJoinPool pool;
+    Path log;
+    
+    @Before
+    public void setUp() throws Exception
+    {
+        String secretKey = EncodingHandlerTests.readCookieInfo("user-details-cookie-info").get(
+                "encoded_secret_key");
+        encodingHandler = new EncodingHandler(secretKey);
+        keyRing = new KeyRing(encodingHandler);
+        pool = new ForkJoinPool(4);
+        log = Files.createTempFile("access", ".log");
+    }
+    
+    @After
+    public void tearDown() throws Exception
+    {
+        pool.shutdown();
+        Files.deleteIfExists(log);
+    }
+    
+    private String logLine(String cookieValue)
+    {
+        return String.format("10.0.0.1 - - [18/Oct/2026:10:00:00 +0000] \"GET /badc/file.nc HTTP/1.1\" 200 512 "
+                + "\"Cookie: _ga=GA1.2; %s=%s; other=1\"", COOKIE_NAME, cookieValue);
+    }
+    
+    @Test
+    public void testDecode() throws Exception
+    {
+        String alice = UserDetailsCookie.encode(encodingHandler, 0x5964f306L, "alice",
+                new String[] { "token1", "token2" }, "data");
+        String bob = UserDetailsCookie.encode(encodingHandler, EncodingHandler.Format.GCM_BASE64, 0x5964f307L,
+                "bob", new String[0], "data");
+        int last = alice.length() - 3;
+        String tampered = alice.substring(0, last) + (alice.charAt(last) == '0' ? '1' : '0') +
+                alice.substring(last + 1);
+        
+        // enough lines for the scan to be split many times
+        List<String> lines = new ArrayList<String>();
+        for (int i = 0; i < 2000; i++)
+        {
+            lines.add(logLine(i % 2 == 0 ? alice : bob));
+            lines.add("10.0.0.2 - - \"GET /robots.txt HTTP/1.1\" 404 0 \"-\"");
+        }
+        lines.add(logLine(tampered));
+        lines.add(logLine("not-a-cookie"));
+        lines.add(logLine("unknown:" + alice));
+        lines.add("x" + COOKIE_NAME + "=" + bob);
+        Files.write(log, lines, StandardCharsets.US_ASCII);
+        
+        CookieLogDecoder decoder = new CookieLogDecoder(keyRing, COOKIE_NAME, 4096);
+        List<Entry> entries = decoder.decode(log, pool);
+        
+        // each distinct value is decoded once, in order of appearance
+        assertEquals(5, entries.size());
+        assertEquals(2003, decoder.getOccurrenceCount());
+        assertEquals(5, decoder.getDecodeCount());
+        
+        assertEquals(alice, entries.get(0).getCookieValue());
+        assertEquals(Status.OK, entries.get(0).getStatus());
+        assertEquals(1000, entries.get(0).getCount());
+        assertEquals("alice", entries.get(0).getCookie().getUserID());
+        
+        assertEquals(bob, entries.get(1).getCookieValue());
+        assertEquals("bob", entries.get(1).getCookie().getUserID());
+        assertEquals(1000, entries.get(1).getCount());
+        
+        assertEquals(Status.INVALID, entries.get(2).getStatus());
+        assertEquals(Status.MALFORMED, entries.get(3).getStatus());
+        assertEquals(Status.UNKNOWN_KEY, entries.get(4).getStatus());
+        
+        StringWriter output = new StringWriter();
+        CookieLogDecoder.write(entries, output);
+        String[] written = output.toString().split("\n");
+        assertEquals(5, written.length);
+        assertEquals("ok\talice\t2017-07-11T15:47:18Z\ttoken1,token2\t1000\t" + fingerprint(alice), written[0]);
+        assertEquals("ok\tbob\t2017-07-11T15:47:19Z\t-\t1000\t" + fingerprint(bob), written[1]);
+        assertEquals("invalid\t-\t-\t-\t1\t" + fingerprint(tampered), written[2]);
+        
+        // cookie values are credentials, so they are never written
+        assertFalse(output.toString().contains(alice));
+        assertFalse(output.toString().contains(bob));
+    }
+    
+    private static String fingerprint(String cookieValue)
+    {
+        return DigestUtils.sha256Hex(cookieValue).substring(0, 16);
+    }
+    
+    @Test
+    public void testWrite_badTimestamp() throws Exception
+    {
+        // the user ID decodes, but the timestamp is not hex
+        String carol = encodingHandler.encode("zzzzzzzzcarol!token1!data");
+        Files.write(log, Arrays.asList(logLine(carol)), StandardCharsets.US_ASCII);
+        
+        List<Entry> entries = new CookieLogDecoder(keyRing, COOKIE_NAME, 4096).decode(log, pool);
+        assertEquals(Status.OK, entries.get(0).getStatus());
+        assertNull(entries.get(0).getCookie().getTimestamp());
+        
+        StringWriter output = new StringWriter();
+        CookieLogDecoder.write(entries, output);
+        assertEquals("ok\tcarol\t-\ttoken1\t1\t" + fingerprint(carol) + "\n", output.toString());
+    }
+    
+    @Test
+    public void testWrite_escaped() throws Exception
+    {
+        String eve = UserDetailsCookie.encode(encodingHandler, 0x5964f306L, "eve\tx\ny\rz\\",
+                new String[] { "a\tb", "c" }, "data");
+        Files.write(log, Arrays.asList(logLine(eve)), StandardCharsets.US_ASCII);
+        
+        List<Entry> entries = new CookieLogDecoder(keyRing, COOKIE_NAME, 4096).decode(log, pool);
+        assertEquals("eve\tx\ny\rz\\", entries.get(0).getCookie().getUserID());
+        
+        // separators in the fields must not split the line
+        StringWriter output = new StringWriter();
+        CookieLogDecoder.write(entries, output);
+        assertEquals("ok\teve\\tx\\ny\\rz\\\\\t2017-07-11T15:47:18Z\ta\\tb,c\t1\t" + fingerprint(eve) + "\n",
+                output.toString());
+    }
+    
+    @Test
+    public void testDecode_tooLong() throws Exception
+    {
+        StringBuilder value = new StringBuilder();
+        while (value.length() <= EncodingHandler.MAX_ENCODED_LENGTH)
+        {
+            value.append("0123456789abcdef");
+        }
+        Files.write(log, Arrays.asList(logLine(value.toString())), StandardCharsets.US_ASCII);
+        
+        // an over-long value is reported whole rather than cut short
+        List<Entry> entries = new CookieLogDecoder(keyRing, COOKIE_NAME, 4096).decode(log, pool);
+        assertEquals(1, entries.size());
+        assertEquals(value.toString(), entries.get(0).getCookieValue());
+        assertEquals(Status.TOO_LONG, entries.get(0).getStatus());
+        
+        StringWriter output = new StringWriter();
+        CookieLogDecoder.write(entries, output);
+        assertEquals("too-long\t-\t-\t-\t1\t" + fingerprint(value.toString()) + "\n", output.toString());
+    }
+    
+    @Test
+    public void testDecode_emptyLog() throws Exception
+    {
+        CookieLogDecoder decoder = new CookieLogDecoder(
+                new KeyRing(new EncodingHandler(Base64.encodeBase64String(new byte[32]))), COOKIE_NAME, 4096);
+        
+        assertTrue(decoder.decode(log, pool).isEmpty());
+        assertEquals(0, decoder.getDecodeCount());
+    }
+    
+}
@@ -0,0 +1,456 @@
+package uk.ac.ceda.authentication.cookie;
+
+import static org.junit.Assert.*;
+
+import java.io.IOException;
+import java.net.URISyntaxException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Random;
+import java.util.stream.Stream;
+
+import javax.crypto.AEADBadTagException;
+import javax.crypto.Cipher;
+import javax.crypto.Mac;
+import javax.crypto.spec.GCMParameterSpec;
+import javax.crypto.spec.SecretKeySpec;
+
+import org.apache.commons.codec.DecoderException;
+import org.apache.commons.codec.binary.Base64;
+import org.apache.commons.codec.binary.Hex;
+import org.junit.Before;
+import org.junit.Test;
+
+public class EncodingHandlerTests
+{
+
+    String secretKey;
+    String message;
+    String cookieValue;
+    
+    EncodingHandler encodingHandler;
+    
+    @Before
+    public void setUp() throws Exception
+    {
+        HashMap<String, String> valueMap = readCookieInfo("secure-cookie-info");
+        
+        secretKey = valueMap.get("encoded_secret_key");
+        message = valueMap.get("message");
+        cookieValue = valueMap.get("cookie_value");
+        
+        encodingHandler = new EncodingHandler(secretKey);
+    }
+    
+    static HashMap<String, String> readCookieInfo(String name) throws IOException, URISyntaxException
+    {
+        ClassLoader loader = Test.class.getClassLoader();
+        Path cookieInfoPath = Paths.get(loader.getResource(
+                "uk/ac/ceda/authentication/cookie/sample_cookies/" + name).toURI());
+        
+        Stream<String> stream = Files.lines(cookieInfoPath);
+        HashMap<String, String> valueMap = new HashMap<String, String>();
+        stream.forEach(line -> {
+            String[] parts = line.split(" ", 2);
+            if (parts.length > 1)
+            {
+                String key = parts[0].replaceAll(":", "");
+                String value = parts[1];
+                
+                valueMap.put(key, value);
+            }
+        });
+        stream.close();
+        
+        return valueMap;
+    }
+    
+    @Test
+    public void testDecode() throws Exception
+    {
+        String decoded = encodingHandler.decode(cookieValue);
+        
+        // timestamp, url encoded message and an empty body
+        assertEquals(8 + message.replace(" ", "%20").length() + 1, decoded.length());
+        assertTrue(decoded.endsWith("!"));
+        
+        // repeated decodes reuse the same buffers
+        assertEquals(decoded, encodingHandler.decode(cookieValue));
+    }
+    
+    @Test
+    public void testClose() throws Exception
+    {
+        String decoded = encodingHandler.decode(cookieValue);
+        encodingHandler.close();
+        
+        // a closed handler no longer pools, but still works for requests
+        // that were using it when its key was replaced
+        assertEquals(decoded, encodingHandler.decode(cookieValue));
+        assertEquals(decoded, encodingHandler.decode(encodingHandler.encode(decoded, EncodingHandler.Format.GCM)));
+    }
+    
+    @Test
+    public void testEncode() throws Exception
+    {
+        // re-encoding the sample with its own iv gives the same value
+        int ivStart = cookieValue.indexOf('-') + 1;
+        byte[] iv = Hex.decodeHex(cookieValue.substring(ivStart, cookieValue.lastIndexOf('-')).toCharArray());
+        
+        assertEquals(cookieValue, encodingHandler.encode(encodingHandler.decode(cookieValue), iv));
+    }
+    
+    @Test
+    public void testEncode_roundTrip() throws Exception
+    {
+        String[] messages = { "x", "exactly 16 bytes", "5964f306user\u00e9!t\u00f6k!d\u00e4ta" };
+        for (String message: messages)
+        {
+            String encoded = encodingHandler.encode(message);
+            
+            assertTrue(encoded, encodingHandler.isWellFormed(encoded));
+            assertEquals(message, encodingHandler.decode(encoded));
+        }
+        
+        // a fresh iv every time
+        assertNotEquals(encodingHandler.encode(message), encodingHandler.encode(message));
+    }
+    
+    @Test
+    public void testEncode_gcm() throws Exception
+    {
+        String[] messages = { "x", "exactly 16 bytes", "5964f306user\u00e9!t\u00f6k!d\u00e4ta" };
+        for (String message: messages)
+        {
+            String encoded = encodingHandler.encode(message, EncodingHandler.Format.GCM);
+            
+            assertTrue(encoded, encoded.startsWith("v2."));
+            assertTrue(encoded, encodingHandler.isWellFormed(encoded));
+            assertEquals(message, encodingHandler.decode(encoded));
+            assertEquals(message, encodingHandler.decode("k1:" + encoded));
+        }
+        
+        // both formats are accepted side by side
+        assertNotNull(encodingHandler.decode(cookieValue));
+        
+        assertNotEquals(encodingHandler.encode(message, EncodingHandler.Format.GCM),
+                encodingHandler.encode(message, EncodingHandler.Format.GCM));
+    }
+    
+    @Test
+    public void testEncode_gcmDerivedKey() throws Exception
+    {
+        String encoded = encodingHandler.encode(message, EncodingHandler.Format.GCM);
+        int separator = encoded.indexOf('-');
+        byte[] iv = Hex.decodeHex(encoded.substring("v2.".length(), separator).toCharArray());
+        byte[] cipherText = Hex.decodeHex(encoded.substring(separator + 1).toCharArray());
+        
+        // the GCM key is HMAC-SHA256 of "gcm" under the secret key
+        byte[] keyBytes = Base64.decodeBase64(secretKey);
+        Mac mac = Mac.getInstance("HmacSHA256");
+        mac.init(new SecretKeySpec(keyBytes, "HmacSHA256"));
+        byte[] gcmKey = Arrays.copyOf(mac.doFinal("gcm".getBytes(StandardCharsets.US_ASCII)), keyBytes.length);
+        
+        Cipher cipher = Cipher.getInstance("AES/GCM/NoPadding");
+        cipher.init(Cipher.DECRYPT_MODE, new SecretKeySpec(gcmKey, "AES"), new GCMParameterSpec(128, iv));
+        assertEquals(message, new String(cipher.doFinal(cipherText), StandardCharsets.UTF_8));
+        
+        // the secret key itself doesn't authenticate the value
+        cipher.init(Cipher.DECRYPT_MODE, new SecretKeySpec(keyBytes, "AES"), new GCMParameterSpec(128, iv));
+        try
+        {
+            cipher.doFinal(cipherText);
+            fail("Expected the tag check to fail");
+        }
+        catch (AEADBadTagException e)
+        {
+            // expected
+        }
+    }
+    
+    @Test
+    public void testDecode_gcmTampered() throws Exception
+    {
+        String encoded = encodingHandler.encode(message, EncodingHandler.Format.GCM);
+        
+        // every single character change to the iv, cipher text or tag must be caught
+        for (int i = "v2.".length(); i < encoded.length(); i++)
+        {
+            char c = encoded.charAt(i);
+            if (c == '-')
+            {
+                continue;
+            }
+            String tampered = encoded.substring(0, i) + (c == 'f' ? 'e' : 'f') + encoded.substring(i + 1);
+            
+            assertNull(tampered, encodingHandler.decode(tampered));
+        }
+        
+        // a value from another key fails too
+        byte[] otherKey = new byte[32];
+        String other = new EncodingHandler(Base64.encodeBase64String(otherKey)).encode(message,
+                EncodingHandler.Format.GCM);
+        assertNull(encodingHandler.decode(other));
+    }
+    
+    @Test
+    public void testDecode_gcmMalformed() throws Exception
+    {
+        String encoded = encodingHandler.encode(message, EncodingHandler.Format.GCM);
+        int cipherTextStart = encoded.indexOf('-') + 1;
+        
+        String[] values = {
+                "v2.",
+                encoded.substring(0, cipherTextStart),
+                encoded.substring(0, cipherTextStart + 32),
+                encoded.substring(0, encoded.length() - 1),
+                "v2." + encoded.substring(5),
+                encoded.replace('-', '0'),
+                encoded.substring(0, encoded.length() - 2) + "zz",
+        };
+        for (String value: values)
+        {
+            assertFalse(value, encodingHandler.isWellFormed(value));
+            try
+            {
+                encodingHandler.decode(value);
+                fail("Expected a DecoderException for " + value);
+            }
+            catch (DecoderException e)
+            {
+                ;
+            }
+        }
+    }
+    
+    @Test
+    public void testEncode_base64() throws Exception
+    {
+        StringBuilder longMessage = new StringBuilder();
+        for (int i = 0; i < 1500; i++)
+        {
+            longMessage.append((char) ('a' + i % 26));
+        }
+        
+        String[] messages = { "x", "exactly 16 bytes", "5964f306user\u00e9!t\u00f6k!d\u00e4ta",
+                longMessage.toString() };
+        for (String message: messages)
+        {
+            String cbc = encodingHandler.encode(message, EncodingHandler.Format.CBC_HMAC_BASE64);
+            String gcm = encodingHandler.encode(message, EncodingHandler.Format.GCM_BASE64);
+            
+            assertTrue(cbc, cbc.startsWith("v3.") && encodingHandler.isWellFormed(cbc));
+            assertTrue(gcm, gcm.startsWith("v4.") && encodingHandler.isWellFormed(gcm));
+            assertEquals(message, encodingHandler.decode(cbc));
+            assertEquals(message, encodingHandler.decode("k1:" + gcm));
+        }
+        
+        // a third shorter than hex
+        String hex = encodingHandler.encode(longMessage.toString(), EncodingHandler.Format.GCM);
+        String base64 = encodingHandler.encode(longMessage.toString(), EncodingHandler.Format.GCM_BASE64);
+        assertEquals(2.0 / 3, (double) base64.length() / hex.length(), 0.01);
+    }
+    
+    @Test
+    public void testDecode_base64IvTampered() throws Exception
+    {
+        String encoded = encodingHandler.encode(message, EncodingHandler.Format.CBC_HMAC_BASE64);
+        String[] segments = encoded.substring("v3.".length()).split("\\.");
+        
+        // an altered iv changes the first block of plain text, so it must
+        // fail the signature check
+        for (int i = 0; i < EncryptionHandler.BLOCK_SIZE; i++)
+        {
+            byte[] iv = Base64.decodeBase64(segments[1]);
+            iv[i] ^= 1;
+            String tampered = "v3." + segments[0] + "." + Base64.encodeBase64URLSafeString(iv) +
+                    "." + segments[2];
+            
+            assertTrue(tampered, encodingHandler.isWellFormed(tampered));
+            assertNull(tampered, encodingHandler.decode(tampered));
+        }
+    }
+    
+    @Test
+    public void testDecode_base64KeyId() throws Exception
+    {
+        String encoded = encodingHandler.encode(message, EncodingHandler.Format.CBC_HMAC_BASE64, "k1");
+        assertTrue(encoded, encoded.startsWith("k1:v3."));
+        assertEquals(message, encodingHandler.decode(encoded));
+        
+        // the key identifier is signed, so it can't be added, changed or removed
+        assertNull(encodingHandler.decode("k2" + encoded.substring(2)));
+        assertNull(encodingHandler.decode(encoded.substring(3)));
+        assertNull(encodingHandler.decode("k1:" + encodingHandler.encode(message,
+                EncodingHandler.Format.CBC_HMAC_BASE64)));
+    }
+    
+    @Test
+    public void testDecode_base64Tampered() throws Exception
+    {
+        String encoded = encodingHandler.encode(message, EncodingHandler.Format.GCM_BASE64);
+        for (int i = "v4.".length(); i < encoded.length(); i++)
+        {
+            char c = encoded.charAt(i);
+            if (c == '.')
+            {
+                continue;
+            }
+            String tampered = encoded.substring(0, i) + (c == 'A' ? 'B' : 'A') + encoded.substring(i + 1);
+            
+            // changes to the unused bits of the last character are malformed
+            try
+            {
+                assertNull(tampered, encodingHandler.decode(tampered));
+            }
+            catch (DecoderException e)
+            {
+                assertFalse(tampered, encodingHandler.isWellFormed(tampered));
+            }
+        }
+        
+        // the digest of the CBC format
+        encoded = encodingHandler.encode(message, EncodingHandler.Format.CBC_HMAC_BASE64);
+        int digestStart = encoded.lastIndexOf('.') + 1;
+        for (int i = digestStart; i < encoded.length() - 1; i++)
+        {
+            char c = encoded.charAt(i);
+            String tampered = encoded.substring(0, i) + (c == 'A' ? 'B' : 'A') + encoded.substring(i + 1);
+            
+            assertNull(tampered, encodingHandler.decode(tampered));
+        }
+        
+        // hex segments or delimiters are not accepted in place of base64url ones
+        String[] malformed = {
+                encoded.replace('.', '-').replaceFirst("^v3-", "v3."),
+                encoded.substring(0, encoded.length() - 1),
+                encoded.substring(0, encoded.length() - 1) + "=",
+        };
+        for (String value: malformed)
+        {
+            assertFalse(value, encodingHandler.isWellFormed(value));
+        }
+    }
+    
+    @Test
+    public void testBase64UrlCodec() throws Exception
+    {
+        // matches the standard encoding without padding, at every length
+        byte[] bytes = new byte[40];
+        new Random(1).nextBytes(bytes);
+        byte[] decoded = new byte[bytes.length];
+        for (int length = 0; length <= bytes.length; length++)
+        {
+            byte[] input = Arrays.copyOf(bytes, length);
+            String encoded = Base64UrlCodec.encode(input, new StringBuilder()).toString();
+            
+            assertEquals(Base64.encodeBase64URLSafeString(input), encoded);
+            assertTrue(encoded, Base64UrlCodec.isBase64Url(encoded, 0, encoded.length()));
+            assertEquals(length, Base64UrlCodec.decode(encoded, 0, encoded.length(), decoded, 0));
+            assertArrayEquals(input, Arrays.copyOf(decoded, length));
+        }
+        
+        // non-canonical and invalid text
+        String[] invalid = { "A", "AB", "AAB", "AA=", "AA+A", "AA/A", "\u00e9AAA" };
+        for (String text: invalid)
+        {
+            assertFalse(text, Base64UrlCodec.isBase64Url(text, 0, text.length()));
+            assertEquals(text, -1, Base64UrlCodec.decode(text, 0, text.length(), decoded, 0));
+        }
+    }
+    
+    @Test
+    public void testDecode_keyId() throws Exception
+    {
+        // a key identifier prefix is skipped
+        assertEquals(encodingHandler.decode(cookieValue), encodingHandler.decode("k1:" + cookieValue));
+        assertTrue(encodingHandler.isWellFormed("k1:" + cookieValue));
+        
+        assertEquals(2, EncodingHandler.getKeyIdLength("k1:" + cookieValue));
+        assertEquals(-1, EncodingHandler.getKeyIdLength(cookieValue));
+    }
+    
+    @Test
+    public void testDecode_upperCaseHex() throws Exception
+    {
+        // only the cipher text hex is signed
+        int ivStart = cookieValue.indexOf('-');
+        String upperCase = cookieValue.substring(0, ivStart) + cookieValue.substring(ivStart).toUpperCase();
+        
+        assertEquals(encodingHandler.decode(cookieValue), encodingHandler.decode(upperCase));
+    }
+    
+    @Test
+    public void testDecode_badSignature() throws Exception
+    {
+        char first = cookieValue.charAt(0);
+        String tampered = (first == '0' ? '1' : '0') + cookieValue.substring(1);
+        
+        assertNull(encodingHandler.decode(tampered));
+    }
+    
+    @Test
+    public void testDecode_badDigest() throws Exception
+    {
+        // every single byte change to the digest must be caught
+        int digestStart = cookieValue.lastIndexOf('-') + 1;
+        for (int i = digestStart; i < cookieValue.length(); i += 2)
+        {
+            char c = cookieValue.charAt(i);
+            String tampered = cookieValue.substring(0, i) + (c == 'f' ? 'e' : 'f') + cookieValue.substring(i + 1);
+            
+            assertNull(tampered, encodingHandler.decode(tampered));
+        }
+    }
+    
+    @Test
+    public void testDecode_malformed() throws Exception
+    {
+        for (String value: malformedValues())
+        {
+            try
+            {
+                encodingHandler.decode(value);
+                fail("Expected a DecoderException for " + value);
+            }
+            catch (DecoderException e)
+            {
+                ;
+            }
+        }
+    }
+    
+    @Test
+    public void testIsWellFormed() throws Exception
+    {
+        assertTrue(encodingHandler.isWellFormed(cookieValue));
+        assertTrue(encodingHandler.isWellFormed(cookieValue.toUpperCase()));
+        
+        for (String value: malformedValues())
+        {
+            assertFalse(value, encodingHandler.isWellFormed(value));
+        }
+    }
+    
+    private String[] malformedValues()
+    {
+        String[] parts = cookieValue.split("-");
+        
+        return new String[] {
+                "",
+                parts[0],
+                parts[0] + "-" + parts[1],
+                cookieValue + "-" + parts[2],
+                parts[0].substring(2) + "-" + parts[1] + "-" + parts[2],
+                parts[0] + "-" + parts[1].substring(2) + "-" + parts[2],
+                parts[0] + "-" + parts[1] + "-" + parts[2].substring(2),
+                "zz" + cookieValue.substring(2),
+                cookieValue.substring(0, cookieValue.length() - 1) + "\u00e9",
+        };
+    }
+    
+}
@@ -0,0 +1,96 @@
+package uk.ac.ceda.authentication.cookie;
+
+import static org.junit.Assert.*;
+
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.HashMap;
+
+import org.apache.commons.codec.binary.Base64;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class KeyRingTests
+{
+
+    String secretKey;
+    String otherKey;
+    String cookieValue;
+    
+    Path keyFile;
+    
+    @Before
+    public void setUp() throws Exception
+    {
+        HashMap<String, String> valueMap = EncodingHandlerTests.readCookieInfo("secure-cookie-info");
+        
+        secretKey = valueMap.get("encoded_secret_key");
+        cookieValue = valueMap.get("cookie_value");
+        otherKey = Base64.encodeBase64String(new byte[32]);
+        
+        keyFile = Files.createTempFile("keyring", ".properties");
+    }
+    
+    @After
+    public void tearDown() throws Exception
+    {
+        Files.deleteIfExists(keyFile);
+    }
+    
+    @Test
+    public void testLoad() throws Exception
+    {
+        writeKeyFile("key.old=" + otherKey, "key.new=" + secretKey, "default=old");
+        
+        KeyRing keyRing = KeyRing.load(keyFile);
+        assertEquals(2, keyRing.size());
+        
+        // the prefix picks the key, otherwise the default is used
+        assertNotNull(keyRing.getHandler("new:" + cookieValue).decode("new:" + cookieValue));
+        assertNull(keyRing.getHandler(cookieValue).decode(cookieValue));
+        assertNull(keyRing.getHandler("other:" + cookieValue));
+    }
+    
+    @Test
+    public void testLoad_singleKeyIsDefault() throws Exception
+    {
+        writeKeyFile("key.only=" + secretKey);
+        
+        KeyRing keyRing = KeyRing.load(keyFile);
+        assertNotNull(keyRing.getHandler(cookieValue).decode(cookieValue));
+    }
+    
+    @Test
+    public void testLoad_noDefault() throws Exception
+    {
+        writeKeyFile("key.a=" + secretKey, "key.b=" + otherKey);
+        
+        KeyRing keyRing = KeyRing.load(keyFile);
+        assertNull(keyRing.getHandler(cookieValue));
+        assertNotNull(keyRing.getHandler("a:" + cookieValue));
+    }
+    
+    @Test(expected = IllegalArgumentException.class)
+    public void testLoad_unknownDefault() throws Exception
+    {
+        writeKeyFile("key.a=" + secretKey, "default=b");
+        
+        KeyRing.load(keyFile);
+    }
+    
+    @Test(expected = IllegalArgumentException.class)
+    public void testLoad_noKeys() throws Exception
+    {
+        writeKeyFile("default=a");
+        
+        KeyRing.load(keyFile);
+    }
+    
+    private void writeKeyFile(String... lines) throws Exception
+    {
+        Files.write(keyFile, String.join("\n", lines).getBytes(StandardCharsets.UTF_8));
+    }
+    
+}
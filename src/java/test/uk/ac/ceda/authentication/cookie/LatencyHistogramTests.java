@@ -0,0 +1,46 @@
+package uk.ac.ceda.authentication.cookie;
+
+import static org.junit.Assert.*;
+
+import org.junit.Test;
+
+public class LatencyHistogramTests
+{
+
+    @Test
+    public void testRecord()
+    {
+        LatencyHistogram histogram = new LatencyHistogram();
+        
+        assertEquals(0, histogram.getCount());
+        assertEquals(0, histogram.getPercentile(99));
+        
+        for (int i = 0; i < 99; i++)
+        {
+            histogram.record(1000);
+        }
+        histogram.record(1000000);
+        
+        assertEquals(100, histogram.getCount());
+        assertEquals((99 * 1000 + 1000000) / 100.0, histogram.getMean(), 0.001);
+        
+        // percentiles report the upper bound of their bucket
+        assertEquals(1023, histogram.getPercentile(50));
+        assertEquals(1023, histogram.getPercentile(99));
+        assertEquals(1048575, histogram.getPercentile(99.9));
+    }
+    
+    @Test
+    public void testRecord_outOfRange()
+    {
+        LatencyHistogram histogram = new LatencyHistogram();
+        
+        histogram.record(-1);
+        histogram.record(Long.MAX_VALUE);
+        
+        long[] buckets = histogram.getBucketCounts();
+        assertEquals(1, buckets[0]);
+        assertEquals(1, buckets[buckets.length - 1]);
+    }
+    
+}
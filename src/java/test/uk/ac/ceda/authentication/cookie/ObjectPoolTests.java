@@ -0,0 +1,73 @@
+package uk.ac.ceda.authentication.cookie;
+
+import static org.junit.Assert.*;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.Before;
+import org.junit.Test;
+
+public class ObjectPoolTests
+{
+
+    AtomicInteger created;
+    ObjectPool<Object> pool;
+    
+    @Before
+    public void setUp() throws Exception
+    {
+        created = new AtomicInteger();
+        pool = new ObjectPool<Object>(2, () -> {
+            created.incrementAndGet();
+            return new Object();
+        });
+    }
+    
+    @Test
+    public void testAcquire_reusesReleased()
+    {
+        Object first = pool.acquire();
+        pool.release(first);
+        
+        assertSame(first, pool.acquire());
+        assertEquals(1, created.get());
+    }
+    
+    @Test
+    public void testAcquire_createsWhenEmpty()
+    {
+        Object first = pool.acquire();
+        Object second = pool.acquire();
+        
+        assertNotSame(first, second);
+        assertEquals(2, created.get());
+    }
+    
+    @Test
+    public void testRelease_full()
+    {
+        Object[] items = { pool.acquire(), pool.acquire(), pool.acquire() };
+        for (Object item: items)
+        {
+            pool.release(item);
+        }
+        
+        // the pool keeps no more than its capacity
+        assertEquals(2, pool.size());
+    }
+    
+    @Test
+    public void testClose()
+    {
+        Object item = pool.acquire();
+        pool.release(pool.acquire());
+        pool.close();
+        assertEquals(0, pool.size());
+        
+        // objects given back after closing are dropped, but the pool still
+        // hands out new ones
+        pool.release(item);
+        assertEquals(0, pool.size());
+        assertNotNull(pool.acquire());
+    }
+}
@@ -0,0 +1,60 @@
+package uk.ac.ceda.authentication.cookie;
+
+import static org.junit.Assert.*;
+
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Test;
+
+public class RejectedCookieCacheTests
+{
+
+    @Test
+    public void testAddContains()
+    {
+        RejectedCookieCache cache = new RejectedCookieCache(100, 1, TimeUnit.MINUTES);
+        
+        assertFalse(cache.contains("cookie"));
+        cache.add("cookie");
+        assertTrue(cache.contains("cookie"));
+        assertFalse(cache.contains("cookie2"));
+        
+        cache.clear();
+        assertFalse(cache.contains("cookie"));
+    }
+    
+    @Test
+    public void testExpiry() throws InterruptedException
+    {
+        RejectedCookieCache cache = new RejectedCookieCache(100, 10, TimeUnit.MILLISECONDS);
+        
+        cache.add("cookie");
+        Thread.sleep(50);
+        
+        assertFalse(cache.contains("cookie"));
+    }
+    
+    @Test
+    public void testBounded()
+    {
+        RejectedCookieCache cache = new RejectedCookieCache(64, 1, TimeUnit.MINUTES);
+        
+        for (int i = 0; i < 1000; i++)
+        {
+            cache.add("cookie" + i);
+        }
+        
+        int found = 0;
+        for (int i = 0; i < 1000; i++)
+        {
+            if (cache.contains("cookie" + i))
+            {
+                found++;
+            }
+        }
+        
+        assertTrue(found <= 64);
+        assertTrue(cache.contains("cookie999"));
+    }
+    
+}
@@ -3,6 +3,8 @@ package uk.ac.ceda.authentication.cookie;
 import static org.junit.Assert.*;
 
 import java.io.IOException;
+import java.io.UnsupportedEncodingException;
+import java.net.URLDecoder;
 import java.net.URISyntaxException;
 import java.nio.file.Files;
 import java.nio.file.Path;
@@ -10,7 +12,17 @@ import java.nio.file.Paths;
 import java.security.InvalidAlgorithmParameterException;
 import java.security.InvalidKeyException;
 import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.nio.charset.StandardCharsets;
+import java.sql.Timestamp;
+import java.util.Arrays;
 import java.util.HashMap;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.regex.Pattern;
 import java.util.stream.Stream;
 
 import javax.crypto.NoSuchPaddingException;
@@ -18,6 +30,7 @@ import javax.crypto.NoSuchPaddingException;
 import org.junit.Before;
 import org.junit.Test;
 import org.apache.commons.codec.DecoderException;
+import org.apache.commons.codec.binary.Hex;
 
 public class UserDetailsCookieTests
 {
@@ -84,5 +97,210 @@ public class UserDetailsCookieTests
         
         assertEquals(this.userData, cookie.getUserData());
     }
+    
+    @Test
+    public void testParseCookie_sharedHandler() throws Exception
+    {
+        EncodingHandler encodingHandler = new EncodingHandler(this.secretKey);
+        
+        ExecutorService executor = Executors.newFixedThreadPool(8);
+        try
+        {
+            List<Callable<String>> tasks = new ArrayList<Callable<String>>();
+            for (int i = 0; i < 64; i++)
+            {
+                tasks.add(() -> {
+                    String userID = null;
+                    for (int j = 0; j < 100; j++)
+                    {
+                        userID = UserDetailsCookie.parseCookie(this.cookieValue, encodingHandler).getUserID();
+                    }
+                    return userID;
+                });
+            }
+            
+            for (Future<String> result: executor.invokeAll(tasks))
+            {
+                assertEquals(this.userID, result.get());
+            }
+        }
+        finally
+        {
+            executor.shutdown();
+        }
+    }
+    
+    @Test
+    public void testParseCookie_secureCookie() throws Exception
+    {
+        HashMap<String, String> valueMap = EncodingHandlerTests.readCookieInfo("secure-cookie-info");
+        
+        UserDetailsCookie cookie = UserDetailsCookie.parseCookie(
+                valueMap.get("cookie_value"), valueMap.get("encoded_secret_key"));
+        
+        assertEquals(valueMap.get("message"), cookie.getUserID());
+        assertNull(cookie.getTokens());
+        assertEquals("", cookie.getUserData());
+    }
+    
+    @Test
+    public void testParse_lazyFields() throws Exception
+    {
+        byte[] text = "5964f306userid!token1,token2!userdata".getBytes(StandardCharsets.UTF_8);
+        UserDetailsCookie cookie = UserDetailsCookie.parse(text, text.length, new byte[text.length]);
+        
+        // the parsed cookie must not depend on the decode buffer
+        Arrays.fill(text, (byte) 0);
+        
+        assertEquals("userid", cookie.getUserID());
+        assertArrayEquals(new String[] { "token1", "token2" }, cookie.getTokens());
+        assertNotSame(cookie.getTokens(), cookie.getTokens());
+        assertEquals("userdata", cookie.getUserData());
+        assertEquals(0x5964f306L, cookie.getTimestamp().getTime());
+        assertEquals("5964f306userid!token1,token2!userdata", cookie.getValue());
+    }
+    
+    @Test
+    public void testGetters_returnCopies() throws Exception
+    {
+        byte[] text = "5964f306userid!token1,token2!userdata".getBytes(StandardCharsets.UTF_8);
+        UserDetailsCookie parsed = UserDetailsCookie.parse(text, text.length, new byte[text.length]);
+        
+        String[] userTokens = new String[] { "token1", "token2" };
+        Timestamp timestamp = new Timestamp(0x5964f306L);
+        UserDetailsCookie built = new UserDetailsCookie(null, timestamp, "userid", userTokens, "userdata");
+        
+        // changes to arrays or timestamps handed in or out must not reach
+        // the cookie, which later requests share through the session cache
+        userTokens[0] = "admin";
+        timestamp.setTime(0);
+        for (UserDetailsCookie cookie: new UserDetailsCookie[] { parsed, built })
+        {
+            cookie.getTokens()[0] = "admin";
+            cookie.getTimestamp().setTime(0);
+            
+            assertArrayEquals(new String[] { "token1", "token2" }, cookie.getTokens());
+            assertEquals(0x5964f306L, cookie.getTimestamp().getTime());
+            assertEquals(0x5964f306L, cookie.getTime());
+        }
+    }
+    
+    @Test
+    public void testEncode() throws Exception
+    {
+        EncodingHandler encodingHandler = new EncodingHandler(secretKey);
+        UserDetailsCookie cookie = UserDetailsCookie.parseCookie(cookieValue, encodingHandler);
+        
+        // the sample's content is reproduced from its fields
+        String content = UserDetailsCookie.format(cookie.getTimestamp().getTime(), cookie.getUserID(),
+                cookie.getTokens(), cookie.getUserData());
+        assertEquals(encodingHandler.decode(cookieValue), content);
+        
+        String[] parts = cookieValue.split("-");
+        assertEquals(cookieValue, encodingHandler.encode(content, Hex.decodeHex(parts[1].toCharArray())));
+    }
+    
+    @Test
+    public void testEncode_roundTrip() throws Exception
+    {
+        EncodingHandler encodingHandler = new EncodingHandler(secretKey);
+        
+        String[] userIDs = { "userid", "a b+c!d%e/f~g", "user\u00e9" };
+        String[][] tokenLists = { {}, { "token1" }, { "token1", "token2" } };
+        for (EncodingHandler.Format format: EncodingHandler.Format.values())
+        {
+            for (String userID: userIDs)
+            {
+                for (String[] tokens: tokenLists)
+                {
+                    String encoded = UserDetailsCookie.encode(encodingHandler, format, 0x5964f306L, userID, tokens,
+                            "data");
+                    UserDetailsCookie cookie = UserDetailsCookie.parseCookie(encoded, encodingHandler);
+                    
+                    assertEquals(0x5964f306L, cookie.getTimestamp().getTime());
+                    assertEquals(userID, cookie.getUserID());
+                    assertArrayEquals(tokens.length == 0 ? null : tokens, cookie.getTokens());
+                    assertEquals("data", cookie.getUserData());
+                }
+            }
+        }
+        
+        // escaped as the service does
+        assertEquals("5964f306a%20b%2Bc%21d%25e/f%7Eg!", UserDetailsCookie.format(0x5964f306L, "a b+c!d%e/f~g",
+                new String[0], ""));
+    }
+    
+    @Test
+    public void testParse_matchesStringParser() throws Exception
+    {
+        String[] contents = {
+                "5964f306userid!token1,token2!userdata",
+                "5964e98da%20secret%20message!",
+                "5964f306userid",
+                "5964f306",
+                "5964F306a+b%2Bc%C3%A9!tok!",
+                "5964f306userid!!data",
+                "5964f306userid!!!",
+                "5964f306userid!a,,b,,!data!more",
+                "5964f306userid!,a,!data",
+                "5964f306userid!,,!data",
+                "5964f306userid!tok!data!extra",
+                "5964f306user\u00e9!t\u00f6k!d\u00e4ta",
+                "zzzzzzzzuserid!tok!data",
+        };
+        
+        for (String content: contents)
+        {
+            byte[] text = content.getBytes(StandardCharsets.UTF_8);
+            UserDetailsCookie cookie = UserDetailsCookie.parse(text, text.length, new byte[text.length]);
+            
+            String[] expected = parseWithStrings(content);
+            assertEquals(content, expected[0], cookie.getTimestamp() == null ? null : cookie.getTimestamp().toString());
+            assertEquals(content, expected[1], cookie.getUserID());
+            assertEquals(content, expected[2], cookie.getTokens() == null ? null : Arrays.toString(cookie.getTokens()));
+            assertEquals(content, expected[3], cookie.getUserData());
+        }
+    }
+    
+    /**
+     * Reference implementation of cookie content parsing using String methods
+     */
+    private static String[] parseWithStrings(String cookieContent) throws UnsupportedEncodingException
+    {
+        Timestamp timestamp = null;
+        try
+        {
+            timestamp = new Timestamp(Long.parseLong(cookieContent.substring(0, 8), 16));
+        }
+        catch (NumberFormatException e)
+        {
+            ;
+        }
+        
+        String[] parts = cookieContent.substring(8).split(Pattern.quote("!"), 2);
+        String userID = URLDecoder.decode(parts[0], "UTF-8");
+        
+        String[] tokens = null;
+        String userData = null;
+        if (parts.length > 1)
+        {
+            parts = parts[1].split(Pattern.quote("!"));
+            if (parts.length == 2)
+            {
+                tokens = parts[0].split(Pattern.quote(","));
+                userData = parts[1];
+            }
+            else if (parts.length == 1)
+            {
+                userData = parts[0];
+            }
+        }
+        
+        return new String[] {
+                timestamp == null ? null : timestamp.toString(),
+                userID,
+                tokens == null ? null : Arrays.toString(tokens),
+                userData };
+    }
 
 }
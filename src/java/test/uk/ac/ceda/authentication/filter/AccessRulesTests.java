@@ -0,0 +1,129 @@
+package uk.ac.ceda.authentication.filter;
+
+import static org.junit.Assert.*;
+
+import java.io.IOException;
+import java.io.StringReader;
+
+import org.junit.Before;
+import org.junit.Test;
+
+public class AccessRulesTests
+{
+
+    private static final String RULES =
+            "# dataset rules\n" +
+            "/badc/cmip5/* = cmip5\n" +
+            "/badc/ukmo-um/* = ukmo, admin\n" +
+            "\n" +
+            "/badc/ukmo-um/docs/* =\n" +
+            "/badc/ukmo-um/docs/restricted.txt = admin\n" +
+            "/neodc/* = neodc\n";
+    
+    private AccessRules rules;
+    
+    @Before
+    public void setUp() throws IOException
+    {
+        rules = AccessRules.parse(new StringReader(RULES));
+    }
+    
+    @Test
+    public void testMatch()
+    {
+        assertEquals(5, rules.size());
+        
+        assertEquals("/badc/cmip5/*", rules.match("/badc/cmip5/data/file.nc").getPattern());
+        assertEquals("/badc/cmip5/*", rules.match("/badc/cmip5").getPattern());
+        assertEquals("/badc/cmip5/*", rules.match("/badc/cmip5/").getPattern());
+        
+        // the most specific rule applies
+        assertEquals("/badc/ukmo-um/*", rules.match("/badc/ukmo-um/data").getPattern());
+        assertEquals("/badc/ukmo-um/docs/*", rules.match("/badc/ukmo-um/docs/readme.txt").getPattern());
+        assertEquals("/badc/ukmo-um/docs/restricted.txt",
+                rules.match("/badc/ukmo-um/docs/restricted.txt").getPattern());
+        assertEquals("/badc/ukmo-um/docs/*", rules.match("/badc/ukmo-um/docs/restricted.txt.bak").getPattern());
+    }
+    
+    @Test
+    public void testMatch_segmentBoundaries()
+    {
+        // prefixes only match whole path segments
+        assertNull(rules.match("/badc/cmip56/file.nc"));
+        assertNull(rules.match("/badc/cmip"));
+        assertNull(rules.match("/badc"));
+        assertNull(rules.match(""));
+        assertEquals("/neodc/*", rules.match("/neodc").getPattern());
+        assertNull(rules.match("/neodcx"));
+    }
+    
+    @Test
+    public void testMatch_catchAll() throws IOException
+    {
+        AccessRules catchAll = AccessRules.parse(new StringReader("/* = staff\n/public/* =\n"));
+        
+        assertEquals("/*", catchAll.match("/anything/at/all").getPattern());
+        assertEquals("/*", catchAll.match("").getPattern());
+        assertEquals("/public/*", catchAll.match("/public/index.html").getPattern());
+    }
+    
+    @Test
+    public void testPermits()
+    {
+        String[] cmip5User = { "token1", "cmip5" };
+        String[] ukmoAdmin = { "admin" };
+        
+        assertTrue(rules.match("/badc/cmip5/file.nc").permits(cmip5User));
+        assertFalse(rules.match("/badc/cmip5/file.nc").permits(ukmoAdmin));
+        assertFalse(rules.match("/badc/cmip5/file.nc").permits(null));
+        
+        // any one of the listed tokens is enough
+        assertTrue(rules.match("/badc/ukmo-um/file.pp").permits(ukmoAdmin));
+        assertFalse(rules.match("/badc/ukmo-um/file.pp").permits(cmip5User));
+        
+        // rules without tokens are open
+        assertTrue(rules.match("/badc/ukmo-um/docs/readme.txt").permits(null));
+        assertFalse(rules.match("/badc/ukmo-um/docs/restricted.txt").permits(cmip5User));
+    }
+    
+    @Test
+    public void testMatch_manyRules() throws IOException
+    {
+        StringBuilder text = new StringBuilder();
+        for (int i = 0; i < 10000; i++)
+        {
+            text.append("/archive/dataset").append(i).append("/* = group").append(i).append('\n');
+        }
+        AccessRules many = AccessRules.parse(new StringReader(text.toString()));
+        
+        assertEquals(10000, many.size());
+        assertArrayEquals(new String[] { "group1234" }, many.match("/archive/dataset1234/a/b").getTokens());
+        assertArrayEquals(new String[] { "group123" }, many.match("/archive/dataset123/a/b").getTokens());
+        assertNull(many.match("/archive/dataset10000/a"));
+    }
+    
+    @Test
+    public void testParse_invalid()
+    {
+        String[] invalid = {
+                "/no/assignment",
+                "relative/* = token",
+                " = token",
+                "/repeated/* = a\n/repeated/* = b",
+        };
+        
+        for (String text: invalid)
+        {
+            try
+            {
+                AccessRules.parse(new StringReader(text));
+                fail("Expected an IllegalArgumentException for " + text);
+            }
+            catch (IllegalArgumentException | IOException e)
+            {
+                ;
+            }
+        }
+    }
+    
+}
@@ -0,0 +1,209 @@
+package uk.ac.ceda.authentication.filter;
+
+import static org.junit.Assert.*;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Stream;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import uk.ac.ceda.authentication.filter.AuditLog.Outcome;
+
+public class AuditLogTests
+{
+
+    private Path directory;
+    private Path file;
+    private AuditLog auditLog;
+    
+    @Before
+    public void setUp() throws Exception
+    {
+        directory = Files.createTempDirectory("audit");
+        file = directory.resolve("audit.log");
+    }
+    
+    @After
+    public void tearDown() throws Exception
+    {
+        if (auditLog != null)
+        {
+            auditLog.close();
+        }
+        
+        try (Stream<Path> files = Files.list(directory))
+        {
+            files.forEach(path -> path.toFile().delete());
+        }
+        Files.delete(directory);
+    }
+    
+    private List<String> readLines(Path path) throws IOException
+    {
+        return Files.readAllLines(path, StandardCharsets.UTF_8);
+    }
+    
+    @Test
+    public void testRecord() throws Exception
+    {
+        auditLog = new AuditLog(file, 16, 0, 0);
+        auditLog.start();
+        
+        auditLog.record(Outcome.AUTHENTICATED, "alice", "/badc/file.nc", null);
+        auditLog.record(Outcome.REJECTED, null, "/badc/file.nc", RejectReason.BAD_SIGNATURE);
+        auditLog.close();
+        
+        List<String> lines = readLines(file);
+        assertEquals(2, lines.size());
+        assertTrue(lines.get(0).matches("\\{\"time\":\"[0-9T:.-]+Z\",\"outcome\":\"authenticated\","
+                + "\"user\":\"alice\",\"path\":\"/badc/file.nc\",\"reason\":null\\}"));
+        assertTrue(lines.get(1).endsWith(
+                "\"outcome\":\"rejected\",\"user\":null,\"path\":\"/badc/file.nc\",\"reason\":\"BAD_SIGNATURE\"}"));
+        assertEquals(2, auditLog.getWrittenCount());
+        assertEquals(0, auditLog.getDroppedCount());
+    }
+    
+    @Test
+    public void testRecord_escaped() throws Exception
+    {
+        auditLog = new AuditLog(file, 16, 0, 0);
+        auditLog.start();
+        
+        auditLog.record(Outcome.FORBIDDEN, "a\"b\\c", "/x\ny\u0001", null);
+        auditLog.close();
+        
+        List<String> lines = readLines(file);
+        assertEquals(1, lines.size());
+        assertTrue(lines.get(0).contains("\"user\":\"a\\\"b\\\\c\",\"path\":\"/x\\u000ay\\u0001\""));
+    }
+    
+    @Test
+    public void testRecord_full() throws Exception
+    {
+        // nothing is taken from the buffer until the writer starts
+        auditLog = new AuditLog(file, 3, 0, 0);
+        for (int i = 0; i < 6; i++)
+        {
+            boolean accepted = auditLog.record(Outcome.REDIRECTED, null, "/" + i, null);
+            assertEquals(i < 4, accepted);
+        }
+        assertEquals(2, auditLog.getDroppedCount());
+        
+        auditLog.start();
+        auditLog.close();
+        
+        List<String> lines = readLines(file);
+        assertEquals(4, lines.size());
+        assertTrue(lines.get(3).contains("\"path\":\"/3\""));
+        assertEquals(4, auditLog.getWrittenCount());
+    }
+    
+    @Test
+    public void testRecord_concurrent() throws Exception
+    {
+        auditLog = new AuditLog(file, 64, 0, 0);
+        auditLog.start();
+        
+        int threads = 4;
+        int events = 5000;
+        ExecutorService executor = Executors.newFixedThreadPool(threads);
+        CountDownLatch done = new CountDownLatch(threads);
+        for (int t = 0; t < threads; t++)
+        {
+            String userID = "user" + t;
+            executor.execute(() -> {
+                for (int i = 0; i < events; i++)
+                {
+                    auditLog.record(Outcome.AUTHENTICATED, userID, "/" + i, null);
+                }
+                done.countDown();
+            });
+        }
+        assertTrue(done.await(30, TimeUnit.SECONDS));
+        executor.shutdown();
+        auditLog.close();
+        
+        // every event is either written whole or counted as dropped
+        List<String> lines = readLines(file);
+        assertEquals(threads * events, auditLog.getWrittenCount() + auditLog.getDroppedCount());
+        assertEquals(auditLog.getWrittenCount(), lines.size());
+        for (String line: lines)
+        {
+            assertTrue(line, line.matches("\\{.*\"user\":\"user[0-3]\",\"path\":\"/[0-9]+\",\"reason\":null\\}"));
+        }
+    }
+    
+    @Test
+    public void testRoll() throws Exception
+    {
+        auditLog = new AuditLog(file, 16, 200, 2);
+        auditLog.start();
+        
+        for (int i = 0; i < 5; i++)
+        {
+            auditLog.record(Outcome.AUTHENTICATED, "user" + i, "/path", null);
+            
+            // wait for each event to be written, so each is a batch of its own
+            long deadline = System.currentTimeMillis() + 5000;
+            while (auditLog.getWrittenCount() <= i && System.currentTimeMillis() < deadline)
+            {
+                Thread.sleep(1);
+            }
+        }
+        auditLog.close();
+        
+        // each line is over 100 bytes, so a file holds only one, and the oldest are gone
+        assertEquals(1, readLines(file).size());
+        assertTrue(readLines(file).get(0).contains("user4"));
+        assertTrue(readLines(directory.resolve("audit.log.1")).get(0).contains("user3"));
+        assertTrue(readLines(directory.resolve("audit.log.2")).get(0).contains("user2"));
+        assertFalse(Files.exists(directory.resolve("audit.log.3")));
+    }
+    
+    @Test
+    public void testRoll_failed() throws Exception
+    {
+        // a non-empty directory in the way of the rolled file
+        Path blocked = Files.createDirectory(directory.resolve("audit.log.1"));
+        Path blocker = Files.createFile(blocked.resolve("blocker"));
+        try
+        {
+            auditLog = new AuditLog(file, 16, 200, 1);
+            auditLog.start();
+            
+            for (int i = 0; i < 3; i++)
+            {
+                auditLog.record(Outcome.AUTHENTICATED, "user" + i, "/path", null);
+                
+                long deadline = System.currentTimeMillis() + 5000;
+                while (auditLog.getWrittenCount() <= i && System.currentTimeMillis() < deadline)
+                {
+                    Thread.sleep(1);
+                }
+            }
+            auditLog.close();
+            
+            // the file can't be rolled, so writing carries on where it was
+            assertEquals(3, auditLog.getWrittenCount());
+            assertEquals(0, auditLog.getDroppedCount());
+            List<String> lines = readLines(file);
+            assertEquals(3, lines.size());
+            assertTrue(lines.get(2).contains("user2"));
+        }
+        finally
+        {
+            Files.delete(blocker);
+        }
+    }
+    
+}
@@ -5,22 +5,33 @@ import static org.mockito.Mockito.*;
 
 import java.io.IOException;
 import java.io.UnsupportedEncodingException;
+import java.lang.management.ManagementFactory;
 import java.net.MalformedURLException;
 import java.net.URISyntaxException;
 import java.net.URL;
+import java.net.URLEncoder;
+import java.nio.charset.StandardCharsets;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.Paths;
+import java.nio.file.attribute.FileTime;
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.stream.Stream;
 
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import javax.management.ReflectionException;
 import javax.servlet.FilterChain;
 import javax.servlet.FilterConfig;
 import javax.servlet.ServletException;
+import javax.servlet.ServletOutputStream;
+import javax.servlet.ServletRequest;
 import javax.servlet.http.Cookie;
 import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
 
+import org.apache.commons.codec.binary.Base64;
 import org.junit.After;
 import org.junit.Before;
 import org.junit.BeforeClass;
@@ -31,6 +42,8 @@ import org.mockito.Captor;
 import org.mockito.Mock;
 import org.mockito.runners.MockitoJUnitRunner;
 
+import uk.ac.ceda.authentication.cookie.UserDetailsCookie;
+
 @RunWith(MockitoJUnitRunner.class)
 public class AuthenticateRedirectFilterTests
 {
@@ -145,6 +158,9 @@ public class AuthenticateRedirectFilterTests
         
         String result = stringCaptor.getValue();
         assertEquals(result, expectedPrefix + "http%3A%2F%2Flocalhost%3A8080%2F");
+        
+        // redirected requests must not reach the application
+        verify(mockFilterChain, never()).doFilter(mockRequest, mockResponse);
     }
     
     @Test
@@ -177,8 +193,73 @@ public class AuthenticateRedirectFilterTests
         // capture the request attribute, if assigned
         verify(mockRequest).setAttribute(eq(REQUEST_ATTRIBUTE), stringCaptor.capture());
         assertEquals(userID, stringCaptor.getValue());
+        
+        verify(mockFilterChain).doFilter(mockRequest, mockResponse);
     }
 
+    @Test
+    public void testDoFilter_cookieHeaderScan() throws IOException, ServletException
+    {
+        when(mockFilterConfig.getInitParameter(SECRET_KEY_PARAM)).thenReturn(secretKey);
+        when(mockFilterConfig.getInitParameter(COOKIE_NAME_PARAM)).thenReturn(COOKIE_NAME);
+        when(mockFilterConfig.getInitParameter("cookieHeaderScan")).thenReturn("true");
+        
+        filter = new AuthenticateRedirectFilter();
+        filter.init(mockFilterConfig);
+        
+        String header = String.format("_ga=GA1.2.3; %s=%s; theme=dark", COOKIE_NAME, cookieValue);
+        when(mockRequest.getHeaders("Cookie")).thenReturn(
+                Collections.enumeration(Collections.singletonList(header)));
+        
+        filter.doFilter(mockRequest, mockResponse, mockFilterChain);
+        
+        verify(mockRequest, never()).getCookies();
+        verify(mockRequest).setAttribute(REQUEST_ATTRIBUTE, userID);
+        verify(mockFilterChain).doFilter(mockRequest, mockResponse);
+    }
+    
+    @Test
+    public void testDoFilter_cachedCookie() throws IOException, ServletException
+    {
+        when(mockFilterConfig.getInitParameter(SECRET_KEY_PARAM)).thenReturn(secretKey);
+        when(mockFilterConfig.getInitParameter(COOKIE_NAME_PARAM)).thenReturn(COOKIE_NAME);
+        
+        filter = new AuthenticateRedirectFilter();
+        filter.init(mockFilterConfig);
+        
+        Cookie[] cookies = new Cookie[1];
+        cookies[0] = new Cookie(COOKIE_NAME, cookieValue);
+        when(mockRequest.getCookies()).thenReturn(cookies);
+        
+        filter.doFilter(mockRequest, mockResponse, mockFilterChain);
+        filter.doFilter(mockRequest, mockResponse, mockFilterChain);
+        
+        verify(mockRequest, times(2)).setAttribute(REQUEST_ATTRIBUTE, userID);
+        
+        assertEquals(1, filter.getSessionCache().getMissCount());
+        assertEquals(1, filter.getSessionCache().getHitCount());
+    }
+    
+    @Test
+    public void testDoFilter_cacheDisabled() throws IOException, ServletException
+    {
+        when(mockFilterConfig.getInitParameter(SECRET_KEY_PARAM)).thenReturn(secretKey);
+        when(mockFilterConfig.getInitParameter(COOKIE_NAME_PARAM)).thenReturn(COOKIE_NAME);
+        when(mockFilterConfig.getInitParameter("cacheSize")).thenReturn("0");
+        
+        filter = new AuthenticateRedirectFilter();
+        filter.init(mockFilterConfig);
+        
+        Cookie[] cookies = new Cookie[1];
+        cookies[0] = new Cookie(COOKIE_NAME, cookieValue);
+        when(mockRequest.getCookies()).thenReturn(cookies);
+        
+        filter.doFilter(mockRequest, mockResponse, mockFilterChain);
+        
+        assertNull(filter.getSessionCache());
+        verify(mockRequest).setAttribute(REQUEST_ATTRIBUTE, userID);
+    }
+    
     @Test
     public void testDoFilter_badCookie() throws URISyntaxException, IOException, ServletException
     {
@@ -207,6 +288,574 @@ public class AuthenticateRedirectFilterTests
         
         int result = intCaptor.getValue();
         assertEquals(HttpServletResponse.SC_UNAUTHORIZED, result);
+        
+        verify(mockFilterChain, never()).doFilter(mockRequest, mockResponse);
+    }
+    
+    @Test
+    public void testDoFilter_badCookieDirectRejection() throws IOException, ServletException
+    {
+        when(mockFilterConfig.getInitParameter(SECRET_KEY_PARAM)).thenReturn(secretKey);
+        when(mockFilterConfig.getInitParameter(COOKIE_NAME_PARAM)).thenReturn(COOKIE_NAME);
+        when(mockFilterConfig.getInitParameter("rejectionMode")).thenReturn("direct");
+        
+        filter = new AuthenticateRedirectFilter();
+        filter.init(mockFilterConfig);
+        
+        Cookie[] cookies = new Cookie[1];
+        cookies[0] = new Cookie(COOKIE_NAME, "bad-cookie-value");
+        when(mockRequest.getCookies()).thenReturn(cookies);
+        
+        ServletOutputStream outputStream = mock(ServletOutputStream.class);
+        when(mockResponse.getOutputStream()).thenReturn(outputStream);
+        
+        filter.doFilter(mockRequest, mockResponse, mockFilterChain);
+        
+        verify(mockResponse).setStatus(HttpServletResponse.SC_UNAUTHORIZED);
+        verify(mockResponse, never()).sendError(anyInt(), anyString());
+        verify(outputStream).write(any(byte[].class));
+        verify(mockFilterChain, never()).doFilter(mockRequest, mockResponse);
+    }
+    
+    @Test
+    public void testDoFilter_repeatedBadCookie() throws IOException, ServletException
+    {
+        when(mockFilterConfig.getInitParameter(SECRET_KEY_PARAM)).thenReturn(secretKey);
+        when(mockFilterConfig.getInitParameter(COOKIE_NAME_PARAM)).thenReturn(COOKIE_NAME);
+        
+        filter = new AuthenticateRedirectFilter();
+        filter.init(mockFilterConfig);
+        
+        // well formed, but with a signature that doesn't match
+        char first = cookieValue.charAt(0);
+        String tampered = (first == '0' ? '1' : '0') + cookieValue.substring(1);
+        
+        Cookie[] cookies = new Cookie[1];
+        cookies[0] = new Cookie(COOKIE_NAME, tampered);
+        when(mockRequest.getCookies()).thenReturn(cookies);
+        
+        assertFalse(filter.getRejectedCookies().contains(tampered));
+        
+        filter.doFilter(mockRequest, mockResponse, mockFilterChain);
+        filter.doFilter(mockRequest, mockResponse, mockFilterChain);
+        
+        assertTrue(filter.getRejectedCookies().contains(tampered));
+        verify(mockResponse, times(2)).sendError(eq(HttpServletResponse.SC_UNAUTHORIZED), anyString());
+        verify(mockFilterChain, never()).doFilter(mockRequest, mockResponse);
+        
+        // a new key clears the record of rejections
+        filter.setSecretKey(secretKey);
+        assertFalse(filter.getRejectedCookies().contains(tampered));
+    }
+    
+    @Test
+    public void testDoFilter_rejectCacheDisabled() throws IOException, ServletException
+    {
+        when(mockFilterConfig.getInitParameter(SECRET_KEY_PARAM)).thenReturn(secretKey);
+        when(mockFilterConfig.getInitParameter(COOKIE_NAME_PARAM)).thenReturn(COOKIE_NAME);
+        when(mockFilterConfig.getInitParameter("rejectCacheSize")).thenReturn("0");
+        
+        filter = new AuthenticateRedirectFilter();
+        filter.init(mockFilterConfig);
+        
+        Cookie[] cookies = new Cookie[1];
+        cookies[0] = new Cookie(COOKIE_NAME, "bad-cookie-value");
+        when(mockRequest.getCookies()).thenReturn(cookies);
+        
+        filter.doFilter(mockRequest, mockResponse, mockFilterChain);
+        
+        assertNull(filter.getRejectedCookies());
+        verify(mockResponse).sendError(eq(HttpServletResponse.SC_UNAUTHORIZED), anyString());
+    }
+    
+    @Test
+    public void testDoFilter_keyFile() throws Exception
+    {
+        Path keyFile = Files.createTempFile("keyring", ".properties");
+        try
+        {
+            String otherKey = Base64.encodeBase64String(new byte[32]);
+            Files.write(keyFile, String.format("key.a=%s\nkey.b=%s\ndefault=b\n", secretKey, otherKey)
+                    .getBytes(StandardCharsets.UTF_8));
+            
+            when(mockFilterConfig.getInitParameter("keyFile")).thenReturn(keyFile.toString());
+            when(mockFilterConfig.getInitParameter("keyFileReloadInterval")).thenReturn("1");
+            when(mockFilterConfig.getInitParameter(COOKIE_NAME_PARAM)).thenReturn(COOKIE_NAME);
+            
+            filter = new AuthenticateRedirectFilter();
+            filter.init(mockFilterConfig);
+            
+            Cookie[] cookies = new Cookie[1];
+            cookies[0] = new Cookie(COOKIE_NAME, "a:" + cookieValue);
+            when(mockRequest.getCookies()).thenReturn(cookies);
+            
+            filter.doFilter(mockRequest, mockResponse, mockFilterChain);
+            verify(mockRequest).setAttribute(REQUEST_ATTRIBUTE, userID);
+            
+            // without a key identifier the default key is used, which doesn't match
+            cookies[0] = new Cookie(COOKIE_NAME, cookieValue);
+            filter.doFilter(mockRequest, mockResponse, mockFilterChain);
+            verify(mockResponse).sendError(eq(HttpServletResponse.SC_UNAUTHORIZED), anyString());
+            
+            // make the matching key the default and wait for the reload
+            Files.write(keyFile, String.format("key.a=%s\nkey.b=%s\ndefault=a\n", secretKey, otherKey)
+                    .getBytes(StandardCharsets.UTF_8));
+            Files.setLastModifiedTime(keyFile, FileTime.fromMillis(System.currentTimeMillis() + 60000));
+            
+            long deadline = System.currentTimeMillis() + 5000;
+            while (filter.getRejectedCookies().contains(cookieValue) && System.currentTimeMillis() < deadline)
+            {
+                Thread.sleep(50);
+            }
+            
+            filter.doFilter(mockRequest, mockResponse, mockFilterChain);
+            verify(mockRequest, times(2)).setAttribute(REQUEST_ATTRIBUTE, userID);
+        }
+        finally
+        {
+            Files.deleteIfExists(keyFile);
+        }
+    }
+    
+    @Test
+    public void testDoFilter_sessionCheck() throws Exception
+    {
+        SessionValidatorTests.StubSessionService service = new SessionValidatorTests.StubSessionService(COOKIE_NAME);
+        try
+        {
+            when(mockFilterConfig.getInitParameter(SECRET_KEY_PARAM)).thenReturn(secretKey);
+            when(mockFilterConfig.getInitParameter(COOKIE_NAME_PARAM)).thenReturn(COOKIE_NAME);
+            when(mockFilterConfig.getInitParameter("sessionCheckUrl")).thenReturn(service.getUrl().toString());
+            when(mockFilterConfig.getInitParameter("sessionCheckTtl")).thenReturn("1");
+            when(mockFilterConfig.getInitParameter("sessionCheckFailOpen")).thenReturn("false");
+            
+            filter.destroy();
+            filter = new AuthenticateRedirectFilter();
+            filter.init(mockFilterConfig);
+            
+            Cookie[] cookies = new Cookie[1];
+            cookies[0] = new Cookie(COOKIE_NAME, cookieValue);
+            when(mockRequest.getCookies()).thenReturn(cookies);
+            
+            // a session's first request waits for its answer, so a live
+            // session is let through even with fail-closed
+            service.setStatus(cookieValue, 200);
+            filter.doFilter(mockRequest, mockResponse, mockFilterChain);
+            verify(mockRequest).setAttribute(REQUEST_ATTRIBUTE, userID);
+            verify(mockFilterChain).doFilter(mockRequest, mockResponse);
+            assertEquals(0, filter.getMetrics().getRejectReasonCount(RejectReason.SESSION_UNCHECKED));
+            
+            // the cookie still decrypts, but the service has since ended its
+            // session; the stale answer is used until the refresh arrives
+            Thread.sleep(1100);
+            service.setStatus(cookieValue, 410);
+            service.hold();
+            filter.doFilter(mockRequest, mockResponse, mockFilterChain);
+            verify(mockFilterChain, times(2)).doFilter(mockRequest, mockResponse);
+            service.release();
+            
+            long deadline = System.currentTimeMillis() + 5000;
+            while (filter.getMetrics().getRejectReasonCount(RejectReason.SESSION_ENDED) == 0 &&
+                    System.currentTimeMillis() < deadline)
+            {
+                Thread.sleep(10);
+                filter.doFilter(mockRequest, mockResponse, mockFilterChain);
+            }
+            
+            assertEquals(2, service.getRequestCount());
+            assertEquals(1, filter.getMetrics().getRejectReasonCount(RejectReason.SESSION_ENDED));
+            assertEquals(0, filter.getMetrics().getRejectReasonCount(RejectReason.SESSION_UNCHECKED));
+        }
+        finally
+        {
+            service.stop();
+        }
+    }
+    
+    @Test
+    public void testDoFilter_sessionCheckUnavailable() throws Exception
+    {
+        SessionValidatorTests.StubSessionService service = new SessionValidatorTests.StubSessionService(COOKIE_NAME);
+        String checkUrl = service.getUrl().toString();
+        service.stop();
+        
+        when(mockFilterConfig.getInitParameter(SECRET_KEY_PARAM)).thenReturn(secretKey);
+        when(mockFilterConfig.getInitParameter(COOKIE_NAME_PARAM)).thenReturn(COOKIE_NAME);
+        when(mockFilterConfig.getInitParameter("sessionCheckUrl")).thenReturn(checkUrl);
+        
+        Cookie[] cookies = new Cookie[1];
+        cookies[0] = new Cookie(COOKIE_NAME, cookieValue);
+        when(mockRequest.getCookies()).thenReturn(cookies);
+        
+        // by default a session that can't be checked is let through
+        filter.destroy();
+        filter = new AuthenticateRedirectFilter();
+        filter.init(mockFilterConfig);
+        filter.doFilter(mockRequest, mockResponse, mockFilterChain);
+        verify(mockFilterChain).doFilter(mockRequest, mockResponse);
+        
+        when(mockFilterConfig.getInitParameter("sessionCheckFailOpen")).thenReturn("false");
+        filter.destroy();
+        filter = new AuthenticateRedirectFilter();
+        filter.init(mockFilterConfig);
+        filter.doFilter(mockRequest, mockResponse, mockFilterChain);
+        verify(mockFilterChain, times(1)).doFilter(mockRequest, mockResponse);
+        verify(mockResponse).sendError(eq(HttpServletResponse.SC_UNAUTHORIZED), anyString());
+        assertEquals(1, filter.getMetrics().getRejectReasonCount(RejectReason.SESSION_UNCHECKED));
+    }
+    
+    @Test
+    public void testDoFilter_revocationFile() throws Exception
+    {
+        Path revocationFile = Files.createTempFile("revoked", ".txt");
+        try
+        {
+            // the sample user was revoked once, before their cookie was issued
+            Files.write(revocationFile, String.format("someone-else 1000000000\n%s 1000000000\n", userID)
+                    .getBytes(StandardCharsets.UTF_8));
+            
+            when(mockFilterConfig.getInitParameter(SECRET_KEY_PARAM)).thenReturn(secretKey);
+            when(mockFilterConfig.getInitParameter(COOKIE_NAME_PARAM)).thenReturn(COOKIE_NAME);
+            when(mockFilterConfig.getInitParameter("revocationFile")).thenReturn(revocationFile.toString());
+            when(mockFilterConfig.getInitParameter("revocationReloadInterval")).thenReturn("1");
+            
+            filter = new AuthenticateRedirectFilter();
+            filter.init(mockFilterConfig);
+            
+            Cookie[] cookies = new Cookie[1];
+            cookies[0] = new Cookie(COOKIE_NAME, cookieValue);
+            when(mockRequest.getCookies()).thenReturn(cookies);
+            
+            filter.doFilter(mockRequest, mockResponse, mockFilterChain);
+            verify(mockFilterChain, times(1)).doFilter(mockRequest, mockResponse);
+            
+            // revoke the sample user and wait for the reload
+            Files.write(revocationFile, String.format("someone-else 1000000000\n%s %d\n", userID,
+                    System.currentTimeMillis() / 1000).getBytes(StandardCharsets.UTF_8));
+            Files.setLastModifiedTime(revocationFile, FileTime.fromMillis(System.currentTimeMillis() + 60000));
+            
+            long deadline = System.currentTimeMillis() + 10000;
+            while (filter.getMetrics().getRejectReasonCount(RejectReason.REVOKED) == 0 &&
+                    System.currentTimeMillis() < deadline)
+            {
+                Thread.sleep(100);
+                filter.doFilter(mockRequest, mockResponse, mockFilterChain);
+            }
+            
+            // the cached session is turned away too
+            assertEquals(1, filter.getMetrics().getRejectReasonCount(RejectReason.REVOKED));
+            verify(mockResponse).sendError(eq(HttpServletResponse.SC_UNAUTHORIZED), anyString());
+        }
+        finally
+        {
+            Files.deleteIfExists(revocationFile);
+        }
+    }
+    
+    @Test
+    public void testDoFilter_accessRules() throws Exception
+    {
+        when(mockFilterConfig.getInitParameter(SECRET_KEY_PARAM)).thenReturn(secretKey);
+        when(mockFilterConfig.getInitParameter(COOKIE_NAME_PARAM)).thenReturn(COOKIE_NAME);
+        when(mockFilterConfig.getInitParameter("accessRules")).thenReturn(
+                "/badc/* = token2\n/badc/restricted/* = admin\n");
+        
+        filter = new AuthenticateRedirectFilter();
+        filter.init(mockFilterConfig);
+        
+        Cookie[] cookies = new Cookie[1];
+        cookies[0] = new Cookie(COOKIE_NAME, cookieValue);
+        when(mockRequest.getCookies()).thenReturn(cookies);
+        
+        // the sample user holds token2 but not admin
+        when(mockRequest.getServletPath()).thenReturn("/badc/open/file.nc");
+        filter.doFilter(mockRequest, mockResponse, mockFilterChain);
+        verify(mockFilterChain).doFilter(mockRequest, mockResponse);
+        
+        when(mockRequest.getServletPath()).thenReturn("");
+        when(mockRequest.getPathInfo()).thenReturn("/badc/restricted/file.nc");
+        filter.doFilter(mockRequest, mockResponse, mockFilterChain);
+        verify(mockResponse).sendError(eq(HttpServletResponse.SC_FORBIDDEN), anyString());
+        verify(mockFilterChain, times(1)).doFilter(mockRequest, mockResponse);
+        
+        // paths without a rule only need a valid session
+        when(mockRequest.getPathInfo()).thenReturn("/neodc/file.nc");
+        filter.doFilter(mockRequest, mockResponse, mockFilterChain);
+        verify(mockFilterChain, times(2)).doFilter(mockRequest, mockResponse);
+    }
+    
+    @Test
+    public void testDoFilter_forbiddenOutcome() throws Exception
+    {
+        Path auditFile = Files.createTempFile("audit", ".log");
+        when(mockFilterConfig.getInitParameter(SECRET_KEY_PARAM)).thenReturn(secretKey);
+        when(mockFilterConfig.getInitParameter(COOKIE_NAME_PARAM)).thenReturn(COOKIE_NAME);
+        when(mockFilterConfig.getInitParameter("accessRules")).thenReturn("/badc/restricted/* = admin\n");
+        when(mockFilterConfig.getInitParameter("auditLog")).thenReturn(auditFile.toString());
+        
+        try
+        {
+            filter = new AuthenticateRedirectFilter();
+            filter.init(mockFilterConfig);
+            
+            Cookie[] cookies = new Cookie[1];
+            cookies[0] = new Cookie(COOKIE_NAME, cookieValue);
+            when(mockRequest.getCookies()).thenReturn(cookies);
+            when(mockRequest.getServletPath()).thenReturn("/badc/restricted/file.nc");
+            filter.doFilter(mockRequest, mockResponse, mockFilterChain);
+            
+            // a forbidden request is recorded once, and not as authenticated
+            assertEquals(1L, filter.getMetrics().getAttribute("ForbiddenCount"));
+            assertEquals(0L, filter.getMetrics().getAttribute("AuthenticatedCount"));
+            verify(mockRequest, never()).setAttribute(eq(REQUEST_ATTRIBUTE), any());
+            
+            filter.destroy();
+            
+            String[] lines = new String(Files.readAllBytes(auditFile), StandardCharsets.UTF_8).split("\n");
+            assertEquals(1, lines.length);
+            assertTrue(lines[0].contains(String.format("\"outcome\":\"forbidden\",\"user\":\"%s\"", userID)));
+        }
+        finally
+        {
+            Files.deleteIfExists(auditFile);
+        }
+    }
+    
+    @Test
+    public void testDoFilter_bypass() throws Exception
+    {
+        when(mockFilterConfig.getInitParameter(SECRET_KEY_PARAM)).thenReturn(secretKey);
+        when(mockFilterConfig.getInitParameter(COOKIE_NAME_PARAM)).thenReturn(COOKIE_NAME);
+        when(mockFilterConfig.getInitParameter("bypassMethods")).thenReturn("OPTIONS");
+        when(mockFilterConfig.getInitParameter("bypassPaths")).thenReturn("/static/*");
+        when(mockFilterConfig.getInitParameter("bypassExtensions")).thenReturn("css");
+        
+        filter = new AuthenticateRedirectFilter();
+        filter.init(mockFilterConfig);
+        
+        when(mockRequest.getMethod()).thenReturn("GET");
+        when(mockRequest.getServletPath()).thenReturn("/static/logo.png");
+        filter.doFilter(mockRequest, mockResponse, mockFilterChain);
+        
+        when(mockRequest.getServletPath()).thenReturn("/themes/main.css");
+        filter.doFilter(mockRequest, mockResponse, mockFilterChain);
+        
+        when(mockRequest.getMethod()).thenReturn("OPTIONS");
+        when(mockRequest.getServletPath()).thenReturn("/data/file.nc");
+        filter.doFilter(mockRequest, mockResponse, mockFilterChain);
+        
+        // bypassed requests need no cookie and are not redirected
+        verify(mockFilterChain, times(3)).doFilter(mockRequest, mockResponse);
+        verify(mockRequest, never()).getCookies();
+        verify(mockResponse, never()).sendRedirect(anyString());
+        
+        when(mockRequest.getMethod()).thenReturn("GET");
+        when(mockRequest.getRequestURL()).thenReturn(new StringBuffer("http://localhost:8080/data/file.nc"));
+        filter.doFilter(mockRequest, mockResponse, mockFilterChain);
+        verify(mockResponse).sendRedirect(anyString());
+    }
+    
+    @Test
+    public void testDoFilter_wrapRequest() throws Exception
+    {
+        when(mockFilterConfig.getInitParameter(SECRET_KEY_PARAM)).thenReturn(secretKey);
+        when(mockFilterConfig.getInitParameter(COOKIE_NAME_PARAM)).thenReturn(COOKIE_NAME);
+        when(mockFilterConfig.getInitParameter("sessionAttribute")).thenReturn("session");
+        when(mockFilterConfig.getInitParameter("wrapRequest")).thenReturn("true");
+        
+        filter = new AuthenticateRedirectFilter();
+        filter.init(mockFilterConfig);
+        
+        Cookie[] cookies = new Cookie[1];
+        cookies[0] = new Cookie(COOKIE_NAME, cookieValue);
+        when(mockRequest.getCookies()).thenReturn(cookies);
+        
+        filter.doFilter(mockRequest, mockResponse, mockFilterChain);
+        
+        ArgumentCaptor<UserDetailsCookie> sessionCaptor = ArgumentCaptor.forClass(UserDetailsCookie.class);
+        verify(mockRequest).setAttribute(eq(REQUEST_ATTRIBUTE), eq(userID));
+        verify(mockRequest).setAttribute(eq("session"), sessionCaptor.capture());
+        assertEquals(userID, sessionCaptor.getValue().getUserID());
+        
+        ArgumentCaptor<ServletRequest> requestCaptor = ArgumentCaptor.forClass(ServletRequest.class);
+        verify(mockFilterChain).doFilter(requestCaptor.capture(), eq(mockResponse));
+        HttpServletRequest wrapped = (HttpServletRequest) requestCaptor.getValue();
+        assertNotSame(mockRequest, wrapped);
+        assertEquals(userID, wrapped.getRemoteUser());
+        
+        // the principal carries the session already parsed by the filter
+        UserDetailsPrincipal principal = (UserDetailsPrincipal) wrapped.getUserPrincipal();
+        assertEquals(userID, principal.getName());
+        assertSame(sessionCaptor.getValue(), principal.getSessionCookie());
+        assertSame(principal, wrapped.getUserPrincipal());
+        assertArrayEquals(new String[] {"token1", "token2"}, principal.getTokens());
+        verify(mockRequest, never()).getUserPrincipal();
+    }
+    
+    @Test
+    public void testDoFilter_auditLog() throws Exception
+    {
+        Path auditFile = Files.createTempFile("audit", ".log");
+        when(mockFilterConfig.getInitParameter(SECRET_KEY_PARAM)).thenReturn(secretKey);
+        when(mockFilterConfig.getInitParameter(COOKIE_NAME_PARAM)).thenReturn(COOKIE_NAME);
+        when(mockFilterConfig.getInitParameter("auditLog")).thenReturn(auditFile.toString());
+        when(mockFilterConfig.getInitParameter("jmxMetrics")).thenReturn("false");
+        
+        try
+        {
+            filter = new AuthenticateRedirectFilter();
+            filter.init(mockFilterConfig);
+            
+            when(mockRequest.getServletPath()).thenReturn("/badc/file.nc");
+            when(mockRequest.getRequestURL()).thenReturn(new StringBuffer("http://localhost:8080/badc/file.nc"));
+            filter.doFilter(mockRequest, mockResponse, mockFilterChain);
+            
+            Cookie[] cookies = new Cookie[1];
+            cookies[0] = new Cookie(COOKIE_NAME, cookieValue);
+            when(mockRequest.getCookies()).thenReturn(cookies);
+            filter.doFilter(mockRequest, mockResponse, mockFilterChain);
+            
+            cookies[0] = new Cookie(COOKIE_NAME, "bad-cookie-value");
+            filter.doFilter(mockRequest, mockResponse, mockFilterChain);
+            
+            // destroying the filter writes out anything still buffered
+            filter.destroy();
+            
+            String[] lines = new String(Files.readAllBytes(auditFile), StandardCharsets.UTF_8).split("\n");
+            assertEquals(3, lines.length);
+            assertTrue(lines[0].contains("\"outcome\":\"redirected\",\"user\":null,\"path\":\"/badc/file.nc\""));
+            assertTrue(lines[1].contains(String.format("\"outcome\":\"authenticated\",\"user\":\"%s\"", userID)));
+            assertTrue(lines[2].contains("\"outcome\":\"rejected\""));
+            assertTrue(lines[2].endsWith("\"reason\":\"MALFORMED\"}"));
+            
+            // cookie values are never recorded
+            for (String line: lines)
+            {
+                assertFalse(line.contains(cookieValue));
+                assertFalse(line.contains("bad-cookie-value"));
+            }
+        }
+        finally
+        {
+            Files.deleteIfExists(auditFile);
+        }
+    }
+    
+    @Test
+    public void testInit_warmUp() throws Exception
+    {
+        when(mockFilterConfig.getInitParameter(SECRET_KEY_PARAM)).thenReturn(secretKey);
+        when(mockFilterConfig.getInitParameter(COOKIE_NAME_PARAM)).thenReturn(COOKIE_NAME);
+        when(mockFilterConfig.getInitParameter("warmUp")).thenReturn("true");
+        when(mockFilterConfig.getInitParameter("warmUpCookie")).thenReturn(cookieValue);
+        when(mockFilterConfig.getInitParameter("warmUpIterations")).thenReturn("100");
+        
+        filter.destroy();
+        filter = new AuthenticateRedirectFilter();
+        filter.init(mockFilterConfig);
+        
+        // warm-up leaves no trace in the caches or metrics
+        assertEquals(0, filter.getSessionCache().size());
+        assertEquals(0L, filter.getMetrics().getAttribute("SignatureCount"));
+        assertEquals(0L, filter.getMetrics().getAttribute("DecryptCount"));
+        
+        Cookie[] cookies = new Cookie[1];
+        cookies[0] = new Cookie(COOKIE_NAME, cookieValue);
+        when(mockRequest.getCookies()).thenReturn(cookies);
+        filter.doFilter(mockRequest, mockResponse, mockFilterChain);
+        verify(mockRequest).setAttribute(REQUEST_ATTRIBUTE, userID);
+        assertEquals(1L, filter.getMetrics().getAttribute("SignatureCount"));
+    }
+    
+    @Test
+    public void testInit_warmUpWrongKey() throws Exception
+    {
+        when(mockFilterConfig.getInitParameter(SECRET_KEY_PARAM)).thenReturn(
+                Base64.encodeBase64String(new byte[32]));
+        when(mockFilterConfig.getInitParameter(COOKIE_NAME_PARAM)).thenReturn(COOKIE_NAME);
+        when(mockFilterConfig.getInitParameter("warmUp")).thenReturn("true");
+        when(mockFilterConfig.getInitParameter("warmUpCookie")).thenReturn(cookieValue);
+        
+        filter.destroy();
+        filter = new AuthenticateRedirectFilter();
+        try
+        {
+            filter.init(mockFilterConfig);
+            fail("Expected the self-test to fail");
+        }
+        catch (ServletException e)
+        {
+            assertTrue(e.getMessage().contains("warm-up cookie could not be decoded"));
+        }
+    }
+    
+    @Test
+    public void testDoFilter_metrics() throws Exception
+    {
+        when(mockFilterConfig.getInitParameter(SECRET_KEY_PARAM)).thenReturn(secretKey);
+        when(mockFilterConfig.getInitParameter(COOKIE_NAME_PARAM)).thenReturn(COOKIE_NAME);
+        when(mockFilterConfig.getFilterName()).thenReturn("metrics-test");
+        when(mockFilterConfig.getInitParameter("jmxMetrics")).thenReturn("true");
+        
+        filter.destroy();
+        filter = new AuthenticateRedirectFilter();
+        filter.init(mockFilterConfig);
+        
+        StringBuffer requestUrl = new StringBuffer("http://localhost:8080/");
+        when(mockRequest.getRequestURL()).thenReturn(requestUrl);
+        
+        // redirected, authenticated twice and rejected
+        filter.doFilter(mockRequest, mockResponse, mockFilterChain);
+        
+        Cookie[] cookies = new Cookie[1];
+        cookies[0] = new Cookie(COOKIE_NAME, cookieValue);
+        when(mockRequest.getCookies()).thenReturn(cookies);
+        filter.doFilter(mockRequest, mockResponse, mockFilterChain);
+        filter.doFilter(mockRequest, mockResponse, mockFilterChain);
+        
+        cookies[0] = new Cookie(COOKIE_NAME, "bad-cookie-value");
+        filter.doFilter(mockRequest, mockResponse, mockFilterChain);
+        
+        ObjectName name = filter.getMetrics().getObjectName();
+        assertNotNull(name);
+        
+        MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+        assertEquals(1L, server.getAttribute(name, "RedirectedCount"));
+        assertEquals(2L, server.getAttribute(name, "AuthenticatedCount"));
+        assertEquals(1L, server.getAttribute(name, "RejectedCount"));
+        assertEquals(1L, server.getAttribute(name, "RejectedMalformedCount"));
+        assertEquals(0L, server.getAttribute(name, "SkippedCount"));
+        assertEquals(1L, server.getAttribute(name, "DecodeCount"));
+        assertEquals(1L, server.getAttribute(name, "SignatureCount"));
+        assertEquals(1L, server.getAttribute(name, "DecryptCount"));
+        assertEquals(1 / 3.0, (Double) server.getAttribute(name, "CacheHitRatio"), 0.001);
+        
+        // there are no operations to invoke
+        try
+        {
+            server.invoke(name, "reset", new Object[0], new String[0]);
+            fail("Expected a ReflectionException");
+        }
+        catch (ReflectionException e)
+        {
+            assertTrue(e.getCause() instanceof NoSuchMethodException);
+        }
+        
+        filter.destroy();
+        assertFalse(server.isRegistered(name));
+    }
+    
+    @Test
+    public void testInit_jmxMetricsOffByDefault() throws Exception
+    {
+        when(mockFilterConfig.getInitParameter(SECRET_KEY_PARAM)).thenReturn(secretKey);
+        when(mockFilterConfig.getInitParameter(COOKIE_NAME_PARAM)).thenReturn(COOKIE_NAME);
+        
+        filter.destroy();
+        filter = new AuthenticateRedirectFilter();
+        filter.init(mockFilterConfig);
+        
+        assertNull(filter.getMetrics().getObjectName());
     }
     
     @Test
@@ -259,5 +908,36 @@ public class AuthenticateRedirectFilterTests
         
         assertEquals(redirectUrl, expectedUrl);
     }
+    
+    @Test
+    public void testGetRedirectUrl_matchesUrlEncoder() throws MalformedURLException,
+            UnsupportedEncodingException
+    {
+        String[] urls = {
+                "http://localhost:8080/a b/c+d/~e/!'()*._-",
+                "http://localhost:8080/?q=caf\u00e9&x=\u20ac&y=\u00a0",
+                "http://localhost:8080/\ud83d\ude00/\ud83d/\ude00",
+                "http://localhost:8080/%2F?\"<>#{}|\\^[]`",
+        };
+        
+        for (String url: urls)
+        {
+            assertEquals(expectedPrefix + URLEncoder.encode(url, "UTF-8"), filter.getRedirectUrl(url));
+        }
+    }
+    
+    @Test
+    public void testGetRedirectUrl_emptyAuthQuery() throws ServletException, MalformedURLException,
+            UnsupportedEncodingException
+    {
+        when(mockFilterConfig.getInitParameter(AUTHENTICATE_URL_PARAM)).thenReturn(
+                AUTHENTICATE_URL + "?");
+        
+        filter = new AuthenticateRedirectFilter();
+        filter.init(mockFilterConfig);
+        
+        assertEquals(AUTHENTICATE_URL + "?r=http%3A%2F%2Flocalhost%3A8080%2F",
+                filter.getRedirectUrl("http://localhost:8080/"));
+    }
 
 }
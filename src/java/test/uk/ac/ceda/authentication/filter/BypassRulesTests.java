@@ -0,0 +1,47 @@
+package uk.ac.ceda.authentication.filter;
+
+import static org.junit.Assert.*;
+
+import org.junit.Test;
+
+public class BypassRulesTests
+{
+
+    @Test
+    public void testMatches()
+    {
+        BypassRules rules = BypassRules.compile("OPTIONS", "/static/*, /favicon.ico", "css .js\nPNG");
+        
+        assertTrue(rules.matches("OPTIONS", "/badc/restricted/file.nc"));
+        assertTrue(rules.matches("GET", "/static/images/logo.svg"));
+        assertTrue(rules.matches("GET", "/favicon.ico"));
+        assertTrue(rules.matches("GET", "/themes/main.css"));
+        assertTrue(rules.matches("GET", "/themes/main.js"));
+        assertTrue(rules.matches("GET", "/images/LOGO.png"));
+        
+        assertFalse(rules.matches("GET", "/badc/restricted/file.nc"));
+        assertFalse(rules.matches("POST", "/staticfiles/upload"));
+        assertFalse(rules.matches("GET", "/favicon.ico/x"));
+        assertFalse(rules.matches("GET", "/themes/main.css/"));
+        assertFalse(rules.matches("GET", "/themes/mainjs"));
+        assertFalse(rules.matches("GET", ".css"));
+    }
+    
+    @Test
+    public void testCompile_empty()
+    {
+        assertNull(BypassRules.compile(null, null, null));
+        assertNull(BypassRules.compile("", " ", ","));
+        
+        BypassRules methodsOnly = BypassRules.compile("options head", null, null);
+        assertTrue(methodsOnly.matches("HEAD", "/data"));
+        assertFalse(methodsOnly.matches("GET", "/data.css"));
+    }
+    
+    @Test(expected = IllegalArgumentException.class)
+    public void testCompile_invalidPath()
+    {
+        BypassRules.compile(null, "static/*", null);
+    }
+    
+}
@@ -0,0 +1,53 @@
+package uk.ac.ceda.authentication.filter;
+
+import static org.junit.Assert.*;
+
+import java.util.Arrays;
+import java.util.Collections;
+
+import org.junit.Test;
+
+public class CookieHeaderParserTests
+{
+
+    private static final String NAME = "ceda.session.1";
+    
+    @Test
+    public void testFindCookie()
+    {
+        assertEquals("abc-def", CookieHeaderParser.findCookie("ceda.session.1=abc-def", NAME));
+        assertEquals("abc-def", CookieHeaderParser.findCookie(
+                "_ga=GA1.2.3; ceda.session.1=abc-def; theme=dark", NAME));
+        assertEquals("abc-def", CookieHeaderParser.findCookie(
+                "_ga=GA1.2.3;ceda.session.1 = abc-def ;theme=dark", NAME));
+    }
+    
+    @Test
+    public void testFindCookie_missing()
+    {
+        assertNull(CookieHeaderParser.findCookie("", NAME));
+        assertNull(CookieHeaderParser.findCookie("_ga=GA1.2.3; theme=dark", NAME));
+        assertNull(CookieHeaderParser.findCookie("ceda.session.10=abc; xceda.session.1=abc", NAME));
+        assertNull(CookieHeaderParser.findCookie("ceda.session.1; theme=ceda.session.1=abc", NAME));
+    }
+    
+    @Test
+    public void testFindCookie_quoted()
+    {
+        assertEquals("abc-def", CookieHeaderParser.findCookie("ceda.session.1=\"abc-def\"", NAME));
+        assertEquals("", CookieHeaderParser.findCookie("ceda.session.1=", NAME));
+    }
+    
+    @Test
+    public void testFindCookie_lastWins()
+    {
+        assertEquals("second", CookieHeaderParser.findCookie(
+                "ceda.session.1=first; a=b; ceda.session.1=second", NAME));
+        
+        assertEquals("second", CookieHeaderParser.findCookie(Collections.enumeration(Arrays.asList(
+                "ceda.session.1=first", "a=b", "ceda.session.1=second; c=d")), NAME));
+        assertEquals("first", CookieHeaderParser.findCookie(Collections.enumeration(Arrays.asList(
+                "ceda.session.1=first", "a=b")), NAME));
+    }
+    
+}
@@ -0,0 +1,159 @@
+package uk.ac.ceda.authentication.filter;
+
+import static org.junit.Assert.*;
+
+import java.io.IOException;
+import java.io.StringReader;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.FileTime;
+
+import org.junit.Test;
+
+public class RevocationListTests
+{
+
+    static final long REVOKED = 1792310400L;
+    
+    @Test
+    public void testParse() throws Exception
+    {
+        RevocationList revocationList = RevocationList.parse(new StringReader(String.format(
+                "# revoked after the incident\n\nalice %1$d\n  bob  %1$d  \ncarol\t%1$d\nalice %1$d\n", REVOKED)));
+        
+        assertEquals(3, revocationList.size());
+        assertEquals(REVOKED, revocationList.getRevokedAt("alice"));
+        assertEquals(REVOKED, revocationList.getRevokedAt("bob"));
+        assertEquals(REVOKED, revocationList.getRevokedAt("carol"));
+        
+        assertEquals(-1, revocationList.getRevokedAt("dave"));
+        assertEquals(-1, revocationList.getRevokedAt("ali"));
+        assertEquals(-1, revocationList.getRevokedAt("alice2"));
+        assertEquals(-1, revocationList.getRevokedAt("# revoked after the incident"));
+        assertEquals(-1, revocationList.getRevokedAt(""));
+    }
+    
+    @Test
+    public void testParse_times() throws Exception
+    {
+        RevocationList revocationList = RevocationList.parse(new StringReader(
+                "alice 1700000000\nbob\t2026-10-18T10:00:00Z\nalice 1600000000\n"));
+        
+        // the latest revocation of a repeated user is kept
+        assertEquals(2, revocationList.size());
+        assertEquals(1700000000L, revocationList.getRevokedAt("alice"));
+        assertEquals(1792317600L, revocationList.getRevokedAt("bob"));
+    }
+    
+    @Test(expected = IOException.class)
+    public void testParse_invalidTime() throws Exception
+    {
+        RevocationList.parse(new StringReader("alice yesterday\n"));
+    }
+    
+    @Test(expected = IOException.class)
+    public void testParse_noTime() throws Exception
+    {
+        RevocationList.parse(new StringReader("alice 1700000000\nbob\n"));
+    }
+    
+    @Test
+    public void testIsRevoked() throws Exception
+    {
+        RevocationList revocationList = RevocationList.parse(new StringReader("alice 1700000000\n"));
+        
+        // sessions issued up to the revocation are rejected, later ones are not
+        assertTrue(revocationList.isRevoked("alice", 1600000000L));
+        assertTrue(revocationList.isRevoked("alice", 1700000000L));
+        assertFalse(revocationList.isRevoked("alice", 1700000001L));
+        assertFalse(revocationList.isRevoked("bob", 1600000000L));
+        
+        // a cookie without a readable time may have been issued at any time
+        assertTrue(revocationList.isRevoked("alice", -1));
+        assertFalse(revocationList.isRevoked("bob", -1));
+    }
+    
+    @Test
+    public void testLoad() throws Exception
+    {
+        Path file = Files.createTempFile("revoked", ".txt");
+        try
+        {
+            Files.write(file, "alice 1600000000\nbob 1700000000\n".getBytes(StandardCharsets.UTF_8));
+            RevocationList revocationList = RevocationList.load(file);
+            assertEquals(1600000000L, revocationList.getRevokedAt("alice"));
+            assertEquals(1700000000L, revocationList.getRevokedAt("bob"));
+            
+            // revoking another user later leaves the earlier revocations as
+            // they were, however recently the file was written
+            Files.write(file, "carol 1800000000\n".getBytes(StandardCharsets.UTF_8), StandardOpenOption.APPEND);
+            Files.setLastModifiedTime(file, FileTime.fromMillis(1900000000000L));
+            revocationList = RevocationList.load(file);
+            assertEquals(1600000000L, revocationList.getRevokedAt("alice"));
+            assertEquals(1700000000L, revocationList.getRevokedAt("bob"));
+            assertEquals(1800000000L, revocationList.getRevokedAt("carol"));
+            assertFalse(revocationList.isRevoked("alice", 1650000000L));
+            
+            // an edit adding an entry without a time is refused rather than
+            // given a time that would revoke users again
+            Files.write(file, "dave\n".getBytes(StandardCharsets.UTF_8), StandardOpenOption.APPEND);
+            try
+            {
+                RevocationList.load(file);
+                fail("Loaded an entry without a time");
+            }
+            catch (IOException e)
+            {
+                assertTrue(e.getMessage(), e.getMessage().contains("line 4"));
+            }
+        }
+        finally
+        {
+            Files.deleteIfExists(file);
+        }
+    }
+    
+    @Test
+    public void testParse_empty() throws Exception
+    {
+        RevocationList revocationList = RevocationList.parse(new StringReader("# nobody\n"));
+        
+        assertEquals(0, revocationList.size());
+        assertEquals(-1, revocationList.getRevokedAt("alice"));
+        assertEquals(-1, revocationList.getRevokedAt(""));
+    }
+    
+    @Test
+    public void testGetRevokedAt_large() throws Exception
+    {
+        StringBuilder ids = new StringBuilder();
+        for (int i = 0; i < 100000; i++)
+        {
+            ids.append("user").append(i * 2).append(' ').append(REVOKED).append('\n');
+        }
+        RevocationList revocationList = RevocationList.parse(new StringReader(ids.toString()));
+        assertEquals(100000, revocationList.size());
+        
+        // no revoked user is missed, and the filter's false positives are
+        // weeded out by the fingerprint search
+        for (int i = 0; i < 200000; i++)
+        {
+            assertEquals(i % 2 == 0 ? REVOKED : -1, revocationList.getRevokedAt("user" + i));
+        }
+    }
+    
+    @Test
+    public void testGetRevokedAt_unicode() throws Exception
+    {
+        RevocationList revocationList = RevocationList.parse(
+                new StringReader("\u00e9mile 1\nz\u00fcrich 1\n\u4f60\u597d 1\n"));
+        
+        assertEquals(1, revocationList.getRevokedAt("\u00e9mile"));
+        assertEquals(1, revocationList.getRevokedAt("z\u00fcrich"));
+        assertEquals(1, revocationList.getRevokedAt("\u4f60\u597d"));
+        assertEquals(-1, revocationList.getRevokedAt("emile"));
+    }
+    
+}
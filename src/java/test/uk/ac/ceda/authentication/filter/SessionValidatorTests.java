@@ -0,0 +1,328 @@
+package uk.ac.ceda.authentication.filter;
+
+import static org.junit.Assert.*;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+
+import uk.ac.ceda.authentication.filter.SessionValidator.Status;
+
+public class SessionValidatorTests
+{
+
+    static final String COOKIE_NAME = "session-cookie";
+    
+    private StubSessionService service;
+    private SessionValidator validator;
+    
+    @Before
+    public void setUp() throws Exception
+    {
+        service = new StubSessionService(COOKIE_NAME);
+    }
+    
+    @After
+    public void tearDown() throws Exception
+    {
+        if (validator != null)
+        {
+            validator.shutdown();
+        }
+        service.stop();
+    }
+    
+    private SessionValidator newValidator(int maxInFlight, long ttl)
+    {
+        return new SessionValidator(service.getUrl(), COOKIE_NAME, 100, ttl, 60000, maxInFlight, 2000,
+                TimeUnit.MILLISECONDS);
+    }
+    
+    @Test
+    public void testCheck() throws Exception
+    {
+        service.setStatus("live", 200);
+        service.setStatus("ended", 410);
+        service.setStatus("unknown-user", 404);
+        validator = newValidator(4, 60000);
+        
+        assertEquals(Status.LIVE, lookUp("live"));
+        assertEquals(Status.ENDED, lookUp("ended"));
+        assertEquals(Status.ENDED, lookUp("unknown-user"));
+        
+        // answers are cached, including negative ones
+        assertEquals(Status.LIVE, validator.check("live"));
+        assertEquals(Status.ENDED, validator.check("ended"));
+        assertEquals(3, service.getRequestCount());
+        assertEquals(3, validator.getLookupCount());
+        assertEquals(2, validator.getResults().getHitCount());
+    }
+    
+    @Test
+    public void testCheck_stale() throws Exception
+    {
+        service.setStatus("session", 200);
+        validator = newValidator(4, 200);
+        
+        assertEquals(Status.LIVE, lookUp("session"));
+        Thread.sleep(250);
+        
+        // the service has ended the session since the last check; the stale
+        // answer is returned without waiting while it is refreshed
+        service.setStatus("session", 401);
+        service.hold();
+        assertEquals(Status.LIVE, validator.check("session"));
+        assertEquals(1, validator.getStaleCount());
+        service.release();
+        
+        long deadline = System.currentTimeMillis() + 5000;
+        while (validator.check("session") != Status.ENDED && System.currentTimeMillis() < deadline)
+        {
+            Thread.sleep(10);
+        }
+        assertEquals(Status.ENDED, validator.check("session"));
+        assertEquals(2, service.getRequestCount());
+    }
+    
+    @Test
+    public void testCheck_staleOnFailure() throws Exception
+    {
+        service.setStatus("session", 200);
+        validator = new SessionValidator(service.getUrl(), COOKIE_NAME, 100, 1, 500, 4, 2000,
+                TimeUnit.MILLISECONDS);
+        
+        assertEquals(Status.LIVE, validator.check("session"));
+        Thread.sleep(5);
+        
+        // a failed refresh keeps the last answer
+        service.setStatus("session", 500);
+        assertEquals(Status.LIVE, validator.check("session"));
+        long deadline = System.currentTimeMillis() + 5000;
+        while (validator.getFailureCount() == 0 && System.currentTimeMillis() < deadline)
+        {
+            Thread.sleep(10);
+        }
+        assertEquals(1, validator.getFailureCount());
+        assertEquals(Status.LIVE, validator.check("session"));
+        
+        // until it is too old to be used
+        Thread.sleep(600);
+        assertEquals(Status.UNKNOWN, validator.check("session"));
+    }
+    
+    @Test
+    public void testCheck_serviceError() throws Exception
+    {
+        service.setStatus("session", 500);
+        validator = newValidator(4, 60000);
+        
+        // errors are not cached, so the next check asks again
+        assertEquals(Status.UNKNOWN, lookUp("session"));
+        assertEquals(Status.UNKNOWN, lookUp("session"));
+        assertEquals(2, validator.getFailureCount());
+        
+        service.stop();
+        assertEquals(Status.UNKNOWN, lookUp("session"));
+        assertEquals(3, validator.getFailureCount());
+    }
+    
+    @Test
+    public void testCheckAsync_coalesced() throws Exception
+    {
+        service.setStatus("session", 200);
+        service.hold();
+        validator = newValidator(4, 60000);
+        
+        // checks arriving while a lookup is in flight share it
+        List<CompletableFuture<Status>> futures = new ArrayList<CompletableFuture<Status>>();
+        for (int i = 0; i < 20; i++)
+        {
+            futures.add(validator.checkAsync("session"));
+        }
+        assertFalse(futures.get(0).isDone());
+        
+        service.release();
+        for (CompletableFuture<Status> future: futures)
+        {
+            assertEquals(Status.LIVE, future.get(5, TimeUnit.SECONDS));
+        }
+        
+        assertEquals(1, service.getRequestCount());
+        assertEquals(1, validator.getLookupCount());
+        assertEquals(19, validator.getCoalescedCount());
+    }
+    
+    @Test
+    public void testCheckAsync_bounded() throws Exception
+    {
+        service.setStatus("first", 200);
+        service.setStatus("second", 200);
+        service.hold();
+        validator = newValidator(1, 60000);
+        
+        CompletableFuture<Status> first = validator.checkAsync("first");
+        
+        // a second session is not looked up while the only permit is in use
+        CompletableFuture<Status> second = validator.checkAsync("second");
+        assertTrue(second.isDone());
+        assertEquals(Status.UNKNOWN, second.get());
+        assertEquals(1, validator.getSaturatedCount());
+        
+        service.release();
+        assertEquals(Status.LIVE, first.get(5, TimeUnit.SECONDS));
+        assertEquals(Status.LIVE, lookUp("second"));
+    }
+    
+    @Test
+    public void testCheck_firstAnswer() throws Exception
+    {
+        service.setStatus("session", 200);
+        validator = new SessionValidator(service.getUrl(), COOKIE_NAME, 100, 60000, 60000, 4, 200,
+                TimeUnit.MILLISECONDS);
+        
+        // a session's first check waits for its answer
+        assertEquals(Status.LIVE, validator.check("session"));
+        assertEquals(0, validator.getTimeoutCount());
+        
+        // but no longer than the lookup timeout
+        service.setStatus("slow", 200);
+        service.hold();
+        long start = System.nanoTime();
+        assertEquals(Status.UNKNOWN, validator.check("slow"));
+        long waited = System.nanoTime() - start;
+        assertTrue(waited >= TimeUnit.MILLISECONDS.toNanos(200) && waited < TimeUnit.SECONDS.toNanos(2));
+        assertEquals(1, validator.getTimeoutCount());
+        
+        service.release();
+        assertEquals(Status.LIVE, lookUp("slow"));
+        assertEquals(Status.LIVE, validator.check("slow"));
+        assertEquals(1, validator.getTimeoutCount());
+    }
+    
+    @Test(expected = IllegalArgumentException.class)
+    public void testConstructor_maxStaleBelowTtl() throws Exception
+    {
+        new SessionValidator(service.getUrl(), COOKIE_NAME, 100, 60000, 1000, 4, 2000, TimeUnit.MILLISECONDS);
+    }
+    
+    /**
+     * Wait for the answer to a check
+     */
+    private Status lookUp(String cookieValue) throws Exception
+    {
+        return validator.checkAsync(cookieValue).get(5, TimeUnit.SECONDS);
+    }
+    
+    /**
+     * Local stand in for the authentication service's session check
+     * endpoint, answering with a set status for each session cookie value
+     */
+    static class StubSessionService
+    {
+        private final HttpServer server;
+        private final ExecutorService executor = Executors.newCachedThreadPool();
+        private final String cookieName;
+        private final Map<String, Integer> statuses = new ConcurrentHashMap<String, Integer>();
+        private final AtomicInteger requestCount = new AtomicInteger();
+        private volatile CountDownLatch gate = new CountDownLatch(0);
+        private boolean stopped;
+        
+        StubSessionService(String cookieName) throws IOException
+        {
+            this.cookieName = cookieName;
+            this.server = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0), 0);
+            this.server.createContext("/session", this::handle);
+            this.server.setExecutor(this.executor);
+            this.server.start();
+        }
+        
+        private void handle(HttpExchange exchange) throws IOException
+        {
+            this.requestCount.incrementAndGet();
+            try
+            {
+                this.gate.await(10, TimeUnit.SECONDS);
+            }
+            catch (InterruptedException e)
+            {
+                Thread.currentThread().interrupt();
+            }
+            
+            String cookie = exchange.getRequestHeaders().getFirst("Cookie");
+            String prefix = this.cookieName + "=";
+            Integer status = null;
+            if (cookie != null && cookie.startsWith(prefix))
+            {
+                status = this.statuses.get(cookie.substring(prefix.length()));
+            }
+            
+            exchange.sendResponseHeaders(status == null ? 404 : status, -1);
+            exchange.close();
+        }
+        
+        URL getUrl()
+        {
+            try
+            {
+                return new URL("http", "127.0.0.1", this.server.getAddress().getPort(), "/session");
+            }
+            catch (IOException e)
+            {
+                throw new IllegalStateException(e);
+            }
+        }
+        
+        void setStatus(String cookieValue, int status)
+        {
+            this.statuses.put(cookieValue, status);
+        }
+        
+        /**
+         * Hold requests until {@link #release()} is called
+         */
+        void hold()
+        {
+            this.gate = new CountDownLatch(1);
+        }
+        
+        void release()
+        {
+            this.gate.countDown();
+        }
+        
+        int getRequestCount()
+        {
+            return this.requestCount.get();
+        }
+        
+        void stop()
+        {
+            release();
+            if (!this.stopped)
+            {
+                this.stopped = true;
+                this.server.stop(0);
+                this.executor.shutdownNow();
+            }
+        }
+    }
+    
+}